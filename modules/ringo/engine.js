@@ -12,6 +12,7 @@ export( 'properties',
         'getErrors',
         'getRingoHome',
         'getRepositories',
+        'getSpawnMetrics',
         'getRhinoContext',
         'getRhinoEngine',
         'getPackageRepository',
@@ -190,10 +191,14 @@ function getRhinoEngine() {
 
 /**
  * Get a list containing the syntax errors encountered in the current context.
+ * The returned list is a copy, so it isn't affected by later errors or by
+ * the list being reset when the context is released.
  * @returns {ScriptableList} a list containing the errors encountered in the current context
  */
 function getErrors() {
-    return new ScriptableList(org.ringojs.engine.RhinoEngine.errors.get());
+    var errors = org.ringojs.engine.RhinoEngine.errors.get();
+    return new ScriptableList(errors == null ?
+            new java.util.ArrayList() : new java.util.ArrayList(errors));
 }
 
 /**
@@ -218,3 +223,31 @@ function addRepository(repo) {
     }
 }
 
+/**
+ * Get the current state of the thread pool used by `spawn()` and the
+ * `ringo/scheduler` module. The returned object has the following properties:
+ *
+ *  - active the number of threads currently running tasks
+ *  - queued the number of tasks waiting for a thread
+ *  - completed the number of completed tasks
+ *  - rejected the number of tasks rejected because pool and queue were full
+ *  - overflow the number of scheduler callbacks waiting for the pool to
+ *    have capacity again
+ *  - threads the current number of threads in the pool
+ *  - largestThreads the largest number of threads the pool ever had
+ *  - maxThreads the maximal number of threads
+ *
+ * The pool size, queue size and rejection policy are configured using the
+ * `ringo.spawn.threads`, `ringo.spawn.queue` and `ringo.spawn.policy`
+ * system properties.
+ * @returns {Object} an object containing the thread pool metrics
+ */
+function getSpawnMetrics() {
+    var metrics = new ScriptableMap(
+            org.ringojs.engine.SpawnExecutor.getInstance().getMetrics());
+    var result = {};
+    for (var key in metrics) {
+        result[key] = Number(metrics[key]);
+    }
+    return result;
+}
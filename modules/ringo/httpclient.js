@@ -13,7 +13,9 @@ var {Decoder} = require('ringo/encoding');
 var {getMimeParameter, Headers, urlEncode} = require('ringo/utils/http');
 var base64 = require('ringo/base64');
 var {defer} = require('ringo/promise');
+var {setTimeout, clearTimeout} = require('ringo/scheduler');
 var log = require('ringo/logging').getLogger(module.id);
+var {BoundedPipe} = org.ringojs.util;
 
 export('request', 'post', 'get', 'del', 'put', 'Client');
 
@@ -173,6 +175,21 @@ var Exchange = function(url, options, callbacks) {
                 return bytes ? ByteString.wrap(bytes) : new ByteString();
             }
         },
+        /**
+         * The response body as readable Stream if the request was made with
+         * the `stream` option, null otherwise. Reading blocks until data is
+         * available. Closing the stream before the end of the body aborts
+         * the request.
+         * @name Exchange.prototype.stream
+         */
+        stream: {
+            get: function() {
+                if (pipe && !stream) {
+                    stream = new Stream(pipe.getInputStream());
+                }
+                return stream;
+            }
+        },
         /**
          * @name Exchange.prototype.contentChunk
          */
@@ -247,6 +264,32 @@ var Exchange = function(url, options, callbacks) {
                 exchange.waitForDone();
                 return this;
             }
+        },
+        /**
+         * Waits until the response status and headers have been received, or
+         * the request has failed, and returns the Exchange object itself.
+         * @returns the Exchange object
+         * @name Exchange.prototype.waitForResponse
+         */
+        waitForResponse: {
+            value: function() {
+                responseLatch.await();
+                return this;
+            }
+        },
+        /**
+         * Cancels the request if it hasn't completed yet. A streamed
+         * response body fails with an error when read.
+         * @name Exchange.prototype.cancel
+         */
+        cancel: {
+            value: function() {
+                if (!exchange.isDone()) {
+                    exchange.cancel();
+                    endContent("Request cancelled");
+                    finish();
+                }
+            }
         }
     });
 
@@ -268,11 +311,81 @@ var Exchange = function(url, options, callbacks) {
     var self = this;
     var responseHeaders = new Headers();
     var decoder;
+    // bounded buffer between the client's I/O threads and the stream reader
+    var pipe = options.stream ? new BoundedPipe(options.bufferSize || 65536) : null;
+    var writeTimeout = options.timeout > 0 && options.timeout < java.lang.Long.MAX_VALUE ?
+            options.timeout : 0;
+    var stream = null;
+    var output = options.output ? getOutputStream(options.output) : null;
+    var responseLatch = new java.util.concurrent.CountDownLatch(1);
+
+    /**
+     * Pass a chunk of response content on to the pipe or output stream,
+     * aborting the request if the reader has gone away.
+     */
+    var writeContent = function(content) {
+        var bytes = content.array();
+        var offset = content.getIndex();
+        if (bytes == null) {
+            bytes = content.asArray();
+            offset = 0;
+        }
+        try {
+            if (pipe) {
+                // don't block the I/O thread forever if nobody reads the stream
+                pipe.write(bytes, offset, content.length(), writeTimeout);
+            } else {
+                output.write(bytes, offset, content.length());
+            }
+        } catch (error) {
+            log.debug("Aborting streaming response", error);
+            self.cancel();
+        }
+    };
+
+    /**
+     * Called once when the exchange has terminated in any way.
+     */
+    var finish = sync(function() {
+        if (finished) {
+            return;
+        }
+        finished = true;
+        try {
+            if (typeof(callbacks.done) === 'function') {
+                callbacks.done(self);
+            }
+        } finally {
+            if (options.async) {
+                global.decreaseAsyncCount();
+            }
+        }
+    }, this);
+    var finished = false;
+
+    var endContent = function(error) {
+        responseLatch.countDown();
+        if (pipe) {
+            if (error) {
+                pipe.fail(new java.io.IOException(error));
+            } else {
+                pipe.close();
+            }
+        } else if (output) {
+            try {
+                output.flush();
+            } catch (e) {
+                // ignore
+            }
+        }
+    };
     var exchange = new JavaAdapter(ContentExchange, {
         onResponseComplete: function() {
             try {
                 this.super$onResponseComplete();
-                var content = options.binary ? self.contentBytes : self.content;
+                endContent();
+                var content = (pipe || output) ? null :
+                        options.binary ? self.contentBytes : self.content;
                 if (typeof(callbacks.complete) === 'function') {
                     callbacks.complete(content, self.status, self.contentType, self);
                 }
@@ -288,14 +401,14 @@ var Exchange = function(url, options, callbacks) {
                     callbacks.error(message, self.status, self);
                 }
             } finally {
-                if (options.async) {
-                    global.decreaseAsyncCount();
-                }
+                finish();
             }
             return;
         },
         onResponseContent: function(content) {
-            if (typeof(callbacks.part) === 'function') {
+            if (pipe || output) {
+                writeContent(content);
+            } else if (typeof(callbacks.part) === 'function') {
                 if (options.binary) {
                     var bytes = ByteString.wrap(content.asArray());
                     callbacks.part(bytes, self.status, self.contentType, self);
@@ -320,44 +433,49 @@ var Exchange = function(url, options, callbacks) {
             responseHeaders.add(String(key), String(value));
             return;
         },
+        onResponseHeaderComplete: function() {
+            this.super$onResponseHeaderComplete();
+            responseLatch.countDown();
+            if (typeof(callbacks.response) === 'function') {
+                callbacks.response(self);
+            }
+            return;
+        },
         onConnectionFailed: function(exception) {
             try {
                 this.super$onConnectionFailed(exception);
+                var message = exception.getMessage() || exception.toString();
+                endContent(message);
                 if (typeof(callbacks.error) === 'function') {
-                    var message = exception.getMessage() || exception.toString();
                     callbacks.error(message, 0, self);
                 }
             } finally {
-                if (options.async) {
-                    global.decreaseAsyncCount();
-                }
+                finish();
             }
             return;
         },
         onException: function(exception) {
             try {
                 this.super$onException(exception);
+                var message = exception.getMessage() || exception.toString();
+                endContent(message);
                 if (typeof(callbacks.error) === 'function') {
-                    var message = exception.getMessage() || exception.toString();
                     callbacks.error(message, 0, self);
                 }
             } finally {
-                if (options.async) {
-                    global.decreaseAsyncCount();
-                }
+                finish();
             }
             return;
         },
         onExpire: function() {
             try {
                 this.super$onExpire();
+                endContent('Request expired');
                 if (typeof(callbacks.error) === 'function') {
                     callbacks.error('Request expired', 0, self);
                 }
             } finally {
-                if (options.async) {
-                    global.decreaseAsyncCount();
-                }
+                finish();
             }
             return;
         },
@@ -413,6 +531,48 @@ var Exchange = function(url, options, callbacks) {
     return this;
 };
 
+/**
+ * Get a java.io.OutputStream for the `output` request option, which may be
+ * a Java OutputStream or a writable Stream.
+ */
+var getOutputStream = function(output) {
+    if (output instanceof java.io.OutputStream) {
+        return output;
+    }
+    if (output instanceof Stream) {
+        try {
+            // fails for script streams inheriting from Stream.prototype
+            var outputStream = output.outputStream;
+            if (outputStream) {
+                return outputStream;
+            }
+        } catch (error) {
+            // fall through
+        }
+    }
+    if (typeof output.write === 'function') {
+        // any other stream with a write(binary) method
+        return new java.io.OutputStream({
+            write: function(bytes, offset, length) {
+                if (typeof bytes === 'number') {
+                    output.write(new ByteString([bytes]));
+                } else if (offset == null) {
+                    output.write(ByteString.wrap(bytes));
+                } else {
+                    output.write(ByteString.wrap(java.util.Arrays.copyOfRange(
+                            bytes, offset, offset + length)));
+                }
+            },
+            flush: function() {
+                if (typeof output.flush === 'function') {
+                    output.flush();
+                }
+            }
+        });
+    }
+    throw new Error('Invalid output: ' + output);
+};
+
 /**
  * Defaults for options passable to to request()
  */
@@ -493,19 +653,105 @@ var extractOptionalArguments = function(args) {
     throw new Error('unknown arguments');
 };
 
+/**
+ * Upper bounds in milliseconds of the buckets of the request latency histogram
+ */
+var LATENCY_BUCKETS = [1, 2, 5, 10, 20, 50, 100, 200, 500, 1000, 2000, 5000, 10000];
+
 /**
  * A HttpClient which can be used for multiple requests.
  *
  * Use this Client instead of the convenience methods if you do lots
  * of requests (especially if they go to the same hosts)
  * or if you want cookies to be preserved between multiple requests.
-
- * @param {Number} timeout The connection timeout
+ *
+ * Instead of the timeout and followRedirects arguments, an options object
+ * may be passed with the following properties:
+ *
+ *  - `timeout`: the request timeout in milliseconds, 0 to disable it
+ *  - `followRedirects`: whether to follow redirects, defaults to true
+ *  - `maxRedirects`: the maximal number of redirects to follow, defaults to 20
+ *  - `maxConnections`: the maximal number of connections per destination
+ *    (host and port), defaults to 32. Further requests are queued until a
+ *    connection becomes available.
+ *  - `idleTimeout`: the time in milliseconds after which idle connections
+ *    are closed, defaults to 20000
+ *  - `connectTimeout`: the connect timeout in milliseconds, defaults to 75000
+ *  - `keepAlive`: whether to reuse connections, defaults to true
+ *  - `maxPending`: the maximal number of outstanding requests per destination.
+ *    Further requests fail immediately with status 0. Defaults to no limit.
+ *  - `threads`: the maximal number of threads handling connection I/O
+ *
+ * @param {Number|Object} timeout The connection timeout, or an options object
  * @param {Boolean} followRedirects If true then redirects (301, 302) are followed
  * @constructor
  */
 var Client = function(timeout, followRedirects) {
 
+    var config = {};
+    if (timeout && typeof timeout === "object") {
+        config = timeout;
+        timeout = config.timeout;
+        followRedirects = config.followRedirects;
+    }
+    var keepAlive = config.keepAlive !== false;
+    var maxPending = config.maxPending || 0;
+    // destination key -> {address, secure, pending}
+    var destinations = new java.util.concurrent.ConcurrentHashMap();
+    var requests = new java.util.concurrent.atomic.AtomicLong();
+    var rejected = new java.util.concurrent.atomic.AtomicLong();
+    var latencies = new java.util.concurrent.atomic.AtomicLongArray(LATENCY_BUCKETS.length + 1);
+    var latencySum = new java.util.concurrent.atomic.AtomicLong();
+
+    /**
+     * Get the destination of an exchange and count the exchange as pending,
+     * or return null if too many requests are pending for the destination.
+     */
+    var acquireDestination = sync(function(contentExchange) {
+        var address = contentExchange.getAddress();
+        var secure = String(contentExchange.getScheme()) === "https";
+        var key = (secure ? "https://" : "http://") + address;
+        var destination = destinations.get(key);
+        if (!destination) {
+            // only keep track of destinations that are still in use
+            pruneDestinations();
+            destination = {
+                address: address,
+                secure: secure,
+                pending: new java.util.concurrent.atomic.AtomicInteger()
+            };
+            destinations.put(key, destination);
+        }
+        if (maxPending > 0 && destination.pending.get() >= maxPending) {
+            return null;
+        }
+        destination.pending.incrementAndGet();
+        return destination;
+    }, destinations);
+
+    /**
+     * Remove destinations without pending requests and open connections.
+     */
+    var pruneDestinations = sync(function() {
+        var it = destinations.values().iterator();
+        while (it.hasNext()) {
+            var destination = it.next();
+            if (destination.pending.get() == 0 && client.getDestination(
+                    destination.address, destination.secure).getConnections() == 0) {
+                it.remove();
+            }
+        }
+    }, destinations);
+
+    var recordLatency = function(millis) {
+        var i = 0;
+        while (i < LATENCY_BUCKETS.length && millis > LATENCY_BUCKETS[i]) {
+            i++;
+        }
+        latencies.incrementAndGet(i);
+        latencySum.addAndGet(millis);
+    };
+
     /**
      * Make a GET request. If a success callback is provided, the request is executed
      * asynchronously and the function returns immediately. Otherwise, the function
@@ -627,6 +873,19 @@ var Client = function(timeout, followRedirects) {
      *     else it will be decoded to string
      *  - `promise`: if true a promise that resolves to the request's Exchange
      *     object is returned instead of the Exchange object itself
+     *  - `stream`: if true the response body is not buffered but made available
+     *     as readable Stream through the Exchange's `stream` property. A
+     *     synchronous request returns as soon as the response headers have
+     *     been received, and a promise resolves at that time. At most
+     *     `bufferSize` bytes (64 KB by default) are buffered, the connection
+     *     is not read from while the buffer is full. If the stream isn't read
+     *     from within the client's timeout, the request is cancelled.
+     *  - `output`: a Stream or java.io.OutputStream to write the response body
+     *     to as it is received, for example a file opened for writing. The
+     *     output is flushed but not closed when the response is complete.
+     *
+     *  When the response body is streamed or written to an output, the
+     *  `content` argument passed to the callbacks is null.
      *
      *  #### Callbacks
      *
@@ -636,6 +895,9 @@ var Client = function(timeout, followRedirects) {
      *  - `success`: called when the request is completed successfully
      *  - `error`: called when the request is completed with an error
      *  - `part`: called when a part of the response is available
+     *  - `response`: called with the Exchange object as argument when the
+     *     response status and headers have been received. This is called on
+     *     an I/O thread, so it must not read the response stream.
      *  - `beforeSend`: called with the Exchange object as argument before the request is sent
      *
      *  The following arguments are passed to the `complete`, `success` and `part` callbacks:
@@ -657,10 +919,41 @@ var Client = function(timeout, followRedirects) {
         var opts = defaultOptions(options);
         if (opts.promise) {
             var deferred = defer();
-            opts.success = function() {deferred.resolve(arguments[3])};
-            opts.error = function() {deferred.resolve(arguments[2], true)};
+            if (opts.stream) {
+                var resolved = false;
+                opts.response = sync(function(exchange) {
+                    resolved = true;
+                    // resolve outside the I/O thread so promise callbacks
+                    // can read the stream
+                    spawn(function() {
+                        deferred.resolve(exchange);
+                    });
+                }, deferred);
+                // errors after the headers were received surface in the stream
+                opts.error = sync(function() {
+                    if (!resolved) {
+                        resolved = true;
+                        deferred.resolve(arguments[2], true);
+                    }
+                }, deferred);
+            } else {
+                opts.success = function() {deferred.resolve(arguments[3])};
+                opts.error = function() {deferred.resolve(arguments[2], true)};
+            }
             opts.async = true;
         }
+        if (!keepAlive) {
+            opts.headers.set("Connection", "close");
+        }
+        var start = Date.now();
+        var destination;
+        var done = sync(function() {
+            if (destination) {
+                destination.pending.decrementAndGet();
+                destination = null;
+                recordLatency(Date.now() - start);
+            }
+        }, opts);
         var exchange = new Exchange(opts.url, {
             method: opts.method,
             data: opts.data,
@@ -669,31 +962,220 @@ var Client = function(timeout, followRedirects) {
             password: opts.password,
             contentType: opts.contentType,
             binary: opts.binary,
-            async: opts.async
+            async: opts.async,
+            stream: opts.stream,
+            bufferSize: opts.bufferSize,
+            timeout: client.getTimeout(),
+            output: opts.output
         }, {
             success: opts.success,
             complete: opts.complete,
             error: opts.error,
-            part: opts.part
+            part: opts.part,
+            response: opts.response,
+            done: done
         });
         if (typeof(opts.beforeSend) === 'function') {
             opts.beforeSend(exchange);
         }
+        var target = acquireDestination(exchange.contentExchange);
+        if (!target) {
+            rejected.incrementAndGet();
+            if (typeof(opts.error) === 'function') {
+                opts.error("Too many pending requests", 0, exchange);
+            }
+            return opts.promise ? deferred.promise : exchange;
+        }
+        destination = target;
+        requests.incrementAndGet();
         try {
             client.send(exchange.contentExchange);
             if (opts.async) {
                 global.increaseAsyncCount();
+            } else if (opts.stream) {
+                exchange.waitForResponse();
             } else {
                 exchange.contentExchange.waitForDone();
             }
         } catch (e) { // probably java.net.ConnectException
-            if (typeof(callbacks.error) === 'function') {
-                callbacks.error(e, 0, exchange);
+            done();
+            if (typeof(opts.error) === 'function') {
+                opts.error(e, 0, exchange);
             }
         }
         return opts.promise ? deferred.promise : exchange;
     };
 
+    /**
+     * Send several requests concurrently and return a promise for all of
+     * their results. Requests are sent asynchronously over this client's
+     * connections, so no thread is held per outstanding request.
+     *
+     * The promise resolves to an array with an object for each request in
+     * the order of the `requests` argument. Each object contains either a
+     * `value` property with the request's Exchange, or an `error` property
+     * with the error message and a `status` property. Requests whose
+     * response status signals an error count as failed.
+     *
+     * #### Options
+     *
+     *  - `timeout`: the maximal time in milliseconds to wait for all
+     *    requests. Outstanding requests are cancelled when it expires.
+     *  - `maxConcurrency`: the maximal number of requests in flight at the
+     *    same time, defaults to all requests
+     *  - `failFast`: if true (the default), the promise fails as soon as a
+     *    request fails and outstanding requests are cancelled. The error is
+     *    an object with the `index` of the failed request, the `error`
+     *    message, the `status` and the `exchange`.
+     *
+     * @param {Array} requests an array of request options objects as accepted
+     *     by `request()`, or URL strings for GET requests
+     * @param {Object} options optional options object
+     * @returns {Promise} a promise for the array of results
+     */
+    this.requestAll = function(requests, options) {
+        options = options || {};
+        var failFast = options.failFast !== false;
+        var maxConcurrency = options.maxConcurrency || requests.length;
+        var deferred = defer();
+        var results = new Array(requests.length);
+        var exchanges = [];
+        var remaining = requests.length;
+        var next = 0;
+        var finished = false;
+        var timer = null;
+        var self = this;
+
+        var finish = function(value, isError) {
+            finished = true;
+            if (timer) {
+                clearTimeout(timer);
+            }
+            if (isError) {
+                // cancel requests that are still outstanding
+                exchanges.forEach(function(exchange, index) {
+                    if (!results[index]) {
+                        exchange.cancel();
+                    }
+                });
+            }
+            deferred.resolve(value, isError);
+        };
+
+        var complete = sync(function(index, result) {
+            if (finished || results[index]) {
+                return;
+            }
+            results[index] = result;
+            remaining -= 1;
+            if (result.error && failFast) {
+                finish({
+                    index: index,
+                    error: result.error,
+                    status: result.status,
+                    exchange: exchanges[index]
+                }, true);
+            } else if (remaining === 0) {
+                finish(results);
+            } else {
+                sendNext();
+            }
+        }, results);
+
+        var sendNext = function() {
+            if (finished || next >= requests.length) {
+                return;
+            }
+            var index = next++;
+            var opts = requests[index];
+            opts = typeof opts === "string" ?
+                    {url: opts} : objects.clone(opts, {}, false);
+            opts.async = true;
+            opts.promise = false;
+            opts.success = function(content, status, contentType, exchange) {
+                complete(index, {value: exchange});
+            };
+            opts.error = function(message, status, exchange) {
+                complete(index, {error: String(message), status: status});
+            };
+            exchanges[index] = self.request(opts);
+        };
+
+        if (remaining === 0) {
+            deferred.resolve(results);
+            return deferred.promise;
+        }
+        if (options.timeout > 0) {
+            timer = setTimeout(sync(function() {
+                timer = null;
+                if (!finished) {
+                    finish({error: "Requests timed out"}, true);
+                }
+            }, results), options.timeout);
+        }
+        sync(function() {
+            for (var i = 0; i < maxConcurrency; i++) {
+                sendNext();
+            }
+        }, results)();
+        return deferred.promise;
+    };
+
+    /**
+     * Get the metrics of this client. The returned object contains the
+     * following properties:
+     *
+     *  - `requests`: the number of requests sent
+     *  - `rejected`: the number of requests rejected because too many
+     *    requests were pending for their destination
+     *  - `pending`: the number of outstanding requests
+     *  - `destinations`: an object with a property for each destination
+     *    (such as `http://example.com:80`) with pending requests or open
+     *    connections, containing the number of open `connections`,
+     *    `idleConnections` and `pending` requests
+     *  - `latency`: the request latency histogram, an object with the bucket
+     *    upper bounds in milliseconds as `buckets`, the number of requests
+     *    per bucket as `counts` (the last count being for requests slower than
+     *    the last bound), the `count` of requests and the `sum` of their
+     *    latencies
+     *
+     * @returns {Object} the client metrics
+     */
+    this.getMetrics = function() {
+        pruneDestinations();
+        var result = {};
+        var pending = 0;
+        var it = destinations.keySet().iterator();
+        while (it.hasNext()) {
+            var key = it.next();
+            var destination = destinations.get(key);
+            var jettyDestination = client.getDestination(destination.address, destination.secure);
+            result[key] = {
+                connections: jettyDestination.getConnections(),
+                idleConnections: jettyDestination.getIdleConnections(),
+                pending: destination.pending.get()
+            };
+            pending += result[key].pending;
+        }
+        var counts = [], count = 0;
+        for (var i = 0; i < latencies.length(); i++) {
+            counts.push(latencies.get(i));
+            count += counts[i];
+        }
+        return {
+            requests: requests.get(),
+            rejected: rejected.get(),
+            pending: pending,
+            destinations: result,
+            latency: {
+                buckets: LATENCY_BUCKETS.slice(),
+                counts: counts,
+                count: count,
+                sum: latencySum.get()
+            }
+        };
+    };
+
     var client = new HttpClient();
     if (typeof timeout == "number") {
         if (timeout <= 0) {
@@ -706,8 +1188,24 @@ var Client = function(timeout, followRedirects) {
     if (followRedirects !== false) {
         client.registerListener('org.eclipse.jetty.client.RedirectListener');
     }
-    // client.setMaxRedirects(20); // jetty default = 20
-    // client.setIdleTimeout(10000);
+    if (config.maxRedirects != null) {
+        client.setMaxRedirects(config.maxRedirects);
+    }
+    // Jetty doesn't limit the number of connections by default
+    client.setMaxConnectionsPerAddress(config.maxConnections || 32);
+    if (config.idleTimeout) {
+        client.setIdleTimeout(config.idleTimeout);
+    }
+    if (config.connectTimeout) {
+        client.setConnectTimeout(config.connectTimeout);
+    }
+    if (config.threads) {
+        var threadPool = new org.eclipse.jetty.util.thread.QueuedThreadPool(config.threads);
+        threadPool.setMinThreads(Math.min(8, config.threads));
+        threadPool.setDaemon(true);
+        threadPool.setName("HttpClient");
+        client.setThreadPool(threadPool);
+    }
     // TODO proxy stuff
     //client.setProxy(Adress);
     //client.setProxyAuthentication(ProxyAuthorization);
@@ -6,6 +6,16 @@ export('Server');
 
 var log = require('ringo/logging').getLogger(module.id);
 
+// maps admission control options to JsgiServlet init parameters
+var admissionParams = {
+    maxConcurrency: 'max-concurrency',
+    minConcurrency: 'min-concurrency',
+    adaptiveConcurrency: 'adaptive-concurrency',
+    maxQueue: 'max-queue',
+    queueTimeout: 'queue-timeout',
+    retryAfter: 'retry-after'
+};
+
 
 /**
  * Create a Jetty HTTP server with the given options. The options may
@@ -18,6 +28,22 @@ var log = require('ringo/logging').getLogger(module.id);
  * <li>jettyConfig ('config/jetty.xml')</li>
  * <li>port (8080)</li>
  * <li>host (undefined)</li>
+ * <li>virtualThreads (false) - handle requests on virtual threads if
+ *     supported by the Java runtime</li>
+ * </ul>
+ *
+ * The number of requests the default application processes concurrently
+ * can be limited using the following properties. Requests beyond the limit
+ * wait in a bounded queue and are rejected with status 503 and a
+ * Retry-After header if the queue is full or the wait times out.
+ * <ul>
+ * <li>maxConcurrency (0) - the maximal number of concurrent requests,
+ *     0 for no limit</li>
+ * <li>minConcurrency (1) - the lower bound for adaptive limiting</li>
+ * <li>adaptiveConcurrency (false) - adapt the limit to observed latency</li>
+ * <li>maxQueue (100) - the maximal number of waiting requests</li>
+ * <li>queueTimeout (1000) - the maximal wait time in milliseconds</li>
+ * <li>retryAfter (1) - the Retry-After value in seconds</li>
  * </ul>
  *
  * For convenience, the constructor supports the definition of a JSGI application
@@ -92,10 +118,15 @@ function Server(options) {
              *   the application.
              *   <div><code>{ config: 'config', app: 'app' }</code></div>
              * @param {RhinoEngine} engine optional RhinoEngine instance for multi-engine setups
+             * @param {Object} options optional object with admission control
+             *   properties as described for the Server constructor. If the
+             *   application is defined as object, these properties may also be
+             *   defined on the application object.
+             * @returns {JsgiServlet} the servlet serving the application
              * @since: 0.6
              * @name Context.instance.serveApplication
              */
-            serveApplication: function(app, engine) {
+            serveApplication: function(app, engine, options) {
                 log.debug("Adding JSGI application:", cx, "->", app);
                 engine = engine || require('ringo/engine').getRhinoEngine();
                 var isFunction = typeof app === "function";
@@ -108,7 +139,15 @@ function Server(options) {
                     servletHolder.setInitParameter('config', app.config || 'config');
                     servletHolder.setInitParameter('app', app.app || 'app');
                 }
+                options = options || (isFunction ? {} : app);
+                for (var name in admissionParams) {
+                    if (options[name] != null) {
+                        servletHolder.setInitParameter(admissionParams[name],
+                                String(options[name]));
+                    }
+                }
                 cx.addServlet(servletHolder, "/*");
+                return servlet;
             },
             /**
              * Map this context to a directory containing static resources.
@@ -200,6 +239,16 @@ function Server(options) {
     if (options.host) props.put('host', options.host);
     xmlconfig.configure(jetty);
 
+    if (options.virtualThreads) {
+        var SpawnExecutor = org.ringojs.engine.SpawnExecutor;
+        if (SpawnExecutor.isVirtualThreadSupported()) {
+            jetty.setThreadPool(new org.eclipse.jetty.util.thread.ExecutorThreadPool(
+                    SpawnExecutor.newVirtualThreadExecutor("ringo-jsgi-")));
+        } else {
+            log.warn("Virtual threads not supported by this Java runtime");
+        }
+    }
+
     // create default context
     defaultContext = this.getContext(options.mountpoint || "/", options.virtualHost, {
         security: true,
@@ -208,7 +257,7 @@ function Server(options) {
 
     // If options defines an application mount it
     if (typeof options.app === "function") {
-        defaultContext.serveApplication(options.app);
+        defaultContext.serveApplication(options.app, null, options);
     } else if (options.app && options.config) {
         defaultContext.serveApplication(options);
     }
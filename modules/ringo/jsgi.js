@@ -2,12 +2,12 @@
  * @fileOverview Low level JSGI adapter implementation.
  */
 
-var {Headers, getMimeParameter} = require('ringo/utils/http');
+var {Headers} = require('ringo/utils/http');
 var {Stream} = require('io');
-var {Binary, ByteString} = require('binary');
-var system = require('system')
+var system = require('system');
+var {JsgiResponse, AsyncWriter} = org.ringojs.jsgi;
 
-export('handleRequest', 'writeHeaders');
+export('handleRequest', 'resolveApp', 'runApp', 'writeHeaders');
 var log = require('ringo/logging').getLogger(module.id);
 
 /**
@@ -19,7 +19,26 @@ var log = require('ringo/logging').getLogger(module.id);
  * @returns the JSGI response object
  */
 function handleRequest(moduleId, functionObj, request) {
-    initRequest(request);
+    var app = resolveApp(moduleId, functionObj);
+    var result = runApp(app, request,
+            typeof(functionObj) === 'function' ? null : moduleId);
+    if (result) {
+        JsgiResponse.commit(request.env.servletRequest,
+                request.env.servletResponse, result);
+    }
+}
+
+/**
+ * Resolve a JSGI application including its middleware stack and environment.
+ * The returned function can be cached and passed to `runApp()` as long as the
+ * config module isn't reloaded. This is used internally by the
+ * org.ringojs.jsgi.JsgiServlet class.
+ * @param moduleId the module id. Ignored if functionObj is already a function.
+ * @param functionObj the function, either as function object or function name to be
+ *             imported from the module moduleId.
+ * @returns the composed JSGI application function
+ */
+function resolveApp(moduleId, functionObj) {
     var app;
     if (typeof(functionObj) === 'function') {
         app = functionObj;
@@ -27,7 +46,6 @@ function handleRequest(moduleId, functionObj, request) {
         var module = require(moduleId);
         app = module[functionObj];
         var middleware = module.middleware || [];
-        request.env.ringo_config = moduleId;
         app = middleware.reduceRight(middlewareWrapper, resolve(app));
     }
     // if RINGO_ENV environment variable is set and application supports
@@ -38,11 +56,38 @@ function handleRequest(moduleId, functionObj, request) {
     if (typeof(app) !== 'function') {
         throw new Error('No valid JSGI app: ' + app);
     }
+    return app;
+}
+
+/**
+ * Run a JSGI application previously resolved with `resolveApp()`. Synchronous
+ * responses are returned to be committed by the caller using
+ * org.ringojs.jsgi.JsgiResponse, while asynchronous responses are set up
+ * to be committed once they are complete.
+ * @param app the JSGI application function
+ * @param request the JSGI request object
+ * @param moduleId the id of the config module the app was resolved from, if any
+ * @returns the JSGI response object, or null if the response is asynchronous
+ */
+function runApp(app, request, moduleId) {
+    initRequest(request);
+    if (moduleId) {
+        request.env.ringo_config = moduleId;
+    }
     var result = app(request);
     if (!result) {
         throw new Error('No valid JSGI response: ' + result);
     }
-    commitResponse(request, result);
+    var {status, headers, body} = result;
+    if (!status || !headers || !body) {
+        // Check if this is an asynchronous response. If not throw an Error
+        var env = request.env;
+        if (handleAsyncResponse(env.servletRequest, env.servletResponse, result)) {
+            return null;
+        }
+        throw new Error('No valid JSGI response: ' + result);
+    }
+    return result;
 }
 
 /**
@@ -67,70 +112,17 @@ function initRequest(request) {
     });
 }
 
-/**
- * Apply the return value of a JSGI application to a servlet response.
- * This is used internally by the org.ringojs.jsgi.JsgiServlet class, so
- * you won't need this unless you're implementing your own servlet
- * based JSGI connector.
- *
- * @param req the JSGI request argument
- * @param result the object returned by a JSGI application
- */
-function commitResponse(req, result) {
-    var request = req.env.servletRequest;
-    var response = req.env.servletResponse;
-    var {status, headers, body} = result;
-    if (!status || !headers || !body) {
-        // Check if this is an asynchronous response. If not throw an Error
-        if (handleAsyncResponse(request, response, result)) {
-            return;
-        } else {
-            throw new Error('No valid JSGI response: ' + result);
-        }
-    }
-    // Allow application/middleware to handle request via Servlet API
-    if (!response.isCommitted() && !Headers(headers).contains("X-JSGI-Skip-Response")) {
-        writeResponse(response, status, headers, body);
-    }
-}
-
 function writeResponse(servletResponse, status, headers, body) {
-    servletResponse.setStatus(status);
-    writeHeaders(servletResponse, headers);
-    var charset = getMimeParameter(headers.get("Content-Type"), "charset");
-    writeBody(servletResponse, body, charset);
+    JsgiResponse.write(servletResponse, status, headers, body);
 }
 
+/**
+ * Add the headers of a JSGI response to a servlet response.
+ * @param servletResponse the servlet response
+ * @param headers the JSGI headers object
+ */
 function writeHeaders(servletResponse, headers) {
-    for (var key in headers) {
-        var values = headers[key];
-        if (typeof values === "string") {
-            values = values.split("\n");
-        } else if (!Array.isArray(values)) {
-            continue;
-        }
-        values.forEach(function(value) {
-            servletResponse.addHeader(key, value);
-        });
-    }
-}
-
-function writeBody(response, body, charset) {
-    if (body && typeof body.forEach == "function") {
-        var output = response.getOutputStream();
-        var writer = function(part) {
-            if (!(part instanceof Binary)) {
-                part = part.toByteString(charset);
-            }
-            output.write(part);
-        };
-        body.forEach(writer);
-        if (typeof body.close == "function") {
-            body.close(writer);
-        }
-    } else {
-        throw new Error("Response body doesn't implement forEach: " + body);
-    }
+    JsgiResponse.writeHeaders(servletResponse, headers);
 }
 
 function writeAsync(servletResponse, jsgiResponse) {
@@ -141,6 +133,32 @@ function writeAsync(servletResponse, jsgiResponse) {
     writeResponse(servletResponse, status, Headers(headers), body);
 }
 
+/**
+ * Write an async response on the writer thread pool, so the thread resolving
+ * the promise doesn't block on a slow client. The writer briefly synchronizes
+ * on the request to make sure the continuation has been suspended, but
+ * doesn't hold the lock while writing so the timeout listener isn't blocked.
+ */
+function writeLater(request, continuation, jsgiResponse) {
+    var awaitSuspended = sync(function() {}, request);
+    AsyncWriter.execute(new java.lang.Runnable({
+        run: function() {
+            awaitSuspended();
+            try {
+                writeAsync(continuation.getServletResponse(), jsgiResponse);
+            } catch (error) {
+                log.error("Error writing JSGI async response", error);
+            } finally {
+                try {
+                    continuation.complete();
+                } catch (error) {
+                    // continuation already completed or timed out
+                }
+            }
+        }
+    }));
+}
+
 function handleAsyncResponse(request, response, result) {
     // support for asynchronous JSGI based on Jetty continuations
     // If result has a "suspend" method we just call it and return, letting
@@ -167,8 +185,7 @@ function handleAsyncResponse(request, response, result) {
         if (handled) return;
         log.debug("JSGI async response finished", value);
         handled = true;
-        writeAsync(continuation.getServletResponse(), value);
-        continuation.complete();
+        writeLater(request, continuation, value);
     }, request);
 
     var onError = sync(function(error) {
@@ -180,8 +197,7 @@ function handleAsyncResponse(request, response, result) {
             body: ["<!DOCTYPE html><html><body><h1>Error</h1><p>", String(error), "</p></body></html>"]
         };
         handled = true;
-        writeAsync(continuation.getServletResponse(), jsgiResponse);
-        continuation.complete();
+        writeLater(request, continuation, jsgiResponse);
     }, request);
 
     continuation.addContinuationListener(new ContinuationListener({
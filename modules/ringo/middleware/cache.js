@@ -0,0 +1,364 @@
+/**
+ * @fileOverview Middleware for caching complete responses in memory.
+ */
+
+var {ByteString} = require('binary');
+var {Headers, getMimeParameter} = require('ringo/utils/http');
+
+var {JsgiResponse, ResourceBody} = org.ringojs.jsgi;
+var {ConcurrentHashMap, CountDownLatch, TimeUnit} = java.util.concurrent;
+var {AtomicLong} = java.util.concurrent.atomic;
+
+export('middleware', 'ResponseCache');
+
+/**
+ * JSGI middleware that caches complete responses to GET and HEAD requests
+ * in memory.
+ *
+ * Only responses with status 200 are cached, unless they contain a
+ * `Set-Cookie` header, a `Cache-Control` header with `no-store`, `no-cache`
+ * or `private`, or a `Vary: *` header. Requests with an `Authorization`
+ * header are never served from the cache. Neither are requests with a
+ * `Cookie` header or a session ID, since the response may depend on the
+ * user's session, unless the `cookies` option is set. The response's `Vary` header is
+ * taken into account, so different representations of the same resource
+ * are cached separately. If a `Cache-Control` header with `max-age` is
+ * present, it is used as time to live instead of the configured `ttl`.
+ *
+ * HEAD requests are served from the cached response to a GET request for
+ * the same resource, but responses to HEAD requests are never stored, since
+ * they don't have a body.
+ *
+ * When several GET requests miss the cache for the same resource at the same
+ * time, only the first one is passed on to the application. The others
+ * wait for its response and are served from the cache.
+ *
+ * Response bodies are stored as a single ByteString, so cached responses
+ * are written without re-encoding.
+ *
+ * This function can either be called with a JSGI application, or with a
+ * configuration object, in which case it returns a function that can be
+ * used to wrap a JSGI app.
+ *
+ * #### Configuration properties
+ *
+ *  - `ttl`: the time to live of cached responses in seconds, defaults to 60
+ *  - `maxEntries`: the maximal number of cached responses, defaults to 1000
+ *  - `maxSize`: the maximal number of bytes in cached bodies, defaults to 16 MB
+ *  - `maxEntrySize`: the maximal size of a single cached body, defaults to 1 MB
+ *  - `timeout`: the maximal number of milliseconds a request waits for a
+ *    concurrent request to compute the response, defaults to 10000
+ *  - `cache`: a `ResponseCache` instance to use. This can be used to share
+ *    a cache between applications or to access its statistics.
+ *  - `cookies`: whether requests with cookies or a session ID may be served
+ *    from and stored in the cache, defaults to false. Only enable this if
+ *    responses don't depend on cookies, or list the relevant cookies in
+ *    the response's `Vary` header.
+ *
+ * @param {Function|Object} app the JSGI application, or a configuration object
+ * @returns the wrapped JSGI app
+ */
+function middleware(app) {
+    if (typeof app !== "function") {
+        var config = app || {};
+        return function(app) {
+            return wrap(app, config);
+        };
+    }
+    return wrap(app, {});
+}
+
+function wrap(app, config) {
+    var cache = config.cache || new ResponseCache(config);
+    var ttl = (config.ttl || 60) * 1000;
+    var timeout = config.timeout || 10000;
+    var maxEntrySize = config.maxEntrySize || 1024 * 1024;
+    var cookies = !!config.cookies;
+    // latches of requests currently computing a response
+    var pending = new ConcurrentHashMap();
+
+    return function(request) {
+        if (!isCacheableRequest(request, cookies)) {
+            return app(request);
+        }
+        var url = getUrl(request);
+        var key = cache.getKey(url, request);
+        var response = cache.get(key);
+        if (request.method === "HEAD") {
+            if (response) {
+                response.body = [];
+                return response;
+            }
+            return app(request);
+        }
+        if (response) {
+            return response;
+        }
+        var latch = new CountDownLatch(1);
+        var running = pending.putIfAbsent(key, latch);
+        if (running) {
+            // wait for the concurrent request and use its response
+            cache.coalesced.incrementAndGet();
+            running.await(timeout, TimeUnit.MILLISECONDS);
+            response = cache.get(cache.getKey(url, request));
+            if (response) {
+                return response;
+            }
+            return app(request);
+        }
+        try {
+            response = app(request);
+            var maxAge = getMaxAge(response);
+            if (maxAge !== false) {
+                var entry = serialize(response, maxEntrySize);
+                if (entry) {
+                    entry.expires = Date.now() + (maxAge == null ? ttl : maxAge * 1000);
+                    cache.put(url, request, entry);
+                    return copy(entry);
+                }
+            }
+            return response;
+        } finally {
+            pending.remove(key, latch);
+            latch.countDown();
+        }
+    };
+}
+
+/**
+ * A bounded in-memory cache for JSGI responses, evicting the least recently
+ * used entries when full.
+ * @param {Object} options optional object with `maxEntries` and `maxSize`
+ *         properties
+ * @class ResponseCache
+ */
+function ResponseCache(options) {
+    options = options || {};
+    var maxEntries = options.maxEntries || 1000;
+    var maxSize = options.maxSize || 16 * 1024 * 1024;
+    // access ordered map from key to entry
+    var entries = new java.util.LinkedHashMap(16, 0.75, true);
+    // header names from the Vary header of the last response for each url
+    var varies = new ConcurrentHashMap();
+    var size = 0;
+
+    var hits = new AtomicLong();
+    var misses = new AtomicLong();
+    var evictions = new AtomicLong();
+    var expirations = new AtomicLong();
+    this.coalesced = new AtomicLong();
+
+    /**
+     * Get the cache key for a request to the given url, taking into account
+     * the request headers listed in the Vary header of previous responses.
+     * @param {String} url the request url
+     * @param {Object} request the JSGI request
+     * @returns {String} the cache key
+     */
+    this.getKey = function(url, request) {
+        var names = varies.get(url);
+        if (!names) {
+            return url;
+        }
+        var key = [url];
+        for each (var name in names) {
+            key.push(name + ":" + (request.headers[name] || ""));
+        }
+        return key.join("\n");
+    };
+
+    /**
+     * Get a cached response.
+     * @param {String} key the cache key
+     * @returns {Object} a copy of the cached response, or null
+     */
+    this.get = sync(function(key) {
+        var entry = entries.get(key);
+        if (entry && entry.expires <= Date.now()) {
+            remove(key);
+            expirations.incrementAndGet();
+            entry = null;
+        }
+        if (!entry) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return copy(entry);
+    }, this);
+
+    /**
+     * Store a serialized response in the cache.
+     * @param {String} url the request url
+     * @param {Object} request the JSGI request
+     * @param {Object} entry the entry as returned by serialize()
+     */
+    this.put = sync(function(url, request, entry) {
+        if (entry.vary.length) {
+            varies.put(url, entry.vary);
+        } else {
+            varies.remove(url);
+        }
+        var key = this.getKey(url, request);
+        remove(key);
+        entries.put(key, entry);
+        size += entry.size;
+        var it = entries.entrySet().iterator();
+        while ((size > maxSize || entries.size() > maxEntries) && it.hasNext()) {
+            var eldest = it.next().getValue();
+            if (eldest === entry) {
+                continue;
+            }
+            it.remove();
+            size -= eldest.size;
+            evictions.incrementAndGet();
+        }
+    }, this);
+
+    function remove(key) {
+        var entry = entries.remove(key);
+        if (entry) {
+            size -= entry.size;
+        }
+    }
+
+    /**
+     * Remove all responses from the cache.
+     */
+    this.clear = sync(function() {
+        entries.clear();
+        varies.clear();
+        size = 0;
+    }, this);
+
+    /**
+     * Get the cache statistics. The returned object contains the following
+     * properties:
+     *
+     *  - entries the number of cached responses
+     *  - size the number of bytes in cached bodies
+     *  - hits the number of requests served from the cache
+     *  - misses the number of requests not found in the cache
+     *  - coalesced the number of requests that waited for a concurrent
+     *    request to compute the response
+     *  - evictions the number of responses removed to make room for others
+     *  - expirations the number of responses removed because they expired
+     *
+     * @returns {Object} the cache statistics
+     */
+    this.getStats = sync(function() {
+        return {
+            entries: entries.size(),
+            size: size,
+            hits: hits.get(),
+            misses: misses.get(),
+            coalesced: this.coalesced.get(),
+            evictions: evictions.get(),
+            expirations: expirations.get()
+        };
+    }, this);
+}
+
+function isCacheableRequest(request, cookies) {
+    if ((request.method !== "GET" && request.method !== "HEAD")
+            || request.headers.authorization) {
+        return false;
+    }
+    return cookies || !request.headers.cookie && !hasSessionId(request);
+}
+
+/**
+ * Check whether the request carries a session ID in its URL.
+ */
+function hasSessionId(request) {
+    var servletRequest = request.env && request.env.servletRequest;
+    return Boolean(servletRequest && servletRequest.getRequestedSessionId());
+}
+
+function getUrl(request) {
+    var url = (request.headers.host || "") + request.scriptName + request.pathInfo;
+    return request.queryString ? url + "?" + request.queryString : url;
+}
+
+/**
+ * Get the max-age of a response, null if the default ttl applies, or false
+ * if the response must not be cached.
+ */
+function getMaxAge(response) {
+    if (!response || typeof response.then === "function"
+            || response.status != 200 || !response.headers || !response.body
+            || response.body instanceof ResourceBody) {
+        return false;
+    }
+    var headers = Headers(response.headers);
+    if (headers.get("Set-Cookie") || headers.get("X-JSGI-Skip-Response")) {
+        return false;
+    }
+    var vary = headers.get("Vary");
+    if (vary && String(vary).indexOf("*") > -1) {
+        return false;
+    }
+    var cacheControl = headers.get("Cache-Control");
+    if (cacheControl) {
+        cacheControl = String(cacheControl).toLowerCase();
+        if (/no-store|no-cache|private/.test(cacheControl)) {
+            return false;
+        }
+        var match = /(?:^|[,\s])max-age\s*=\s*(\d+)/.exec(cacheControl);
+        if (match) {
+            return parseInt(match[1], 10) || false;
+        }
+    }
+    return null;
+}
+
+/**
+ * Write the response body into a single ByteString and create a cache
+ * entry from the response. Returns null if the body is too large.
+ */
+function serialize(response, maxEntrySize) {
+    var headers = Headers(response.headers);
+    var contentType = headers.get("Content-Type");
+    var charset = contentType && getMimeParameter(String(contentType), "charset");
+    var output = new java.io.ByteArrayOutputStream();
+    JsgiResponse.writeBody(output, response.body, charset || "utf-8");
+    var body = new ByteString(output.toByteArray());
+    // the original body has been consumed
+    response.body = [body];
+    if (body.length > maxEntrySize) {
+        return null;
+    }
+    var vary = [];
+    var varyHeader = headers.get("Vary");
+    if (varyHeader) {
+        vary = String(varyHeader).split(",").map(function(name) {
+            return name.trim().toLowerCase();
+        }).filter(function(name) {
+            return name.length > 0;
+        });
+    }
+    return {
+        status: response.status,
+        headers: copyHeaders(response.headers),
+        body: body,
+        size: body.length,
+        vary: vary
+    };
+}
+
+function copy(entry) {
+    return {
+        status: entry.status,
+        headers: copyHeaders(entry.headers),
+        body: [entry.body]
+    };
+}
+
+function copyHeaders(headers) {
+    var result = {};
+    for (var name in headers) {
+        var value = headers[name];
+        result[name] = Array.isArray(value) ? value.slice() : value;
+    }
+    return result;
+}
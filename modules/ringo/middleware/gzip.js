@@ -1,20 +1,48 @@
 /**
  * @fileOverview Middleware for on-the-fly GZip compression of response bodies.
  */
-var {Binary, ByteArray, ByteString} = require('binary');
-var {ResponseFilter, Headers} = require('ringo/utils/http');
+var {Headers, getMimeParameter} = require('ringo/utils/http');
 
-var {ByteArrayOutputStream} = java.io;
-var {GZIPOutputStream} = java.util.zip;
+var {GzipBody, ResourceBody} = org.ringojs.jsgi;
+var {Deflater} = java.util.zip;
 
 export('middleware');
 
 /**
  * JSGI middleware for GZIP compression.
- * @param app the JSGI application
+ *
+ * Static resources are served from a precompressed `.gz` sibling file if
+ * one exists, or from a cached compressed copy. Other response bodies are
+ * compressed as they are written.
+ *
+ * This function can either be called with a JSGI application, or with a
+ * configuration object, in which case it returns a function that can be
+ * used to wrap a JSGI app.
+ *
+ * #### Configuration properties
+ *
+ *  - `level`: the compression level from 0 (none) to 9 (best), defaults
+ *    to the zlib default level
+ *  - `precompressed`: whether to look for precompressed `.gz` files for
+ *    static resources, defaults to `true`
+ *
+ * @param {Function|Object} app the JSGI application, or a configuration object
  * @returns the wrapped JSGI app
  */
 function middleware(app) {
+    if (typeof app !== "function") {
+        var config = app || {};
+        return function(app) {
+            return wrap(app, config);
+        };
+    }
+    return wrap(app, {});
+}
+
+function wrap(app, config) {
+    var level = typeof config.level === "number" ?
+            config.level : Deflater.DEFAULT_COMPRESSION;
+    var precompressed = config.precompressed !== false;
     return function(request) {
         var res = app(request);
         var headers = Headers(res.headers);
@@ -22,26 +50,18 @@ function middleware(app) {
                 request.headers["accept-encoding"],
                 headers.get('Content-Type'),
                 headers.get('Content-Encoding'))) {
-            var bytes = new ByteArrayOutputStream();
-            var gzip = new GZIPOutputStream(bytes);
-            res.body = new ResponseFilter(res.body, function(part) {
-                if (!(part instanceof Binary)) {
-                    part = part.toByteString();
-                }
-                gzip.write(part);
-                if (bytes.size() > 1024) {
-                    var zipped = bytes.toByteArray();
-                    bytes.reset();
-                    return new ByteString(zipped);
-                }
-                return null;
-            });
-            res.body.close = function(fn) {
-                gzip.close();
-                fn(new ByteString(bytes.toByteArray()));
-            };
-            // headers.set('Content-Length', res.body.length)
+            var body = res.body;
+            var compressed = body instanceof ResourceBody ?
+                    body.getGzipBody(level, precompressed) : null;
+            if (!compressed) {
+                var contentType = headers.get('Content-Type');
+                compressed = new GzipBody(body,
+                        getMimeParameter(contentType, "charset") || null, level);
+                headers.unset('Content-Length');
+            }
+            res.body = compressed;
             headers.set('Content-Encoding', 'gzip');
+            headers.add('Vary', 'Accept-Encoding');
         }
         return res;
     }
@@ -4,6 +4,7 @@
 
 var {Response} = require("ringo/webapp/response");
 var {mimeType} = require("ringo/webapp/mime");
+var {ResourceCache} = org.ringojs.jsgi;
 
 /**
  * Middleware for serving static resources.
@@ -14,35 +15,95 @@ var {mimeType} = require("ringo/webapp/mime");
  *  - `base`: the base resource directory (required)
  *  - `index`: the name of a file to serve if the path matches a directory (e.g.
  *    "index.html")
+ *  - `cache`: whether to keep resource content in memory. Defaults to `true`,
+ *    which uses the shared resource cache configured by the
+ *    `ringo.static.cache.entries`, `ringo.static.cache.size`,
+ *    `ringo.static.cache.directsize` and `ringo.static.cache.directthreshold`
+ *    system properties. May also be an object with `maxEntries`, `maxSize`,
+ *    `maxDirectSize`, `directThreshold` and `revalidate` properties to create
+ *    a separate cache, or `false` to disable caching.
+ *
+ * The function returned by the middleware and the app it creates both have a
+ * `getCacheStats()` method returning the statistics of the cache they use,
+ * or null if caching is disabled.
  *
  * @param {Object} config configuration properties
  * @returns {Function} a function that can be used to wrap a JSGI app
  */
 exports.middleware = function(config) {
-    var index, base;
+    var index, base, cache = true;
     if (typeof config === "string" || config instanceof org.ringojs.repository.Repository) {
         base = config;
     } else {
         base = config.base;
         index = config.index;
+        if (config.cache !== undefined) {
+            cache = config.cache;
+        }
+    }
+    if (cache === true) {
+        cache = ResourceCache.getInstance();
+    } else if (cache && !(cache instanceof ResourceCache)) {
+        cache = new ResourceCache(cache.maxEntries || 1000,
+                cache.maxSize || 32 * 1024 * 1024,
+                cache.maxDirectSize || 64 * 1024 * 1024,
+                cache.directThreshold || 256 * 1024,
+                cache.revalidate === undefined ? 1000 : cache.revalidate);
     }
+    var getStats = function() {
+        return cache ? exports.getCacheStats(cache) : null;
+    };
     if (typeof base === "string") {
         base = getRepository(base);
     }
     base.setRoot();
-    return function(app) {
-        return function(request) {
+    var wrapper = function(app) {
+        var handler = function(request) {
             var path = request.pathInfo;
             if (index && path.charAt(path.length-1) === "/") {
                 path += index;
             }
             if (path.length > 1) {
                 var resource = base.getResource(path);
-                if (resource && resource.exists()) {
-                    return Response.static(resource, mimeType(path, "text/plain"));
+                // resources cached recently are known to exist
+                if (resource && (cache && cache.isCached(resource) || resource.exists())) {
+                    return Response.static(resource, mimeType(path, "text/plain"), cache);
                 }
             }
             return app(request);
-        }
+        };
+        handler.getCacheStats = getStats;
+        return handler;
+    };
+    wrapper.getCacheStats = getStats;
+    return wrapper;
+};
+
+/**
+ * Get the statistics of a static resource cache, by default the shared
+ * instance. The returned object contains the following properties:
+ *
+ *  - entries the number of cached resources
+ *  - size the number of bytes kept on the heap
+ *  - directSize the number of bytes kept in direct buffers
+ *  - hits the number of requests served from the cache
+ *  - misses the number of requests that had to load the resource
+ *  - evictions the number of entries removed to make room for others
+ *  - invalidations the number of entries removed because the resource changed
+ *  - maxEntries the maximal number of entries
+ *  - maxSize the maximal number of bytes kept on the heap
+ *  - maxDirectSize the maximal number of bytes kept in direct buffers
+ *  - revalidateInterval the milliseconds after which entries are validated
+ *    against their resource again
+ *
+ * @param {org.ringojs.jsgi.ResourceCache} cache optional resource cache
+ * @returns {Object} an object containing the cache statistics
+ */
+exports.getCacheStats = function(cache) {
+    var stats = new ScriptableMap((cache || ResourceCache.getInstance()).getStats());
+    var result = {};
+    for (var key in stats) {
+        result[key] = Number(stats[key]);
     }
+    return result;
 };
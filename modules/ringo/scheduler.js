@@ -3,14 +3,14 @@
  * functions.
  */
 
-var {newScheduledThreadPool, newCachedThreadPool} =
-        java.util.concurrent.Executors;
-var {Callable, ThreadFactory} = java.util.concurrent;
+var {newScheduledThreadPool} = java.util.concurrent.Executors;
+var {Callable, FutureTask, ThreadFactory} = java.util.concurrent;
 var {MILLISECONDS} = java.util.concurrent.TimeUnit;
 
 var ids = new java.util.concurrent.atomic.AtomicInteger();
 
-var executor = executor || newCachedThreadPool();
+// callbacks run on the bounded thread pool shared with spawn()
+var executor = executor || org.ringojs.engine.SpawnExecutor.getInstance();
 var scheduler = scheduler || newScheduledThreadPool(4, new ThreadFactory({
     newThread: function(runnable) {
         var thread = new java.lang.Thread(runnable,
@@ -41,9 +41,30 @@ exports.setTimeout = function(callback, delay) {
     });
     delay = parseInt(delay, 10) || 0;
     global.increaseAsyncCount();
-    return delay == 0 ?
-            executor.submit(runnable) :
-            scheduler.schedule(runnable, delay, MILLISECONDS);
+    try {
+        if (delay == 0) {
+            // never run the callback synchronously in the calling thread,
+            // even if the pool is exhausted
+            var future = new FutureTask(runnable);
+            executor.executeLater(future);
+            return future;
+        }
+        // scheduler threads just hand over due callbacks to the executor
+        // so a slow callback can't hold up other timeouts. Callbacks are
+        // never run on a scheduler thread, even if the pool is exhausted.
+        return scheduler.schedule(new java.lang.Runnable({
+            run: function() {
+                try {
+                    executor.executeLater(new FutureTask(runnable));
+                } catch (e) {
+                    global.decreaseAsyncCount();
+                }
+            }
+        }), delay, MILLISECONDS);
+    } catch (e) {
+        global.decreaseAsyncCount();
+        throw e;
+    }
 };
 
 /**
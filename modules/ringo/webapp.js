@@ -4,6 +4,7 @@
 
 // import modules
 var strings = require('ringo/utils/strings');
+var objects = require('ringo/utils/objects');
 var {Request} = require('ringo/webapp/request');
 var {Response} = require('ringo/webapp/response');
 var system = require('system');
@@ -33,6 +34,9 @@ function handleRequest(req) {
 
     req = Request(req);
     req.charset = config.charset || 'utf8';
+    if (config.limits) {
+        req.limits = objects.merge(config.limits, req.limits);
+    }
     // URI-decode path-info
     req.pathInfo = decodeURI(req.pathInfo);
     // set current request in webapp env module
@@ -61,35 +65,191 @@ function resolveInConfig(req, config, configId) {
         throw {notfound: true};
     }
 
-    for each (var urlEntry in config.urls) {
+    var dispatcher = getDispatcher(config, configId);
+    var path = req.pathInfo;
+    var index = -1;
+    while ((index = dispatcher.find(path, index + 1)) > -1) {
+        var route = dispatcher.routes[index];
+        var urlEntry = route.spec;
+        var match = route.pattern.exec(path);
+        log.debug("got match: {} for url line {}", match, urlEntry);
+
+        var module = getModule(route.moduleId);
+        log.debug("Resolved module: {} -> {}", route.moduleId, module);
+        // move matching path fragment from PATH_INFO to SCRIPT_NAME
+        var remainingPath = getRemainingPath(req, match[0]);
+        // prepare action arguments, adding regexp capture groups if any
+        var args = [req].concat(match.slice(1));
+        // lookup action in module
+        var action = getAction(req, module, urlEntry, remainingPath, args);
+        // log.debug("got action: " + action);
+        if (typeof action == "function") {
+            return action.apply(module, args);
+        } else if (Array.isArray(module.urls)) {
+            shiftPath(req, remainingPath);
+            return resolveInConfig(req, module, route.moduleId);
+        }
+    }
+    throw { notfound: true };
+}
+
+/**
+ * Get the dispatcher for a config module's url mappings. The dispatcher is
+ * compiled once and kept with the urls array, so it is rebuilt when the
+ * config module is reloaded and defines a new array.
+ */
+function getDispatcher(config, configId) {
+    var urls = config.urls;
+    var dispatcher = urls.__dispatcher__;
+    if (!dispatcher || dispatcher.length !== urls.length
+            || dispatcher.configId !== configId) {
+        dispatcher = new Dispatcher(urls, configId);
+        Object.defineProperty(urls, "__dispatcher__", {
+            value: dispatcher, configurable: true
+        });
+    }
+    return dispatcher;
+}
+
+/**
+ * A precompiled table of url mappings. Patterns that are anchored literal
+ * strings such as `"^/foo/bar"` are looked up in a character trie, all other
+ * patterns are combined into a single regular expression that tells which
+ * mapping matches first. Patterns that can't be combined, such as
+ * case-insensitive patterns or patterns with back references, are
+ * checked one by one.
+ */
+function Dispatcher(urls, configId) {
+    this.length = urls.length;
+    this.configId = configId;
+    this.routes = [];
+    var trie = new Trie();
+    var alternatives = [];
+    var separate = [];
+    var count = 1;
+    for each (var urlEntry in urls) {
         if (!Array.isArray(urlEntry) || urlEntry.length < 2) {
             log.info("Ignoring unsupported URL mapping: " + urlEntry);
             continue;
         }
-        log.debug("checking url line: {} against {}", urlEntry, req.pathInfo);
-        var match = getPattern(urlEntry).exec(req.pathInfo);
-        log.debug("got match: {}", match);
+        var index = this.routes.length;
+        var route = {
+            spec: urlEntry,
+            pattern: getPattern(urlEntry),
+            moduleId: resolveId(configId, urlEntry)
+        };
+        this.routes.push(route);
+        var pattern = route.pattern;
+        var literal = getAnchoredLiteral(pattern);
+        if (literal != null) {
+            trie.add(literal, index);
+        } else if (pattern.ignoreCase || pattern.multiline || /\\[1-9]/.test(pattern.source)) {
+            separate.push(index);
+        } else {
+            // a lookahead finds the first match anywhere in the path while
+            // the alternation makes sure the earliest mapping wins
+            alternatives.push("(?=[\\s\\S]*?(" + pattern.source + "))");
+            route.group = count;
+            count += 1 + getGroupCount(pattern);
+        }
+    }
+    this.trie = trie;
+    this.separate = separate;
+    this.combined = alternatives.length ?
+            new RegExp("^(?:" + alternatives.join("|") + ")") : null;
+}
 
+/**
+ * Find the first mapping at or after the given index that matches the path.
+ * @returns the index of the mapping, or -1 if no mapping matches
+ */
+Dispatcher.prototype.find = function(path, start) {
+    var routes = this.routes;
+    if (start > 0) {
+        // a mapping matched but didn't resolve to an action, continue
+        // with the remaining ones in order
+        for (var i = start; i < routes.length; i++) {
+            if (routes[i].pattern.test(path)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+    var best = this.trie.find(path);
+    if (this.combined) {
+        var match = this.combined.exec(path);
         if (match) {
-            var moduleId = resolveId(configId, urlEntry);
-            var module = getModule(moduleId);
-            log.debug("Resolved module: {} -> {}", moduleId, module);
-            // move matching path fragment from PATH_INFO to SCRIPT_NAME
-            var remainingPath = getRemainingPath(req, match[0]);
-            // prepare action arguments, adding regexp capture groups if any
-            var args = [req].concat(match.slice(1));
-            // lookup action in module
-            var action = getAction(req, module, urlEntry, remainingPath, args);
-            // log.debug("got action: " + action);
-            if (typeof action == "function") {
-                return action.apply(module, args);
-            } else if (Array.isArray(module.urls)) {
-                shiftPath(req, remainingPath);
-                return resolveInConfig(req, module, moduleId);
+            for (var i = 0; i < routes.length && (best < 0 || i < best); i++) {
+                var group = routes[i].group;
+                if (group && match[group] != null) {
+                    best = i;
+                    break;
+                }
             }
         }
     }
-    throw { notfound: true };
+    for each (var i in this.separate) {
+        if (best > -1 && i > best) {
+            break;
+        }
+        if (routes[i].pattern.test(path)) {
+            best = i;
+            break;
+        }
+    }
+    return best;
+};
+
+/**
+ * A character trie mapping anchored literal patterns to mapping indexes.
+ */
+function Trie() {
+    this.root = {children: {}, index: -1};
+}
+
+Trie.prototype.add = function(literal, index) {
+    var node = this.root;
+    for (var i = 0; i < literal.length; i++) {
+        var c = literal[i];
+        if (!Object.prototype.hasOwnProperty.call(node.children, c)) {
+            node.children[c] = {children: {}, index: -1};
+        }
+        node = node.children[c];
+    }
+    if (node.index < 0) {
+        node.index = index;
+    }
+};
+
+/**
+ * Get the lowest index of all literals that are a prefix of the path.
+ */
+Trie.prototype.find = function(path) {
+    var node = this.root;
+    var best = node.index;
+    for (var i = 0; i < path.length; i++) {
+        var c = path[i];
+        if (!Object.prototype.hasOwnProperty.call(node.children, c)) {
+            break;
+        }
+        node = node.children[c];
+        if (node.index > -1 && (best < 0 || node.index < best)) {
+            best = node.index;
+        }
+    }
+    return best;
+};
+
+function getAnchoredLiteral(pattern) {
+    if (pattern.ignoreCase || pattern.multiline) {
+        return null;
+    }
+    var match = /^\^((?:[^\\^$.|?*+()\[\]{}]|\\[^\w])*)$/.exec(pattern.source);
+    return match ? match[1].replace(/\\(.)/g, "$1") : null;
+}
+
+function getGroupCount(pattern) {
+    return new RegExp(pattern.source + "|").exec("").length - 1;
 }
 
 function getPattern(spec) {
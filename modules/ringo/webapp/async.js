@@ -3,10 +3,18 @@
  * HTTP responses. Asynchronous responses can be handled by the original thread
  * handling a HTTP request, or any other thread. Note that streaming async responses
  * are not JSGI compatible and therefore not passed through the JSGI middleware stack.
+ *
+ * Once the response has been suspended, writes are queued and written to the
+ * client by a shared pool of writer threads, so threads producing content
+ * never block on slow clients. The number of bytes queued for a client is
+ * limited. If a client falls so far behind that a write would exceed the
+ * limit, or if the client closed the connection, the response is aborted
+ * and the write throws an error.
  */
 
 var {Binary} = require('binary');
 var {writeHeaders} = require('ringo/jsgi');
+var {AsyncWriter} = org.ringojs.jsgi;
 
 export('AsyncResponse');
 
@@ -18,12 +26,16 @@ export('AsyncResponse');
  * @param {Object} request the JSGI request object
  * @param {Number} timeout the response timeout in milliseconds. Defaults to 30 seconds.
  * @param {Boolean} autoflush whether to flush after each write.
+ * @param {Number} maxPending the maximal number of bytes queued for writing
+ * to the client. Defaults to 1 MB, 0 means no limit.
  */
-function AsyncResponse(request, timeout, autoflush) {
+function AsyncResponse(request, timeout, autoflush, maxPending) {
     var req = request.env.servletRequest;
     var res = request.env.servletResponse;
     var state = 0; // 1: headers written, 2: closed
     var continuation;
+    // queues writes once the response has been suspended
+    var writer;
     return {
         /**
          * Set the HTTP status code and headers of the response. This method must only
@@ -50,6 +62,9 @@ function AsyncResponse(request, timeout, autoflush) {
           * @param {String|Binary} data a binary or string
           * @param {String} [encoding] the encoding to use
           * @returns this response object for chaining
+          * @throws Error if the response has been closed, or if it had to be
+          * aborted because the client closed the connection or couldn't keep
+          * up with the data written
           * @name AsyncResponse.prototype.write
           */
          write: sync(function(data, encoding) {
@@ -57,11 +72,20 @@ function AsyncResponse(request, timeout, autoflush) {
                 throw new Error("Response has been closed");
             }
             state = 1;
-            if (continuation) {
-                res = continuation.getServletResponse();
+            data = data instanceof Binary ? data : String(data).toByteArray(encoding);
+            if (writer) {
+                if (!writer.write(data)) {
+                    // the client is gone or too slow, release it right away
+                    var disconnected = writer.isFailed();
+                    state = 2;
+                    writer.abort();
+                    throw new Error(disconnected ?
+                            "Response aborted: client closed the connection" :
+                            "Response aborted: client too slow");
+                }
+                return this;
             }
             var out = res.getOutputStream();
-            data = data instanceof Binary ? data : String(data).toByteArray(encoding);
             out.write(data);
             if (autoflush) {
                 out.flush();
@@ -79,10 +103,11 @@ function AsyncResponse(request, timeout, autoflush) {
                 throw new Error("Response has been closed");
             }
             state = 1;
-            if (continuation) {
-                res = continuation.getServletResponse();
+            if (writer) {
+                writer.flush();
+            } else {
+                res.getOutputStream().flush();
             }
-            res.getOutputStream().flush();
             return this;
         }),
         /**
@@ -96,12 +121,11 @@ function AsyncResponse(request, timeout, autoflush) {
                 throw new Error("close() must only be called once");
             }
             state = 2;
-            if (continuation) {
-                res = continuation.getServletResponse();
-            }
-            res.getOutputStream().close();
-            if (continuation) {
-                continuation.complete();
+            if (writer) {
+                // completes the continuation once all data has been written
+                writer.close();
+            } else {
+                res.getOutputStream().close();
             }
         }),
         // Used internally by ringo/jsgi
@@ -111,6 +135,10 @@ function AsyncResponse(request, timeout, autoflush) {
                 continuation = ContinuationSupport.getContinuation(req);
                 continuation.setTimeout(timeout || 30000);
                 continuation.suspend(res);
+                res = continuation.getServletResponse();
+                writer = new AsyncWriter(res.getOutputStream(), continuation,
+                        maxPending == null ? 1024 * 1024 : maxPending,
+                        Boolean(autoflush));
             }
         })
     };
@@ -0,0 +1,283 @@
+/**
+ * @fileOverview Support for pushing server-sent events to many clients.
+ *
+ * An EventSource keeps a set of subscribed clients and sends events to all
+ * of them. Each event is encoded once into a ByteString that is shared by
+ * all subscribers, and written by the shared pool of async writer threads,
+ * so sending an event never blocks on a slow client.
+ *
+ * @example
+ * var events = new EventSource();
+ * exports.app = function(request) {
+ *     return events.connect(request);
+ * };
+ * // from any thread
+ * events.send(JSON.stringify(stats), {event: "stats"});
+ */
+
+var {ByteString} = require('binary');
+var {setInterval, clearInterval} = require('ringo/scheduler');
+var {writeHeaders} = require('ringo/jsgi');
+var log = require('ringo/logging').getLogger(module.id);
+
+var {AsyncWriter} = org.ringojs.jsgi;
+var {ContinuationSupport, ContinuationListener} = org.eclipse.jetty.continuation;
+var {ConcurrentHashMap} = java.util.concurrent;
+var {AtomicLong} = java.util.concurrent.atomic;
+
+export('EventSource', 'encodeEvent');
+
+/**
+ * Create a new event source.
+ *
+ * #### Options
+ *
+ *  - `maxPending`: the maximal number of bytes queued for a single
+ *    subscriber, defaults to 64 KB
+ *  - `slowConsumer`: what to do with a subscriber whose queue is full:
+ *    `"disconnect"` (the default) discards its queued events and closes its
+ *    connection right away, `"drop"` skips the event for that subscriber
+ *  - `keepAlive`: the interval in milliseconds at which a comment is sent
+ *    to keep connections open and detect closed ones, defaults to 15000.
+ *    0 disables keep-alive messages.
+ *  - `retry`: the reconnection time in milliseconds sent to new subscribers
+ *  - `timeout`: the maximal time in milliseconds a connection is kept
+ *    open, defaults to one hour
+ *
+ * @param {Object} options optional options object
+ * @class EventSource
+ */
+function EventSource(options) {
+    if (!(this instanceof EventSource)) {
+        return new EventSource(options);
+    }
+    options = options || {};
+    var maxPending = options.maxPending || 64 * 1024;
+    var dropEvents = options.slowConsumer === "drop";
+    var keepAlive = typeof options.keepAlive === "number" ? options.keepAlive : 15000;
+    var timeout = options.timeout || 60 * 60 * 1000;
+    var subscribers = new ConcurrentHashMap();
+    var interval = null;
+
+    var sent = new AtomicLong();
+    var dropped = new AtomicLong();
+    var disconnected = new AtomicLong();
+
+    var KEEP_ALIVE = new ByteString(":\n\n", "utf-8");
+
+    /**
+     * Subscribe the client sending a request to this event source. The
+     * returned subscriber must be returned from the JSGI application.
+     * @param {Object} request the JSGI request
+     * @returns {Subscriber} the subscriber
+     */
+    this.connect = function(request) {
+        var req = request.env.servletRequest;
+        var res = request.env.servletResponse;
+        var continuation = ContinuationSupport.getContinuation(req);
+        res.setStatus(200);
+        writeHeaders(res, {
+            "Content-Type": "text/event-stream; charset=utf-8",
+            "Cache-Control": "no-cache"
+        });
+        continuation.setTimeout(timeout);
+        continuation.suspend(res);
+        var writer = new AsyncWriter(continuation.getServletResponse().getOutputStream(),
+                continuation, maxPending, true);
+        var subscriber = new Subscriber(writer, request);
+        continuation.addContinuationListener(new ContinuationListener({
+            onComplete: function() {
+                subscribers.remove(subscriber);
+            },
+            onTimeout: function() {
+                subscribers.remove(subscriber);
+                writer.close();
+            }
+        }));
+        subscribers.put(subscriber, subscriber);
+        // send the headers right away
+        writer.write(options.retry ?
+                encodeEvent(null, {retry: options.retry}) : KEEP_ALIVE);
+        startKeepAlive();
+        log.debug("EventSource subscriber connected");
+        return subscriber;
+    };
+
+    /**
+     * Send an event to all subscribers. This never blocks: the event is
+     * queued for each subscriber and written by writer threads.
+     * @param {String|Binary} data the event data
+     * @param {Object} options optional object with `event`, `id` and
+     *        `retry` properties
+     * @returns {Number} the number of subscribers the event was queued for
+     */
+    this.send = function(data, options) {
+        sent.incrementAndGet();
+        return broadcast(encodeEvent(data, options));
+    };
+
+    function broadcast(bytes) {
+        var count = 0;
+        var it = subscribers.keySet().iterator();
+        while (it.hasNext()) {
+            var subscriber = it.next();
+            if (subscriber.writer.write(bytes)) {
+                count += 1;
+            } else if (dropEvents && !subscriber.writer.isFailed()
+                    && !subscriber.writer.isClosed()) {
+                dropped.incrementAndGet();
+            } else {
+                it.remove();
+                // don't queue a close behind data the client isn't reading
+                subscriber.writer.abort();
+                disconnected.incrementAndGet();
+            }
+        }
+        return count;
+    }
+
+    function startKeepAlive() {
+        if (keepAlive > 0 && !interval) {
+            sync(function() {
+                if (!interval) {
+                    interval = setInterval(broadcast, keepAlive, KEEP_ALIVE);
+                }
+            }, subscribers)();
+        }
+    }
+
+    /**
+     * Get the number of connected subscribers.
+     * @returns {Number} the number of subscribers
+     */
+    this.getSubscriberCount = function() {
+        return subscribers.size();
+    };
+
+    /**
+     * Get statistics about this event source. The returned object contains
+     * the following properties:
+     *
+     *  - subscribers the number of connected subscribers
+     *  - sent the number of events sent
+     *  - dropped the number of events skipped for slow subscribers
+     *  - disconnected the number of subscribers disconnected because they
+     *    were too slow or their connection was closed
+     *
+     * @returns {Object} the statistics
+     */
+    this.getStats = function() {
+        return {
+            subscribers: subscribers.size(),
+            sent: sent.get(),
+            dropped: dropped.get(),
+            disconnected: disconnected.get()
+        };
+    };
+
+    /**
+     * Disconnect all subscribers and stop sending keep-alive messages.
+     */
+    this.close = function() {
+        sync(function() {
+            if (interval) {
+                clearInterval(interval);
+                interval = null;
+            }
+        }, subscribers)();
+        var it = subscribers.keySet().iterator();
+        while (it.hasNext()) {
+            var subscriber = it.next();
+            it.remove();
+            subscriber.close();
+        }
+    };
+}
+
+/**
+ * A client subscribed to an EventSource. Subscribers are returned by
+ * `EventSource.connect()` and must be returned from the JSGI application.
+ * @param {AsyncWriter} writer the writer for the subscriber's response
+ * @param {Object} request the JSGI request
+ * @class Subscriber
+ */
+function Subscriber(writer, request) {
+    this.writer = writer;
+    /**
+     * The value of the client's Last-Event-ID header, or null.
+     * @type String
+     */
+    this.lastEventId = request.headers["last-event-id"] || null;
+}
+
+/**
+ * Send an event to this subscriber only.
+ * @param {String|Binary} data the event data
+ * @param {Object} options optional object with `event`, `id` and `retry`
+ *        properties
+ * @returns {Boolean} true if the event was queued
+ */
+Subscriber.prototype.send = function(data, options) {
+    return this.writer.write(encodeEvent(data, options));
+};
+
+/**
+ * Close this subscriber's connection.
+ */
+Subscriber.prototype.close = function() {
+    this.writer.close();
+};
+
+/**
+ * Used internally by ringo/jsgi. The response is already suspended
+ * when the subscriber is created.
+ * @ignore
+ */
+Subscriber.prototype.suspend = function() {};
+
+/**
+ * Encode an event in the text/event-stream format.
+ * @param {String|Binary} data the event data, may contain line breaks.
+ *        Binary data is decoded as UTF-8.
+ * @param {Object} options optional object with `event`, `id` and `retry`
+ *        properties. The `event` and `id` must not contain line breaks.
+ * @returns {ByteString} the encoded event
+ * @throws Error if the `event` or `id` option contains a line break
+ */
+function encodeEvent(data, options) {
+    var buffer = [];
+    if (options) {
+        if (options.id != null) {
+            buffer.push("id: ", checkField("id", options.id), "\n");
+        }
+        if (options.event) {
+            buffer.push("event: ", checkField("event", options.event), "\n");
+        }
+        if (options.retry) {
+            buffer.push("retry: ", parseInt(options.retry, 10), "\n");
+        }
+    }
+    if (data != null) {
+        if (typeof data.decodeToString === "function") {
+            data = data.decodeToString("utf-8");
+        }
+        var lines = String(data).split(/\r\n|\r|\n/);
+        for (var i = 0; i < lines.length; i++) {
+            buffer.push("data: ", lines[i], "\n");
+        }
+    }
+    buffer.push("\n");
+    return new ByteString(buffer.join(""), "utf-8");
+}
+
+/**
+ * Make sure a single line field doesn't contain line breaks, which would
+ * allow it to inject other fields or events into the stream.
+ */
+function checkField(name, value) {
+    value = String(value);
+    if (/[\r\n]/.test(value)) {
+        throw new Error("Event " + name + " must not contain line breaks");
+    }
+    return value;
+}
@@ -7,6 +7,7 @@ var {mergeParameter} = require('./parameters');
 var {createTempFile} = require('ringo/utils/files');
 var {open} = require('fs');
 var {MemoryStream} = require('io');
+var {MultipartParser} = org.ringojs.jsgi;
 
 export('isFileUpload', 'parseFileUpload', 'BufferFactory', 'TempFileFactory');
 
@@ -30,19 +31,42 @@ function isFileUpload(contentType) {
 
 /**
  * Parses a multipart MIME input stream.
- * Parses a multipart MIME input stream.
+ *
+ * If `streamFactory` is undefined, [BufferFactory](#BufferFactory) or
+ * [TempFileFactory](#TempFileFactory), the request body is parsed in a
+ * single pass by the native multipart parser, which can enforce the
+ * following limits passed in the `options` argument. Exceeding a limit
+ * throws an error and deletes any temporary files created so far.
+ *
+ *  - `maxParts`: the maximal number of parts
+ *  - `maxFieldSize`: the maximal size in bytes of a form field
+ *  - `maxFileSize`: the maximal size in bytes of an uploaded file
+ *  - `maxTotalSize`: the maximal size in bytes of the request body
+ *  - `maxHeaderSize`: the maximal size in bytes of a part's headers,
+ *    defaults to 16 KB
+ *  - `tempDir`: the directory for temporary files created by TempFileFactory
+ *
 * @param request the JSGI request object
 * @param params the parameter object to parse into
 * @param encoding the encoding to apply to non-file parameters
 * @param streamFactory factory function to create streams for mime parts
+* @param options optional object with limits for the native parser
 */
-function parseFileUpload(request, params, encoding, streamFactory) {
+function parseFileUpload(request, params, encoding, streamFactory, options) {
     encoding = encoding || "UTF-8";
     streamFactory = streamFactory || BufferFactory;
     var boundary = getMimeParameter(request.headers["content-type"], "boundary");
     if (!boundary) {
         return;
     }
+    if (streamFactory === BufferFactory || streamFactory === TempFileFactory) {
+        var javaInput = getJavaInputStream(request.input);
+        if (javaInput) {
+            parseNative(javaInput, boundary, params, encoding,
+                    streamFactory === TempFileFactory, options || {});
+            return;
+        }
+    }
     boundary = new ByteArray("--" + boundary, "ASCII");
     var input = request.input;
     var buflen = 8192;
@@ -154,6 +178,58 @@ function parseFileUpload(request, params, encoding, streamFactory) {
     }
 }
 
+/**
+ * Parse the request body with the native multipart parser and merge the parts
+ * into params, using the same data objects as the stream factories.
+ */
+function parseNative(input, boundary, params, encoding, useTempFiles, options) {
+    var parser = new MultipartParser(input, boundary, encoding);
+    if (options.maxParts != null) parser.setMaxParts(options.maxParts);
+    if (options.maxFieldSize != null) parser.setMaxFieldSize(options.maxFieldSize);
+    if (options.maxFileSize != null) parser.setMaxFileSize(options.maxFileSize);
+    if (options.maxTotalSize != null) parser.setMaxTotalSize(options.maxTotalSize);
+    if (options.maxHeaderSize != null) parser.setMaxHeaderSize(options.maxHeaderSize);
+    var sink = useTempFiles ?
+            MultipartParser.tempFiles(options.tempDir ? new java.io.File(options.tempDir) : null) :
+            MultipartParser.MEMORY;
+    var parts = parser.parse(sink);
+    for (var i = 0, size = parts.size(); i < size; i++) {
+        var part = parts.get(i);
+        var name = part.getName() == null ? undefined : String(part.getName());
+        if (part.getFilename() == null) {
+            mergeParameter(params, name, String(part.getString(encoding)));
+            continue;
+        }
+        var data = {
+            name: name,
+            filename: String(part.getFilename())
+        };
+        if (part.getContentType() != null) {
+            data.contentType = String(part.getContentType());
+        }
+        if (part.getFile() != null) {
+            data.tempfile = String(part.getFile().getPath());
+        } else {
+            data.value = ByteString.wrap(part.getBytes());
+        }
+        mergeParameter(params, name, data);
+    }
+}
+
+/**
+ * Get the java.io.InputStream wrapped by a JSGI input stream, or null
+ * if it isn't backed by one.
+ */
+function getJavaInputStream(input) {
+    try {
+        var stream = input && input.inputStream;
+        return stream instanceof java.io.InputStream ? stream : null;
+    } catch (error) {
+        // streams implemented in JavaScript such as MemoryStream
+        return null;
+    }
+}
+
 /**
  * A stream factory that stores file upload in a memory buffer. This
  * function is not meant to be called directly but to be passed as streamFactory
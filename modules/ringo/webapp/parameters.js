@@ -1,25 +1,12 @@
 
 var strings = require('ringo/utils/strings');
-var {Binary, ByteArray, ByteString} = require('binary');
+var {ByteString} = require('binary');
 
 export('isUrlEncoded', 'parseParameters', 'mergeParameter');
 
 var log = require('ringo/logging').getLogger(module.id);
 
-// character codes used for slicing and decoding
-var SPACE     = " ".charCodeAt(0);
-var PERCENT   = "%".charCodeAt(0);
-var AMPERSAND = "&".charCodeAt(0);
-var PLUS      = "+".charCodeAt(0);
-var EQUALS    = "=".charCodeAt(0);
-
-// character codes used for hex decoding
-var CHAR_0 = "0".charCodeAt(0);
-var CHAR_9 = "9".charCodeAt(0);
-var CHAR_A = "A".charCodeAt(0);
-var CHAR_F = "F".charCodeAt(0);
-var CHAR_a = "a".charCodeAt(0);
-var CHAR_f = "f".charCodeAt(0);
+var {UrlEncodedParser} = org.ringojs.jsgi;
 
 /**
  * Find out whether the content type denotes a format this module can parse.
@@ -35,25 +22,32 @@ function isUrlEncoded(contentType) {
 /**
  * Parse a byte array representing a query string or post data into an
  * JavaScript object structure using the specified encoding.
- * @param bytes a Binary object
+ *
+ * The optional `options` argument may contain the following limits.
+ * Exceeding a limit throws an error.
+ *
+ *  - `maxFields`: the maximal number of parameters
+ *  - `maxSize`: the maximal size in bytes of the encoded data
+ *
+ * @param bytes a Binary object or string
  * @param params a parameter object to parse into
  * @param encoding a valid encoding name, defaults to UTF-8
+ * @param options optional object with limits
  */
-function parseParameters(bytes, params, encoding) {
+function parseParameters(bytes, params, encoding, options) {
     if (!bytes) {
         return;
-    } else if (typeof bytes == "string" || bytes instanceof ByteString) {
-        // stream.read() should really return ByteArray in the first place...
-        bytes = bytes.toByteArray();
+    } else if (typeof bytes == "string") {
+        bytes = new ByteString(bytes, "UTF-8");
     }
-    encoding = encoding || "UTF-8";
-    for each (var param in bytes.split(AMPERSAND)) {
-        var [name, value] = param.split(EQUALS);
-        if (name && value) {
-            name = decodeToString(name, encoding);
-            value = decodeToString(value, encoding);
-            mergeParameter(params, name.trim(), value);
-        }
+    var parser = new UrlEncodedParser();
+    if (options) {
+        if (options.maxFields != null) parser.setMaxFields(options.maxFields);
+        if (options.maxSize != null) parser.setMaxSize(options.maxSize);
+    }
+    var pairs = parser.parse(bytes, encoding || "UTF-8");
+    for (var i = 0; i < pairs.length; i += 2) {
+        mergeParameter(params, pairs[i], pairs[i + 1]);
     }
 }
 
@@ -67,7 +61,7 @@ function parseParameters(bytes, params, encoding) {
  */
 function mergeParameter(params, name, value) {
     // split "foo[bar][][baz]" into ["foo", "bar", "", "baz", ""]
-    if (name.match(/^\w+(?:\[[^\]]*\]\s*)+$/)) {
+    if (name.indexOf("[") > -1 && name.match(/^\w+(?:\[[^\]]*\]\s*)+$/)) {
         var names = name.split(/\]\s*\[|\[|\]/).map(function(s) s.trim()).slice(0, -1);
         mergeParameterInternal(params, names, value);
     } else {
@@ -102,35 +96,3 @@ function mergeParameterInternal(params, names, value) {
         }
     }
 }
-
-// convert + to spaces, decode %ff hex sequences,
-// then decode to string using the specified encoding.
-function decodeToString(bytes, encoding) {
-    var k = 0;
-    while((k = bytes.indexOf(PLUS, k)) > -1) {
-        bytes[k++] = SPACE;
-    }
-    var i, j = 0;
-    while((i = bytes.indexOf(PERCENT, j)) > -1) {
-        j = i;
-        while (bytes[i] == PERCENT && i++ <= bytes.length - 3) {
-            bytes[j++] = (convertHexDigit(bytes[i++]) << 4)
-                        + convertHexDigit(bytes[i++]);
-        }
-        if (i < bytes.length) {
-            bytes.copy(i, bytes.length, bytes, j);
-        }
-        bytes.length -= i - j;
-    }
-    return bytes.decodeToString(encoding);
-}
-
-function convertHexDigit(byte) {
-    if (byte >= CHAR_0 && byte <= CHAR_9)
-        return byte - CHAR_0;
-    if (byte >= CHAR_a && byte <= CHAR_f)
-        return byte - CHAR_a + 10;
-    if (byte >= CHAR_A && byte <= CHAR_F)
-        return byte - CHAR_A + 10;
-    return 0;
-}
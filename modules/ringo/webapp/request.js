@@ -8,10 +8,47 @@ var strings = require('ringo/utils/strings');
 var {isUrlEncoded, parseParameters} = require('./parameters');
 var {isFileUpload, parseFileUpload} = require('./fileupload');
 
+var {ByteArray} = require('binary');
+
 var {Context, NativeObject} = org.mozilla.javascript;
+var {LimitExceededException} = org.ringojs.jsgi;
 
 export('Request', 'Session');
 
+// default limits for parsing the request body
+var defaultLimits = {
+    maxFields: 1000,
+    maxSize: 2 * 1024 * 1024,
+    maxParts: 1000,
+    maxFieldSize: 1024 * 1024,
+    maxTotalSize: 64 * 1024 * 1024
+};
+
+/**
+ * Read the request body, failing before anything is read if the
+ * Content-Length header exceeds the limit, and as soon as more than
+ * `maxSize` bytes have been read otherwise.
+ */
+function readBody(request, maxSize) {
+    var limited = maxSize != null && maxSize > -1;
+    if (limited && parseInt(request.contentLength, 10) > maxSize) {
+        throw new LimitExceededException("Form data too large, limit is " + maxSize);
+    }
+    var buffer = new ByteArray(8192);
+    var length = 0, read;
+    while ((read = request.input.readInto(buffer, length, buffer.length)) > -1) {
+        length += read;
+        if (limited && length > maxSize) {
+            throw new LimitExceededException("Form data too large, limit is " + maxSize);
+        }
+        if (length == buffer.length) {
+            buffer.length = length * 2;
+        }
+    }
+    buffer.length = length;
+    return buffer;
+}
+
 /**
  * Adds convenience properties and methods to  a
  * [JSGI 0.3 request object](http://wiki.commonjs.org/wiki/JSGI/Level0/A/Draft2#Request).
@@ -47,6 +84,29 @@ function Request(request) {
      */
     request.contentLength = request.headers["content-length"];
 
+    /**
+     * The limits applied when parsing the request body into
+     * [postParams](#Request.instance.postParams). Exceeding a limit throws
+     * an error. Webapps can override the defaults with a `limits` object
+     * in their config module.
+     *
+     *  - `maxFields`: the maximal number of urlencoded form fields,
+     *    defaults to 1000
+     *  - `maxSize`: the maximal size in bytes of an urlencoded request
+     *    body, defaults to 2 MB
+     *  - `maxParts`: the maximal number of parts in a multipart request,
+     *    defaults to 1000
+     *  - `maxFieldSize`: the maximal size in bytes of a multipart form
+     *    field, defaults to 1 MB
+     *  - `maxFileSize`: the maximal size in bytes of an uploaded file,
+     *    not limited by default
+     *  - `maxTotalSize`: the maximal size in bytes of a multipart request
+     *    body, defaults to 64 MB
+     *
+     * @name Request.instance.limits
+     */
+    request.limits = objects.clone(defaultLimits);
+
     /**
      * The full URI path of the request.
      * @name Request.instance.path
@@ -67,7 +127,8 @@ function Request(request) {
         get: function() {
             if (!queryParams) {
                 queryParams = {};
-                parseParameters(this.queryString, queryParams, this.charset);
+                parseParameters(this.queryString, queryParams, this.charset,
+                        {maxFields: this.limits.maxFields});
             }
             return queryParams;
         }
@@ -83,9 +144,11 @@ function Request(request) {
                 postParams = {};
                 if (this.isPost || this.isPut) {
                     if (isUrlEncoded(this.contentType)) {
-                        parseParameters(this.input.read(), postParams, this.charset);
+                        parseParameters(readBody(this, this.limits.maxSize),
+                                postParams, this.charset, this.limits);
                     } else if (isFileUpload(this.contentType)) {
-                        parseFileUpload(this, postParams, this.charset);
+                        parseFileUpload(this, postParams, this.charset,
+                                null, this.limits);
                     }
                 }
             }
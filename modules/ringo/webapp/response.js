@@ -5,12 +5,12 @@
  */
 
 var {ByteArray} = require('binary');
-var {Stream} = require('io');
 var {Buffer} = require('ringo/buffer');
 var {Headers, getMimeParameter} = require('ringo/utils/http');
 var {mimeType} = require('./mime');
 var dates = require('ringo/utils/dates');
 var webenv = require('ringo/webapp/env');
+var {ResourceBody} = org.ringojs.jsgi;
 
 export('Response');
 
@@ -284,41 +284,32 @@ Response.xml = function (xml) {
 };
 
 /**
- * A response representing a static resource.
+ * A response representing a static resource. The resource is written
+ * natively by the JSGI connector, which also answers conditional and
+ * range requests for it.
  * @param {String|Resource} resource the resource to serve
  * @param {String} contentType optional MIME type. If not defined,
  *         the MIME type is detected from the file name extension.
+ * @param {org.ringojs.jsgi.ResourceCache} cache optional resource cache
+ *         to serve the resource content from
  */
-Response.static = function (resource, contentType) {
+Response.static = function (resource, contentType, cache) {
     if (typeof resource == 'string') {
         resource = getResource(resource);
     }
     if (!(resource instanceof org.ringojs.repository.Resource)) {
         throw Error("Wrong argument for static response: " + typeof(resource));
     }
-    if (!resource.exists()) {
+    // resources cached recently are known to exist
+    if (!(cache && cache.isCached(resource)) && !resource.exists()) {
         return Response.notFound(String(resource));
     }
-    var input;
     return {
         status: 200,
         headers: {
             'Content-Type': contentType || mimeType(resource.name)
         },
-        body: {
-            digest: function() {
-                return resource.lastModified().toString(36)
-                    + resource.length.toString(36);
-            },
-            forEach: function(fn) {
-                input = new Stream(resource.getInputStream());
-                try {
-                    input.forEach(fn);
-                } finally {
-                    input.close();
-                }
-            }
-        }
+        body: cache ? new ResourceBody(resource, cache) : new ResourceBody(resource)
     };
 };
 
@@ -0,0 +1,242 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.engine;
+
+import org.mozilla.javascript.CompilerEnvirons;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.GeneratedClassLoader;
+import org.mozilla.javascript.Script;
+import org.mozilla.javascript.optimizer.ClassCompiler;
+import org.ringojs.repository.Resource;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A persistent cache for compiled module classes. Modules are compiled to
+ * Java class files using Rhino's ClassCompiler and stored in a directory,
+ * so subsequent engine instances can load the compiled classes instead of
+ * compiling the module source again.
+ *
+ * <p>Each cache entry is keyed by the resource path, the resource checksum,
+ * the optimization and language level and the Rhino implementation version.
+ * An entry is only used if all of these match.</p>
+ */
+public class ClassCache {
+
+    private final File directory;
+
+    private static final int MAGIC = 0x52494e47; // "RING"
+    private static final String CLASS_PREFIX = "org.ringojs.cache.Module_";
+
+    private static Logger log = Logger.getLogger("org.ringojs.engine.ClassCache");
+
+    /**
+     * Create a class cache using the given directory. The directory is
+     * created if it doesn't exist yet.
+     * @param directory the cache directory
+     * @throws IOException if the directory couldn't be created
+     */
+    public ClassCache(File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create class cache directory " + directory);
+        }
+        this.directory = directory;
+    }
+
+    /**
+     * Get the directory used by this cache.
+     * @return the cache directory
+     */
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * Get the compiled script for the given resource, either by loading
+     * it from the cache or by compiling and storing it.
+     * @param cx the current context
+     * @param resource the script resource
+     * @param charset the charset used to read the resource
+     * @return the compiled script
+     * @throws IOException if the resource couldn't be read
+     */
+    public Script getScript(Context cx, Resource resource, String charset)
+            throws IOException {
+        String path = resource.getPath();
+        String key = getKey(cx, resource);
+        File file = new File(directory, digest(path) + ".cache");
+        Object[] classes = read(file, key);
+        if (classes == null) {
+            String source = resource.getContent(charset);
+            CompilerEnvirons env = new CompilerEnvirons();
+            env.initFromContext(cx);
+            ClassCompiler compiler = new ClassCompiler(env);
+            classes = compiler.compileToClassFiles(source,
+                    resource.getRelativePath(), 1, CLASS_PREFIX + digest(key));
+            write(file, key, classes);
+        } else if (log.isLoggable(Level.FINE)) {
+            log.fine("Loaded compiled classes for " + path + " from cache");
+        }
+        return define(cx, classes);
+    }
+
+    /**
+     * Define the classes contained in the array and return an instance
+     * of the main script class, which is the first class in the array.
+     */
+    private Script define(Context cx, Object[] classes) {
+        GeneratedClassLoader loader =
+                cx.createClassLoader(cx.getApplicationClassLoader());
+        Class<?> main = null;
+        for (int i = 0; i < classes.length; i += 2) {
+            Class<?> clazz = loader.defineClass((String) classes[i],
+                                                (byte[]) classes[i + 1]);
+            if (main == null) {
+                main = clazz;
+            }
+        }
+        if (main == null) {
+            throw new IllegalStateException("No compiled script class");
+        }
+        loader.linkClass(main);
+        try {
+            return (Script) main.newInstance();
+        } catch (Exception x) {
+            throw new RuntimeException("Unable to instantiate " + main, x);
+        }
+    }
+
+    /**
+     * Read the class files for the given key from a cache file. Returns null
+     * if the file doesn't exist, is corrupt, or was written for a different key.
+     */
+    private Object[] read(File file, String key) {
+        if (!file.isFile()) {
+            return null;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != MAGIC || !key.equals(in.readUTF())) {
+                return null;
+            }
+            int length = in.readInt();
+            Object[] classes = new Object[length * 2];
+            for (int i = 0; i < classes.length; i += 2) {
+                classes[i] = in.readUTF();
+                byte[] bytes = new byte[in.readInt()];
+                in.readFully(bytes);
+                classes[i + 1] = bytes;
+            }
+            return classes;
+        } catch (IOException iox) {
+            log.log(Level.WARNING, "Error reading class cache file " + file, iox);
+            return null;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException ignore) {}
+            }
+        }
+    }
+
+    /**
+     * Write class files to the cache. We write to a temporary file first and
+     * rename it, so concurrent readers never see a partially written file.
+     */
+    private void write(File file, String key, Object[] classes) {
+        File tmp = null;
+        DataOutputStream out = null;
+        try {
+            tmp = File.createTempFile("ringo", ".tmp", directory);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeUTF(key);
+            out.writeInt(classes.length / 2);
+            for (int i = 0; i < classes.length; i += 2) {
+                byte[] bytes = (byte[]) classes[i + 1];
+                out.writeUTF((String) classes[i]);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(file)) {
+                // rename fails on some platforms if target exists
+                file.delete();
+                if (!tmp.renameTo(file)) {
+                    throw new IOException("Unable to rename " + tmp + " to " + file);
+                }
+            }
+            tmp = null;
+        } catch (IOException iox) {
+            log.log(Level.WARNING, "Error writing class cache file " + file, iox);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException ignore) {}
+            }
+            if (tmp != null) {
+                tmp.delete();
+            }
+        }
+    }
+
+    private static String getKey(Context cx, Resource resource) throws IOException {
+        return new StringBuffer(resource.getPath())
+                .append('|').append(resource.getChecksum())
+                .append('|').append(cx.getOptimizationLevel())
+                .append('|').append(cx.getLanguageVersion())
+                .append('|').append(cx.isGeneratingDebug())
+                .append('|').append(cx.getImplementationVersion())
+                .toString();
+    }
+
+    private static String digest(String str) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] bytes = md.digest(str.getBytes("UTF-8"));
+            StringBuffer buffer = new StringBuffer(bytes.length * 2);
+            for (byte b : bytes) {
+                int n = b & 0xff;
+                if (n < 0x10) {
+                    buffer.append('0');
+                }
+                buffer.append(Integer.toHexString(n));
+            }
+            return buffer.toString();
+        } catch (NoSuchAlgorithmException nsa) {
+            throw new RuntimeException(nsa);
+        } catch (IOException iox) {
+            throw new RuntimeException(iox);
+        }
+    }
+
+}
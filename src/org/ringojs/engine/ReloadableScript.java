@@ -16,19 +16,26 @@
 
 package org.ringojs.engine;
 
+import org.ringojs.repository.FileResource;
+import org.ringojs.repository.FileWatcher;
 import org.ringojs.repository.Repository;
 import org.ringojs.repository.Resource;
 import org.ringojs.repository.Trackable;
 import org.mozilla.javascript.*;
 import org.mozilla.javascript.tools.ToolErrorReporter;
 
+import java.io.File;
 import java.io.IOException;
 import java.lang.ref.ReferenceQueue;
 import java.lang.ref.SoftReference;
 import java.util.*;
 import java.security.CodeSource;
 import java.security.CodeSigner;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicReference;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -44,22 +51,29 @@ public class ReloadableScript {
     final String moduleName;
     // true if we should reload modified source files
     boolean reloading;
-    // the checksum of the underlying resource or repository when
-    // the script was last compiled
-    long checksum = -1;
     // true if module scope is shared
-    Shared shared = Shared.UNKNOWN;
-    // the compiled script
-    ScriptReference scriptref;
-    // any exception that may have been thrown during compilation.
-    // we keep this around in order to be able to rethrow without trying
-    // to recompile if the underlying resource or repository hasn't changed
-    Exception exception = null;
-    List<SyntaxError> errors;
+    volatile Shared shared = Shared.UNKNOWN;
+    // the compiled script along with its checksum and any errors or
+    // exceptions thrown during compilation. We keep these around in order
+    // to be able to rethrow without trying to recompile if the underlying
+    // resource or repository hasn't changed
+    volatile ScriptReference scriptref;
     // the loaded module scope is cached for shared modules
-    ModuleScope moduleScope = null;
+    volatile ModuleScope moduleScope = null;
     // Set of direct module dependencies
-    HashSet<ReloadableScript> dependencies = new HashSet<ReloadableScript>();
+    Set<ReloadableScript> dependencies = Collections.newSetFromMap(
+            new ConcurrentHashMap<ReloadableScript, Boolean>());
+    // true if this script and all its dependencies are watched files, so we
+    // are notified of changes through the engine's reverse dependency index
+    volatile boolean tracked = false;
+    // set by the engine when this script or one of its dependencies changed
+    volatile boolean invalid = false;
+    // pending compilation and first evaluation of this script. Threads
+    // arriving while one of these is in progress wait for its result.
+    final AtomicReference<FutureTask<ScriptReference>> pendingCompilation =
+            new AtomicReference<FutureTask<ScriptReference>>();
+    final AtomicReference<FutureTask<ModuleScope>> pendingEvaluation =
+            new AtomicReference<FutureTask<ModuleScope>>();
     // the static script cache
     static ScriptCache cache = new ScriptCache();
 
@@ -80,56 +94,140 @@ public class ReloadableScript {
         this.engine = engine;
         reloading = engine.getConfig().isReloading();
         moduleName = source.getModuleName();
+        if (reloading && source instanceof FileResource) {
+            // only module sources are watched, and only if we reload them
+            File file = ((FileResource) source).getFile();
+            if (file.isFile()) {
+                FileWatcher.watch(file);
+            }
+        }
     }
 
     /**
-     * Get the actual compiled script.
+     * Get the actual compiled script. If the script is already compiled and
+     * up to date this does not block. Otherwise the script is compiled by
+     * the first thread requiring it, while other threads wait for the result.
      *
      * @param cx the current Context
      * @throws JavaScriptException if an error occurred compiling the script code
      * @throws IOException if an error occurred reading the script file
      * @return the compiled and up-to-date script
      */
-    public synchronized Script getScript(Context cx)
+    public Script getScript(Context cx)
             throws JavaScriptException, IOException {
         // only use shared code cache if optlevel >= 0
         int optlevel = cx.getOptimizationLevel();
-        if (scriptref == null && optlevel > -1) {
-            scriptref = cache.get(source);
-        }
-        Script script = null;
-        if (scriptref != null) {
-            script = scriptref.get();
-            checksum = scriptref.checksum;
-            errors = scriptref.errors;
-            exception = scriptref.exception;
+        ScriptReference ref = scriptref;
+        if (ref == null && optlevel > -1) {
+            ref = scriptref = cache.get(source);
         }
+        Script script = ref == null ? null : ref.get();
         // recompile if neither script or exception are available, or if source has been updated
-        if ((script == null && exception == null) || (reloading && checksum != source.getChecksum())) {
-            shared = Shared.UNKNOWN;
-            if (!source.exists()) {
-                throw new IOException(source + " not found or not readable");
+        while (!isCurrent(ref, script)) {
+            ref = compile(cx, optlevel);
+            script = ref.get();
+        }
+        if (ref.errors != null && !ref.errors.isEmpty()) {
+            RhinoEngine.errors.get().addAll(ref.errors);
+        }
+        if (ref.exception != null) {
+            throw ref.exception instanceof RhinoException ?
+                (RhinoException) ref.exception : new WrappedException(ref.exception);
+        }
+        return script;
+    }
+
+    /**
+     * Check whether a script reference and the script it refers to are
+     * available and up to date.
+     */
+    private boolean isCurrent(ScriptReference ref, Script script) throws IOException {
+        return ref != null
+                && (script != null || ref.exception != null)
+                && (!reloading || ref.checksum == getSourceChecksum(source));
+    }
+
+    /**
+     * Get the checksum of a script source. For files tracked by the
+     * {@link FileWatcher} this is the modification time recorded by the
+     * watcher, so checking whether a module is up to date doesn't involve
+     * a file system call.
+     */
+    static long getSourceChecksum(Trackable source) throws IOException {
+        if (source instanceof FileResource) {
+            long lastModified = FileWatcher.getLastModified(
+                    ((FileResource) source).getFile());
+            if (lastModified != -1) {
+                return lastModified;
             }
-            exception = null;
-            errors = null;
-            if (source instanceof Repository) {
-                script = getComposedScript(cx);
+        }
+        return source.getChecksum();
+    }
+
+    /**
+     * Compile the script, or wait for a compilation started by another
+     * thread to finish.
+     * @param cx the current Context
+     * @param optlevel the optimization level
+     * @return the script reference resulting from the compilation
+     * @throws IOException if an error occurred reading the script file
+     */
+    private ScriptReference compile(final Context cx, final int optlevel)
+            throws IOException {
+        FutureTask<ScriptReference> task = pendingCompilation.get();
+        if (task == null) {
+            FutureTask<ScriptReference> newTask = new FutureTask<ScriptReference>(
+                    new Callable<ScriptReference>() {
+                        public ScriptReference call() throws IOException {
+                            // check again in case another thread has just
+                            // finished compiling the script
+                            ScriptReference ref = scriptref;
+                            if (isCurrent(ref, ref == null ? null : ref.get())) {
+                                return ref;
+                            }
+                            shared = Shared.UNKNOWN;
+                            if (!source.exists()) {
+                                throw new IOException(source + " not found or not readable");
+                            }
+                            ref = source instanceof Repository ?
+                                    getComposedScript(cx) : getSimpleScript(cx);
+                            if (optlevel > -1) {
+                                cache.put(source, ref);
+                            }
+                            scriptref = ref;
+                            return ref;
+                        }
+                    });
+            if (pendingCompilation.compareAndSet(null, newTask)) {
+                try {
+                    newTask.run();
+                } finally {
+                    pendingCompilation.compareAndSet(newTask, null);
+                }
+                task = newTask;
             } else {
-                script = getSimpleScript(cx);
-            }
-            scriptref = cache.createReference(source, script, this);
-            if (optlevel > -1) {
-                cache.put(source, scriptref);
+                task = pendingCompilation.get();
+                if (task == null) {
+                    // the competing compilation has already finished
+                    return compile(cx, optlevel);
+                }
             }
         }
-        if (errors != null && !errors.isEmpty()) {
-            RhinoEngine.errors.get().addAll(errors);
-        }
-        if (exception != null) {
-            throw exception instanceof RhinoException ?
-                (RhinoException) exception : new WrappedException(exception);
+        try {
+            return task.get();
+        } catch (InterruptedException ix) {
+            throw new WrappedException(ix);
+        } catch (ExecutionException ex) {
+            Throwable cause = ex.getCause();
+            if (cause instanceof IOException) {
+                throw (IOException) cause;
+            } else if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            } else if (cause instanceof Error) {
+                throw (Error) cause;
+            }
+            throw new WrappedException(cause);
         }
-        return script;
     }
 
     /**
@@ -137,26 +235,38 @@ public class ReloadableScript {
      * @param cx the current Context
      * @throws JavaScriptException if an error occurred compiling the script code
      * @throws IOException if an error occurred reading the script file
-     * @return the compiled and up-to-date script
+     * @return the reference to the compiled script
      */
-    protected synchronized Script getSimpleScript(Context cx)
+    protected ScriptReference getSimpleScript(Context cx)
             throws JavaScriptException, IOException {
         Resource resource = (Resource) source;
         ErrorReporter errorReporter = cx.getErrorReporter();
-        cx.setErrorReporter(new ErrorCollector());
+        ErrorCollector collector = new ErrorCollector();
+        cx.setErrorReporter(collector);
         Script script = null;
+        Exception exception = null;
+        long checksum;
         String charset = engine.getCharset();
         try {
-            CodeSource source = engine.isPolicyEnabled() ?
-                    new CodeSource(resource.getUrl(), (CodeSigner[]) null) : null;
-            script = cx.compileReader(resource.getReader(charset), resource.getRelativePath(), 1, source);
+            ClassCache classCache = engine.getClassCache();
+            // the class cache can only be used for compiled code
+            // without a security domain
+            if (classCache != null && cx.getOptimizationLevel() > -1
+                    && !engine.isPolicyEnabled()) {
+                script = classCache.getScript(cx, resource, charset);
+            } else {
+                CodeSource source = engine.isPolicyEnabled() ?
+                        new CodeSource(resource.getUrl(), (CodeSigner[]) null) : null;
+                script = cx.compileReader(resource.getReader(charset), resource.getRelativePath(), 1, source);
+            }
         } catch (Exception x) {
             exception = x;
         } finally {
             cx.setErrorReporter(errorReporter);
-            checksum = resource.getChecksum();
+            checksum = getSourceChecksum(resource);
         }
-        return script;
+        return cache.createReference(source, script, checksum,
+                collector.errors, exception);
     }
 
     /**
@@ -167,15 +277,18 @@ public class ReloadableScript {
      * @param cx the current Context
      * @throws JavaScriptException if an error occurred compiling the script code
      * @throws IOException if an error occurred reading the script file
-     * @return the compiled and up-to-date script
+     * @return the reference to the compiled script
      */
-    protected synchronized Script getComposedScript(Context cx)
+    protected ScriptReference getComposedScript(Context cx)
             throws JavaScriptException, IOException {
         Repository repository = (Repository) source;
         Resource[] resources = repository.getResources(false);
         final List<Script> scripts = new ArrayList<Script>();
         ErrorReporter errorReporter = cx.getErrorReporter();
-        cx.setErrorReporter(new ErrorCollector());
+        ErrorCollector collector = new ErrorCollector();
+        cx.setErrorReporter(collector);
+        Exception exception = null;
+        long checksum;
         String charset = engine.getCharset();
         try {
             for (Resource res: resources) {
@@ -191,7 +304,7 @@ public class ReloadableScript {
             cx.setErrorReporter(errorReporter);
             checksum = repository.getChecksum();
         }
-        return new Script() {
+        Script script = new Script() {
             public Object exec(Context cx, Scriptable scope) {
                 for (Script script: scripts) {
                     script.exec(cx, scope);
@@ -199,6 +312,8 @@ public class ReloadableScript {
                 return null;
             }
         };
+        return cache.createReference(source, script, checksum,
+                collector.errors, exception);
     }
 
 
@@ -243,33 +358,99 @@ public class ReloadableScript {
         if (modules.containsKey(source)) {
             return modules.get(source);
         }
-        ModuleScope module = moduleScope;
-        if (shared == Shared.TRUE
-                && module != null
-                && (!reloading || module.getChecksum() == getChecksum())) {
+        ModuleScope module = getSharedScope();
+        if (module != null) {
             // Reuse cached scope for shared modules.
             modules.put(source, module);
             return module;
         }
 
         if (shared == Shared.UNKNOWN) {
-            module = execSync(cx, getScript(cx), module, prototype, modules);
+            module = execOnce(cx, prototype, modules);
         } else {
-            module = exec(cx, getScript(cx), module, prototype, modules);
+            module = exec(cx, getScript(cx), moduleScope, prototype, modules);
         }
         return module;
     }
 
-    private synchronized ModuleScope execSync(Context cx, Script script,
-                                              ModuleScope module, Scriptable prototype,
-                                              Map<Trackable, ModuleScope> modules)
+    /**
+     * Get the cached module scope if this is a shared module and
+     * the scope is up to date.
+     * @return the cached module scope, or null
+     * @throws IOException source could not be checked because of an I/O error
+     */
+    private ModuleScope getSharedScope() throws IOException {
+        ModuleScope module = moduleScope;
+        if (shared == Shared.TRUE
+                && module != null
+                && (!reloading || isUpToDate(module))) {
+            return module;
+        }
+        return null;
+    }
+
+    /**
+     * Evaluate a module whose shared status is not known yet. Only one thread
+     * evaluates the module, other threads arriving in the meantime wait for
+     * it to finish and reuse the module scope if the module turns out to be
+     * shared.
+     */
+    private ModuleScope execOnce(final Context cx, final Scriptable prototype,
+                                 final Map<Trackable, ModuleScope> modules)
             throws IOException {
-        return exec(cx, script, module, prototype, modules);
+        FutureTask<ModuleScope> task = new FutureTask<ModuleScope>(
+                new Callable<ModuleScope>() {
+                    public ModuleScope call() throws IOException {
+                        return exec(cx, getScript(cx), moduleScope, prototype, modules);
+                    }
+                });
+        if (pendingEvaluation.compareAndSet(null, task)) {
+            try {
+                task.run();
+            } finally {
+                pendingEvaluation.compareAndSet(task, null);
+            }
+            try {
+                return task.get();
+            } catch (InterruptedException ix) {
+                throw new WrappedException(ix);
+            } catch (ExecutionException ex) {
+                Throwable cause = ex.getCause();
+                if (cause instanceof IOException) {
+                    throw (IOException) cause;
+                } else if (cause instanceof RuntimeException) {
+                    throw (RuntimeException) cause;
+                } else if (cause instanceof Error) {
+                    throw (Error) cause;
+                }
+                throw new WrappedException(cause);
+            }
+        }
+        FutureTask<ModuleScope> pending = pendingEvaluation.get();
+        if (pending != null) {
+            try {
+                pending.get();
+            } catch (InterruptedException ix) {
+                throw new WrappedException(ix);
+            } catch (ExecutionException ignore) {
+                // evaluation failed in other thread, try for ourselves below
+            }
+        }
+        ModuleScope module = getSharedScope();
+        if (module != null) {
+            modules.put(source, module);
+            return module;
+        }
+        return exec(cx, getScript(cx), moduleScope, prototype, modules);
     }
 
     private ModuleScope exec(Context cx, Script script, ModuleScope module,
                              Scriptable prototype, Map<Trackable, ModuleScope> modules)
             throws IOException {
+        // clear invalid flag before evaluation so we notice changes that
+        // are reported while the module is being evaluated
+        invalid = false;
+        engine.unregisterDependencies(this);
         if (module == null) {
             module = new ModuleScope(moduleName, source, prototype, cx);
         } else {
@@ -321,6 +502,9 @@ public class ReloadableScript {
         if (isShared) {
             module.setChecksum(getChecksum());
             engine.registerSharedScript(source, this);
+            if (tracked) {
+                engine.registerDependency(this, this);
+            }
             moduleScope = module;
         } else {
             engine.removeSharedScript(source);
@@ -337,17 +521,58 @@ public class ReloadableScript {
      * @throws IOException source could not be checked because of an I/O error
      */
     protected long getChecksum() throws IOException {
-        long cs = source.getChecksum();
+        long cs = getSourceChecksum(source);
         if (shared == Shared.TRUE) {
             Set<ReloadableScript> set = new HashSet<ReloadableScript>();
             set.add(this);
             for (ReloadableScript script: dependencies) {
                 cs += script.getNestedChecksum(set);
             }
+            // we can rely on change notifications if all scripts we depend
+            // on are files tracked by the file watcher
+            boolean watched = reloading && FileWatcher.isEnabled();
+            for (ReloadableScript script: set) {
+                if (!watched || !(script.source instanceof FileResource)
+                        || !((FileResource) script.source).isWatched()) {
+                    watched = false;
+                    break;
+                }
+            }
+            tracked = watched;
         }
         return cs;
     }
 
+    /**
+     * Check whether the given cached module scope is still up to date.
+     * If this script is tracked by the engine's dependency index this just
+     * checks the invalid flag, otherwise the checksum of the script and its
+     * dependencies is compared against the checksum of the module scope.
+     * @param module the cached module scope
+     * @return true if the module scope can be reused
+     * @throws IOException source could not be checked because of an I/O error
+     */
+    protected boolean isUpToDate(ModuleScope module) throws IOException {
+        if (tracked) {
+            return !invalid;
+        }
+        return module.getChecksum() == getChecksum();
+    }
+
+    /**
+     * Mark this script as invalid because its source or the source of one of
+     * its dependencies has changed. This causes a cached shared module scope
+     * to be re-evaluated the next time the module is loaded.
+     * @return true if the script was valid before
+     */
+    protected boolean invalidate() {
+        if (invalid) {
+            return false;
+        }
+        invalid = true;
+        return true;
+    }
+
     /**
      * Get the recursive checksum of this script as a dependency. Since the checksum
      * field may not be up-to-date we directly get the checksum from the underlying
@@ -361,7 +586,7 @@ public class ReloadableScript {
             return 0;
         }
         set.add(this);
-        long cs = source.getChecksum();
+        long cs = getSourceChecksum(source);
         for (ReloadableScript script: dependencies) {
             cs += script.getNestedChecksum(set);
         }
@@ -385,6 +610,7 @@ public class ReloadableScript {
         if (!dependencies.contains(script)) {
             dependencies.add(script);
         }
+        engine.registerDependency(script, this);
     }
 
     /**
@@ -412,7 +638,9 @@ public class ReloadableScript {
      * This way, we can reproduce the error messages for a faulty module without
      * having to recompile it each time it is required.
      */
-    class ErrorCollector implements ErrorReporter {
+    static class ErrorCollector implements ErrorReporter {
+
+        List<SyntaxError> errors;
 
         public void warning(String message, String sourceName,
                             int line, String lineSource, int lineOffset) {
@@ -443,19 +671,20 @@ public class ReloadableScript {
     }
 
     static class ScriptReference extends SoftReference<Script> {
-        Trackable source;
-        long checksum;
-        List<SyntaxError> errors;
-        Exception exception;
+        final Trackable source;
+        final long checksum;
+        final List<SyntaxError> errors;
+        final Exception exception;
 
 
-        ScriptReference(Trackable source, Script script, ReloadableScript rescript, ReferenceQueue<Script> queue)
-                throws IOException {
+        ScriptReference(Trackable source, Script script, long checksum,
+                        List<SyntaxError> errors, Exception exception,
+                        ReferenceQueue<Script> queue) {
             super(script, queue);
             this.source = source;
-            this.checksum = rescript.checksum;
-            this.errors = rescript.errors;
-            this.exception = rescript.exception;
+            this.checksum = checksum;
+            this.errors = errors;
+            this.exception = exception;
         }
     }
 
@@ -469,9 +698,10 @@ public class ReloadableScript {
         }
 
         ScriptReference createReference(Trackable source, Script script,
-                                        ReloadableScript rescript)
-                throws IOException {
-            return new ScriptReference(source, script, rescript, queue);
+                                        long checksum, List<SyntaxError> errors,
+                                        Exception exception) {
+            return new ScriptReference(source, script, checksum, errors,
+                                       exception, queue);
         }
 
         ScriptReference get(Trackable source) {
@@ -482,8 +712,7 @@ public class ReloadableScript {
             return map.get(source);
         }
 
-        void put(Trackable source, ScriptReference ref)
-                throws IOException {
+        void put(Trackable source, ScriptReference ref) {
             map.put(source, ref);
         }
     }
@@ -33,6 +33,12 @@ import java.net.URL;
 import java.net.MalformedURLException;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,13 +54,22 @@ public class RhinoEngine implements ScopeProvider {
     private List<Repository> repositories;
     private RingoGlobal globalScope;
     private List<String> commandLineArgs;
-    private Map<Trackable, ReloadableScript> compiledScripts, interpretedScripts, sharedScripts;
+    private ConcurrentMap<Trackable, ReloadableScript> compiledScripts, interpretedScripts;
+    private Map<Trackable, ReloadableScript> sharedScripts;
     private AppClassLoader loader = new AppClassLoader();
     private RingoWrapFactory wrapFactory = new RingoWrapFactory();
     private Set<Class> hostClasses;
 
     private RingoContextFactory contextFactory = null;
     private ModuleScope mainScope = null;
+    private ClassCache classCache = null;
+    // reverse dependency index mapping source paths to the scripts depending on them
+    private Map<String, Map<Trackable, ReloadableScript>> dependents;
+    private FileWatcher.Listener changeListener;
+    // cache of resolved module sources, including negative results
+    private volatile ResolutionCache resolutions;
+    // maximal number of cached resolutions of modules that don't exist
+    private static final int MAX_NEGATIVE_RESOLUTIONS = 1000;
 
     public static final Object[] EMPTY_ARGS = new Object[0];
     public static final List<Integer> VERSION = Collections.unmodifiableList(Arrays.asList(0, 6));
@@ -80,6 +95,18 @@ public class RhinoEngine implements ScopeProvider {
         this.interpretedScripts = new ConcurrentHashMap<Trackable, ReloadableScript>();
         this.sharedScripts = new ConcurrentHashMap<Trackable, ReloadableScript>();
         this.contextFactory = new RingoContextFactory(this, config);
+        if (config.getClassCacheDirectory() != null) {
+            this.classCache = new ClassCache(config.getClassCacheDirectory());
+        }
+        if (config.isReloading() && FileWatcher.isEnabled()) {
+            this.dependents = new ConcurrentHashMap<String, Map<Trackable, ReloadableScript>>();
+            this.changeListener = new FileWatcher.Listener() {
+                public void fileChanged(File file) {
+                    invalidateDependents(file.getPath(), new HashSet<String>());
+                }
+            };
+            FileWatcher.addListener(changeListener);
+        }
         this.repositories = config.getRepositories();
         if (repositories.isEmpty()) {
             throw new IllegalArgumentException("Empty repository list");
@@ -131,6 +158,65 @@ public class RhinoEngine implements ScopeProvider {
             Context.exit();
             resetThreadLocals(threadLocals);
         }
+        if (config.isPrecompiling()) {
+            precompile();
+        }
+    }
+
+    /**
+     * Compile all JavaScript modules in the module path in parallel, using
+     * one thread per available processor. This fills the script cache so
+     * modules don't have to be compiled when they are first required.
+     * Modules that fail to compile are skipped, their errors are reported
+     * when they are actually required.
+     * @throws IOException if the module repositories couldn't be listed
+     * @throws InterruptedException if the current thread was interrupted
+     */
+    public void precompile() throws IOException, InterruptedException {
+        Set<String> moduleNames = new LinkedHashSet<String>();
+        for (Resource resource : findResources("", true)) {
+            if (resource.getName().endsWith(".js")) {
+                moduleNames.add(resource.getModuleName());
+            }
+        }
+        int threads = Runtime.getRuntime().availableProcessors();
+        ExecutorService executor = Executors.newFixedThreadPool(threads,
+                new ThreadFactory() {
+                    int counter = 0;
+                    public synchronized Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable,
+                                "ringo-precompile-" + (++counter));
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        long start = System.currentTimeMillis();
+        try {
+            for (final String moduleName : moduleNames) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        contextFactory.call(new ContextAction() {
+                            public Object run(Context cx) {
+                                try {
+                                    getScript(moduleName).getScript(cx);
+                                } catch (Exception x) {
+                                    log.log(Level.FINE, "Error precompiling " + moduleName, x);
+                                }
+                                return null;
+                            }
+                        });
+                    }
+                });
+            }
+        } finally {
+            executor.shutdown();
+        }
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        if (log.isLoggable(Level.FINE)) {
+            log.fine("Precompiled " + moduleNames.size() + " modules using "
+                    + threads + " threads in "
+                    + (System.currentTimeMillis() - start) + " millis");
+        }
     }
 
     /**
@@ -438,21 +524,20 @@ public class RhinoEngine implements ScopeProvider {
     public ReloadableScript getScript(String moduleName, Repository localPath)
             throws JavaScriptException, IOException {
         Context cx = Context.getCurrentContext();
-        Map<Trackable,ReloadableScript> scripts = getScriptCache(cx);
+        ConcurrentMap<Trackable,ReloadableScript> scripts = getScriptCache(cx);
         ReloadableScript script;
-        Trackable source;
-        source = findResource(moduleName + ".js", localPath);
-        if (!source.exists()) {
-            source = findResource(moduleName, localPath);
-        }
-        if (scripts.containsKey(source)) {
-            script = scripts.get(source);
-        } else if (sharedScripts.containsKey(source)) {
+        Trackable source = resolveModule(moduleName, localPath);
+        script = scripts.get(source);
+        if (script == null) {
             script = sharedScripts.get(source);
-        } else {
+        }
+        if (script == null) {
             script = new ReloadableScript(source, this);
             if (source.exists()) {
-                scripts.put(source, script);
+                ReloadableScript existing = scripts.putIfAbsent(source, script);
+                if (existing != null) {
+                    script = existing;
+                }
             }
         }
         return script;
@@ -476,8 +561,10 @@ public class RhinoEngine implements ScopeProvider {
         } finally {
             if (parent != null) {
                 parent.addDependency(script);
+                currentScripts.set(parent);
+            } else {
+                currentScripts.remove();
             }
-            currentScripts.set(parent);
         }
         return result;
 
@@ -504,8 +591,10 @@ public class RhinoEngine implements ScopeProvider {
         } finally {
             if (parent != null) {
                 parent.addDependency(script);
+                currentScripts.set(parent);
+            } else {
+                currentScripts.remove();
             }
-            currentScripts.set(parent);
         }
         return module;
     }
@@ -582,6 +671,14 @@ public class RhinoEngine implements ScopeProvider {
         return config.isPolicyEnabled();
     }
 
+    /**
+     * Get the persistent cache for compiled module classes.
+     * @return the class cache, or null if class caching is disabled
+     */
+    protected ClassCache getClassCache() {
+        return classCache;
+    }
+
     protected void registerSharedScript(Trackable resource, ReloadableScript script) {
         sharedScripts.put(resource, script);
     }
@@ -592,7 +689,102 @@ public class RhinoEngine implements ScopeProvider {
         }
     }
 
-    private Map<Trackable,ReloadableScript> getScriptCache(Context cx) {
+    /**
+     * Register a dependency in the reverse dependency index. This is used to
+     * invalidate cached shared modules when one of their dependencies changes.
+     * Only file resources are tracked, as these are the only ones we receive
+     * change notifications for.
+     * @param dependency the script being depended on
+     * @param dependent the script depending on it
+     */
+    protected void registerDependency(ReloadableScript dependency,
+                                      ReloadableScript dependent) {
+        if (dependents != null && dependency.source instanceof FileResource) {
+            String path = dependency.source.getPath();
+            synchronized (dependents) {
+                Map<Trackable, ReloadableScript> map = dependents.get(path);
+                if (map == null) {
+                    map = new ConcurrentHashMap<Trackable, ReloadableScript>();
+                    dependents.put(path, map);
+                }
+                // replaces any previous script for the same source
+                map.put(dependent.source, dependent);
+            }
+        }
+    }
+
+    /**
+     * Remove a script from the reverse dependency index before it is
+     * evaluated again. Its dependencies are registered again as they are
+     * loaded, so dependencies that are no longer loaded are pruned.
+     * @param dependent the script about to be evaluated
+     */
+    protected void unregisterDependencies(ReloadableScript dependent) {
+        if (dependents != null) {
+            synchronized (dependents) {
+                for (ReloadableScript script : dependent.dependencies) {
+                    String path = script.source.getPath();
+                    Map<Trackable, ReloadableScript> map = dependents.get(path);
+                    if (map != null && map.get(dependent.source) == dependent) {
+                        map.remove(dependent.source);
+                        if (map.isEmpty()) {
+                            dependents.remove(path);
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Invalidate all scripts depending directly or indirectly on the
+     * source with the given path.
+     * @param path the path of the changed source
+     * @param visited the set of paths already visited
+     */
+    private void invalidateDependents(String path, Set<String> visited) {
+        Map<Trackable, ReloadableScript> map = dependents.get(path);
+        if (map == null || !visited.add(path)) {
+            return;
+        }
+        for (ReloadableScript script : map.values()) {
+            script.invalidate();
+            invalidateDependents(script.source.getPath(), visited);
+        }
+    }
+
+    /**
+     * Resolve a module name to its source resource. If reloading is disabled
+     * results are cached until the list of repositories changes.
+     * @param moduleName the module name
+     * @param localPath the repository of the calling module, or null
+     * @return the module source, which may not exist
+     * @throws IOException if an I/O error occurred
+     */
+    private Trackable resolveModule(String moduleName, Repository localPath)
+            throws IOException {
+        ResolutionCache cache = resolutions;
+        if (cache == null || !cache.isValid()) {
+            resolutions = cache = new ResolutionCache();
+        }
+        // relative names are resolved against the local path, all others
+        // resolve the same regardless of the calling module
+        String key = localPath != null && moduleName.startsWith(".") ?
+                localPath.getRelativePath() + moduleName : moduleName;
+        Trackable source = cache.get(key);
+        if (source == null) {
+            source = findResource(moduleName + ".js", localPath);
+            boolean exists = source.exists();
+            if (!exists) {
+                source = findResource(moduleName, localPath);
+                exists = source.exists();
+            }
+            cache.put(key, source, exists);
+        }
+        return source;
+    }
+
+    private ConcurrentMap<Trackable,ReloadableScript> getScriptCache(Context cx) {
         return cx.getOptimizationLevel() == -1 ?
                 interpretedScripts : compiledScripts;
     }
@@ -614,8 +806,20 @@ public class RhinoEngine implements ScopeProvider {
     @SuppressWarnings("unchecked")
     private void resetThreadLocals(Object[] objs) {
         if (objs != null) {
-            engines.set((RhinoEngine) objs[0]);
-            modules.set((Map<Trackable, ModuleScope>) objs[1]);
+            setOrRemove(engines, (RhinoEngine) objs[0]);
+            setOrRemove(modules, (Map<Trackable, ModuleScope>) objs[1]);
+        }
+    }
+
+    /**
+     * Set a thread local to the given value, or remove it if the value is
+     * null so that threads returned to a pool don't retain any entries.
+     */
+    static <T> void setOrRemove(ThreadLocal<T> local, T value) {
+        if (value == null) {
+            local.remove();
+        } else {
+            local.set(value);
         }
     }
 
@@ -914,6 +1118,57 @@ public class RhinoEngine implements ScopeProvider {
             retry = message;
         }
     }
+
+    /**
+     * A snapshot of module resolutions that is valid as long as the
+     * repository list is unchanged. Resolutions are not cached if reloading
+     * is enabled, since a module file created later may shadow a cached
+     * resolution. The number of cached negative results for modules that
+     * couldn't be found is limited, since module names may come from
+     * user input.
+     */
+    class ResolutionCache {
+        final Repository[] snapshot;
+        final boolean enabled;
+        final Map<String, Trackable> map = new ConcurrentHashMap<String, Trackable>();
+        final AtomicInteger negatives = new AtomicInteger();
+
+        ResolutionCache() {
+            snapshot = repositories.toArray(new Repository[repositories.size()]);
+            enabled = !config.isReloading();
+        }
+
+        boolean isValid() {
+            if (snapshot.length != repositories.size()) {
+                return false;
+            }
+            try {
+                for (int i = 0; i < snapshot.length; i++) {
+                    if (snapshot[i] != repositories.get(i)) {
+                        return false;
+                    }
+                }
+            } catch (IndexOutOfBoundsException concurrentlyModified) {
+                return false;
+            }
+            return true;
+        }
+
+        Trackable get(String key) {
+            return enabled ? map.get(key) : null;
+        }
+
+        void put(String key, Trackable source, boolean exists) {
+            if (!enabled) {
+                return;
+            }
+            if (!exists && negatives.incrementAndGet() > MAX_NEGATIVE_RESOLUTIONS) {
+                return;
+            }
+            map.put(key, source);
+        }
+    }
+
 }
 
 class AppClassLoader extends RingoClassLoader {
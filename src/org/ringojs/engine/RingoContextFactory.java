@@ -17,6 +17,10 @@ import org.ringojs.tools.RingoConfiguration;
 
 import java.util.HashMap;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
 
 public class RingoContextFactory extends ContextFactory {
 
@@ -33,6 +37,14 @@ public class RingoContextFactory extends ContextFactory {
 
     static int instructionLimit = 0xfffffff;
 
+    // stateless helper shared by all contexts created by this factory
+    private final SecurityController securityController = new PolicySecurityController();
+    // thread states are pooled by the factory rather than kept by each thread,
+    // so container threads don't retain them after the context is released
+    private final Queue<ThreadState> statePool = new ConcurrentLinkedQueue<ThreadState>();
+    private final ThreadLocal<ThreadState> threadStates = new ThreadLocal<ThreadState>();
+    static final int MAX_POOLED_STATES = 64;
+
     public RingoContextFactory(RhinoEngine engine, RingoConfiguration config) {
         this.engine = engine;
         optimizationLevel = config.getOptLevel();
@@ -71,9 +83,18 @@ public class RingoContextFactory extends ContextFactory {
     @Override
     protected void onContextCreated(Context cx) {
         super.onContextCreated(cx);
+        ThreadState state = statePool.poll();
+        if (state == null) {
+            state = new ThreadState();
+        }
+        threadStates.set(state);
         RhinoEngine.engines.set(engine);
-        RhinoEngine.modules.set(new HashMap<Trackable, ModuleScope>());
-        Thread.currentThread().setContextClassLoader(engine.getClassLoader());
+        RhinoEngine.modules.set(state.modules);
+        RhinoEngine.errors.set(state.errors);
+        // remember the thread's class loader so we can restore it on release
+        Thread thread = Thread.currentThread();
+        state.classLoader = thread.getContextClassLoader();
+        thread.setContextClassLoader(engine.getClassLoader());
         cx.setApplicationClassLoader(engine.getClassLoader());
         cx.setWrapFactory(engine.getWrapFactory());
         cx.setLanguageVersion(languageVersion);
@@ -83,19 +104,45 @@ public class RingoContextFactory extends ContextFactory {
         }
         if (engine.isPolicyEnabled()) {
             cx.setInstructionObserverThreshold(instructionLimit);
-            cx.setSecurityController(new PolicySecurityController());
+            cx.setSecurityController(securityController);
         }
-        cx.setErrorReporter(new ToolErrorReporter(true));
-        RhinoEngine.errors.set(new ArrayList<SyntaxError>());
+        cx.setErrorReporter(state.errorReporter);
         cx.setGeneratingDebug(generatingDebug);
     }
 
     @Override
     protected void onContextReleased(Context cx) {
         super.onContextReleased(cx);
-        RhinoEngine.engines.set(null);
-        RhinoEngine.modules.set(null);
-        RhinoEngine.errors.set(null);
+        // remove all thread locals so threads returned to a container pool
+        // don't retain any engine state, and return the cleared thread state
+        // to the pool for reuse by the next context.
+        ThreadState state = threadStates.get();
+        threadStates.remove();
+        RhinoEngine.engines.remove();
+        RhinoEngine.modules.remove();
+        RhinoEngine.errors.remove();
+        RhinoEngine.currentScripts.remove();
+        if (state != null) {
+            Thread.currentThread().setContextClassLoader(state.classLoader);
+            state.classLoader = null;
+            state.modules.clear();
+            state.errors.clear();
+            if (statePool.size() < MAX_POOLED_STATES) {
+                statePool.offer(state);
+            }
+        }
+    }
+
+    /**
+     * State of a context's thread. Released states are pooled and reused by
+     * the next context, so entering a context doesn't allocate new collections.
+     */
+    static class ThreadState {
+        final Map<Trackable, ModuleScope> modules = new HashMap<Trackable, ModuleScope>();
+        final List<SyntaxError> errors = new ArrayList<SyntaxError>();
+        // not shared between threads as module loading toggles warnings
+        final ToolErrorReporter errorReporter = new ToolErrorReporter(true);
+        ClassLoader classLoader;
     }
 
     /**
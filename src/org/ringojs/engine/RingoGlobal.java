@@ -43,15 +43,14 @@ import java.security.PrivilegedAction;
 import java.io.IOException;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
-import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class RingoGlobal extends Global {
 
-    private static ExecutorService threadPool;
-    private static AtomicInteger ids = new AtomicInteger();
     private int asyncCount = 0;
+    // the number of tasks ever started by spawn() or registered as async
+    private static final AtomicLong asyncStarted = new AtomicLong();
 
     protected RingoGlobal() {}
 
@@ -244,19 +243,35 @@ public class RingoGlobal extends Global {
         }
         if (newArgs == null) { newArgs = ScriptRuntime.emptyArgs; }
         final Object[] functionArgs = newArgs;
-        return getThreadPool().submit(new Callable<Object>() {
-            public Object call() {
-                return cxfactory.call(new ContextAction() {
-                    public Object run(Context cx) {
-                        return function.call(cx, scope, scope, functionArgs);
-                    }
-                });
-            }
-        });
+        asyncStarted.incrementAndGet();
+        try {
+            return getThreadPool().submit(new Callable<Object>() {
+                public Object call() {
+                    return cxfactory.call(new ContextAction() {
+                        public Object run(Context cx) {
+                            return function.call(cx, scope, scope, functionArgs);
+                        }
+                    });
+                }
+            });
+        } catch (RejectedExecutionException rx) {
+            throw Context.reportRuntimeError(rx.getMessage());
+        }
     }
 
     public synchronized void increaseAsyncCount() {
         asyncCount += 1;
+        asyncStarted.incrementAndGet();
+    }
+
+    /**
+     * Get the number of tasks started with spawn() or registered with
+     * increaseAsyncCount() by all engines so far. Comparing two values tells
+     * whether code running in between may have started asynchronous tasks.
+     * @return the number of asynchronous tasks started
+     */
+    public static long getAsyncStartedCount() {
+        return asyncStarted.get();
     }
 
     public synchronized void decreaseAsyncCount() {
@@ -283,22 +298,7 @@ public class RingoGlobal extends Global {
     }
 
     static ExecutorService getThreadPool() {
-        if (threadPool != null) {
-            return threadPool;
-        }
-        synchronized (Global.class) {
-            if (threadPool == null) {
-                threadPool = Executors.newCachedThreadPool(new ThreadFactory() {
-                    public Thread newThread(Runnable runnable) {
-                        Thread thread = new Thread(runnable,
-                                "ringo-spawn-" + ids.incrementAndGet());
-                        thread.setDaemon(true);
-                        return thread;
-                    }
-                });
-            }
-            return threadPool;
-        }
+        return SpawnExecutor.getInstance();
     }
 
 }
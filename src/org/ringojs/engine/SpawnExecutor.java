@@ -0,0 +1,417 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.engine;
+
+import java.lang.reflect.Method;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * The bounded thread pool used to run tasks started with <code>spawn()</code>
+ * and callbacks scheduled with the <code>ringo/scheduler</code> module.
+ *
+ * <p>The pool is configured through the following system properties:</p>
+ * <ul>
+ * <li><code>ringo.virtualthreads</code> - if true and the Java runtime
+ *     supports virtual threads, tasks are run on virtual threads</li>
+ * <li><code>ringo.spawn.threads</code> - the maximal number of threads,
+ *     defaults to 256. When running on virtual threads and this isn't set,
+ *     each task is started on a new virtual thread without pooling.</li>
+ * <li><code>ringo.spawn.queue</code> - the number of tasks that can be queued
+ *     once all threads are busy, defaults to 10000. 0 disables queueing,
+ *     a negative value makes the queue unbounded.</li>
+ * <li><code>ringo.spawn.policy</code> - what to do with tasks that can't be
+ *     queued: <code>abort</code> (the default) throws a
+ *     RejectedExecutionException, <code>caller</code> runs the task in the
+ *     submitting thread, which slows down producers but may deadlock
+ *     callers that wait for the task to start, such as pipe copiers.</li>
+ * </ul>
+ *
+ * <p>Tasks handed over with {@link #executeLater(Runnable)} are never run
+ * in the submitting thread. If they are rejected they are kept in a separate
+ * overflow queue and handed over to the pool's queue as soon as it has
+ * room again.</p>
+ *
+ * <p>Idle threads are terminated after 60 seconds.</p>
+ */
+public class SpawnExecutor extends ThreadPoolExecutor {
+
+    private final AtomicLong rejected = new AtomicLong();
+    private final boolean callerRuns;
+    private final BlockingQueue<Runnable> overflow = new LinkedBlockingQueue<Runnable>();
+    private Thread overflowThread;
+    // thread-per-task executor used instead of the pool for virtual threads
+    private final ExecutorService perTask;
+    private final AtomicInteger perTaskActive = new AtomicInteger();
+    private final AtomicLong perTaskCompleted = new AtomicLong();
+
+    private static SpawnExecutor instance;
+
+    private static Logger log = Logger.getLogger("org.ringojs.engine.SpawnExecutor");
+
+    /**
+     * Create a new executor.
+     * @param threads the maximal number of threads
+     * @param queueSize the queue capacity, 0 for no queue, or a negative
+     *                  number for an unbounded queue
+     * @param callerRuns whether to run rejected tasks in the caller's thread
+     *                   rather than throwing a RejectedExecutionException
+     */
+    public SpawnExecutor(int threads, int queueSize, boolean callerRuns) {
+        this(threads, queueSize, callerRuns, new DaemonThreadFactory("ringo-spawn-"));
+    }
+
+    /**
+     * Create an executor that passes each task to the given thread-per-task
+     * executor instead of running it on pooled threads.
+     * @param perTask the thread-per-task executor
+     */
+    private SpawnExecutor(ExecutorService perTask) {
+        this(1, 0, false, new DaemonThreadFactory("ringo-spawn-"), perTask);
+    }
+
+    /**
+     * Create a new executor using the given thread factory.
+     * @param threads the maximal number of threads
+     * @param queueSize the queue capacity, 0 for no queue, or a negative
+     *                  number for an unbounded queue
+     * @param callerRuns whether to run rejected tasks in the caller's thread
+     *                   rather than throwing a RejectedExecutionException
+     * @param threadFactory the factory used to create threads
+     */
+    public SpawnExecutor(int threads, int queueSize, boolean callerRuns,
+                         ThreadFactory threadFactory) {
+        this(threads, queueSize, callerRuns, threadFactory, null);
+    }
+
+    private SpawnExecutor(int threads, int queueSize, boolean callerRuns,
+                          ThreadFactory threadFactory, ExecutorService perTask) {
+        super(threads, threads, 60L, TimeUnit.SECONDS, createQueue(queueSize),
+                threadFactory);
+        this.callerRuns = callerRuns;
+        this.perTask = perTask;
+        allowCoreThreadTimeOut(true);
+        setRejectedExecutionHandler(new RejectedExecutionHandler() {
+            public void rejectedExecution(Runnable task, ThreadPoolExecutor executor) {
+                rejected.incrementAndGet();
+                if (task instanceof Deferred) {
+                    throw new RejectedExecutionException(
+                            "spawn() thread pool exhausted");
+                } else if (SpawnExecutor.this.callerRuns && !executor.isShutdown()) {
+                    task.run();
+                } else {
+                    throw new RejectedExecutionException(
+                            "spawn() thread pool exhausted");
+                }
+            }
+        });
+    }
+
+    /**
+     * Execute a task without ever running it in the calling thread, regardless
+     * of the rejection policy. This is used by threads that must not be
+     * blocked by the tasks they hand over, such as the scheduler threads. If
+     * the pool and its queue are full the task is added to an overflow queue
+     * and executed once the pool has capacity again.
+     * @param task the task
+     * @throws RejectedExecutionException if the executor has been shut down
+     */
+    public void executeLater(Runnable task) {
+        if (isShutdown()) {
+            throw new RejectedExecutionException("spawn() thread pool shut down");
+        }
+        try {
+            execute(new Deferred(task));
+        } catch (RejectedExecutionException x) {
+            overflow.add(task);
+            startOverflowThread();
+        }
+    }
+
+    private synchronized void startOverflowThread() {
+        if (overflowThread != null) {
+            return;
+        }
+        overflowThread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (!isShutdown()) {
+                        Deferred task = new Deferred(overflow.take());
+                        while (!isShutdown()) {
+                            try {
+                                execute(task);
+                                break;
+                            } catch (RejectedExecutionException x) {
+                                // still full, block until a worker takes
+                                // the task from the queue. Time out now and
+                                // then to notice shutdown and worker timeouts.
+                                if (getQueue().offer(task, 1, TimeUnit.SECONDS)) {
+                                    break;
+                                }
+                            }
+                        }
+                    }
+                } catch (InterruptedException ix) {
+                    // exit
+                }
+            }
+        }, "ringo-spawn-overflow");
+        overflowThread.setDaemon(true);
+        overflowThread.start();
+    }
+
+    @Override
+    public void execute(final Runnable task) {
+        if (perTask == null) {
+            super.execute(task);
+            return;
+        }
+        if (isShutdown()) {
+            throw new RejectedExecutionException("spawn() thread pool shut down");
+        }
+        perTask.execute(new Runnable() {
+            public void run() {
+                perTaskActive.incrementAndGet();
+                try {
+                    task.run();
+                } finally {
+                    perTaskActive.decrementAndGet();
+                    perTaskCompleted.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    @Override
+    public int getActiveCount() {
+        return perTask == null ? super.getActiveCount() : perTaskActive.get();
+    }
+
+    @Override
+    public long getCompletedTaskCount() {
+        return perTask == null ?
+                super.getCompletedTaskCount() : perTaskCompleted.get();
+    }
+
+    @Override
+    public void shutdown() {
+        super.shutdown();
+        if (perTask != null) {
+            perTask.shutdown();
+        }
+        synchronized (this) {
+            if (overflowThread != null) {
+                overflowThread.interrupt();
+            }
+        }
+    }
+
+    /**
+     * Get the shared executor instance, creating it on first invocation.
+     * @return the shared executor
+     */
+    public static synchronized SpawnExecutor getInstance() {
+        if (instance == null) {
+            ThreadFactory factory = null;
+            if (Boolean.getBoolean("ringo.virtualthreads")) {
+                factory = createVirtualThreadFactory("ringo-spawn-");
+                if (factory == null) {
+                    log.warning("Virtual threads not supported by this Java runtime");
+                }
+            }
+            Integer threads = Integer.getInteger("ringo.spawn.threads");
+            if (factory != null && threads == null) {
+                // virtual threads are cheap, so don't pool them
+                instance = new SpawnExecutor(newThreadPerTaskExecutor(factory));
+                return instance;
+            }
+            int queue = Integer.getInteger("ringo.spawn.queue", 10000).intValue();
+            String policy = System.getProperty("ringo.spawn.policy", "abort");
+            if (factory == null) {
+                factory = new DaemonThreadFactory("ringo-spawn-");
+            }
+            instance = new SpawnExecutor(
+                    Math.max(1, threads == null ? 256 : threads.intValue()),
+                    queue, "caller".equals(policy), factory);
+        }
+        return instance;
+    }
+
+    /**
+     * Check whether the Java runtime supports virtual threads.
+     * @return true if virtual threads are available
+     */
+    public static boolean isVirtualThreadSupported() {
+        return createVirtualThreadFactory("ringo-") != null;
+    }
+
+    /**
+     * Create an executor that runs each task on a virtual thread. This can
+     * be used as thread pool for the HTTP server so JSGI requests are
+     * handled on virtual threads.
+     * @param prefix the thread name prefix
+     * @return a new executor
+     * @throws UnsupportedOperationException if the Java runtime doesn't
+     *         support virtual threads
+     */
+    public static ExecutorService newVirtualThreadExecutor(String prefix) {
+        ThreadFactory factory = createVirtualThreadFactory(prefix);
+        if (factory == null) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads not supported by this Java runtime");
+        }
+        return newThreadPerTaskExecutor(factory);
+    }
+
+    /**
+     * Create an executor that starts a new thread for each task. This is
+     * only available on recent Java runtimes, so we look it up by reflection.
+     */
+    private static ExecutorService newThreadPerTaskExecutor(ThreadFactory factory) {
+        try {
+            Method method = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) method.invoke(null, factory);
+        } catch (Exception x) {
+            throw new UnsupportedOperationException(
+                    "Thread-per-task executors not supported by this Java runtime", x);
+        }
+    }
+
+    /**
+     * Create a factory for named virtual threads. Virtual threads are only
+     * available on recent Java runtimes, so we look them up by reflection.
+     * @return the thread factory, or null if virtual threads aren't supported
+     */
+    private static ThreadFactory createVirtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Method ofVirtual = Thread.class.getMethod("ofVirtual");
+            Method name = builderClass.getMethod("name", String.class, long.class);
+            Method factory = builderClass.getMethod("factory");
+            Object builder = ofVirtual.invoke(null);
+            builder = name.invoke(builder, prefix, Long.valueOf(1));
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (Exception x) {
+            // not available, or preview feature not enabled
+            return null;
+        }
+    }
+
+    /**
+     * Get the number of tasks that were rejected because the pool and queue
+     * were full. With the caller-runs policy these tasks were executed by
+     * the submitting thread.
+     * @return the number of rejected tasks
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of queued tasks waiting for a thread.
+     * @return the queue size
+     */
+    public int getQueuedCount() {
+        return getQueue().size();
+    }
+
+    /**
+     * Get the number of tasks handed over with {@link #executeLater(Runnable)}
+     * waiting in the overflow queue.
+     * @return the overflow queue size
+     */
+    public int getOverflowCount() {
+        return overflow.size();
+    }
+
+    /**
+     * Get a snapshot of the executor's metrics as a map.
+     * @return a map containing the metrics
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("active", Integer.valueOf(getActiveCount()));
+        map.put("queued", Integer.valueOf(getQueuedCount()));
+        map.put("completed", Long.valueOf(getCompletedTaskCount()));
+        map.put("rejected", Long.valueOf(getRejectedCount()));
+        map.put("overflow", Integer.valueOf(getOverflowCount()));
+        if (perTask != null) {
+            // one virtual thread per running task
+            map.put("threads", Integer.valueOf(perTaskActive.get()));
+            map.put("maxThreads", Integer.valueOf(Integer.MAX_VALUE));
+        } else {
+            map.put("threads", Integer.valueOf(getPoolSize()));
+            map.put("largestThreads", Integer.valueOf(getLargestPoolSize()));
+            map.put("maxThreads", Integer.valueOf(getMaximumPoolSize()));
+        }
+        return map;
+    }
+
+    private static BlockingQueue<Runnable> createQueue(int size) {
+        if (size == 0) {
+            return new SynchronousQueue<Runnable>();
+        } else if (size < 0) {
+            return new LinkedBlockingQueue<Runnable>();
+        }
+        return new ArrayBlockingQueue<Runnable>(size);
+    }
+
+    /**
+     * Marks tasks that must not be run by the caller when rejected.
+     */
+    static class Deferred implements Runnable {
+        private final Runnable task;
+
+        Deferred(Runnable task) {
+            this.task = task;
+        }
+
+        public void run() {
+            task.run();
+        }
+    }
+
+    static class DaemonThreadFactory implements ThreadFactory {
+        private final String prefix;
+        private final AtomicInteger ids = new AtomicInteger();
+
+        DaemonThreadFactory(String prefix) {
+            this.prefix = prefix;
+        }
+
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, prefix + ids.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Limits the number of requests a servlet processes concurrently. Requests
+ * beyond the limit wait in a bounded queue for a limited time and are shed
+ * if the queue is full or the wait times out.
+ *
+ * <p>If adaptive limiting is enabled the limit moves between the minimal and
+ * maximal limit based on observed latency: it is decreased by 10% when the
+ * median latency of the current round of requests exceeds twice the baseline,
+ * and increased by one while latency stays below that threshold and the
+ * limit is actually being used. A round consists of <code>limit</code>
+ * completed requests, but at least 20 and at most 1000, and the limit changes
+ * at most once per round.</p>
+ *
+ * <p>The baseline is the median of the latencies of the last ten rounds in
+ * which no request had to wait or was shed, so a stable mix of fast and slow
+ * requests doesn't drive the limit down, while latencies measured under
+ * overload don't become the new normal. The baseline is also frozen while
+ * the limit is being decreased. Once the limit has reached its minimum,
+ * slower rounds without waiting requests are taken into the baseline, so it
+ * follows an application that has permanently become slower.</p>
+ */
+public class AdmissionControl {
+
+    private final int minLimit;
+    private final int maxLimit;
+    private final int maxQueue;
+    private final long queueTimeout;
+    private final boolean adaptive;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+    // guarded by lock
+    private int limit;
+    private int active = 0;
+    private int waiting = 0;
+
+    // latency tracking for adaptive limits, guarded by lock
+    private long[] latencies;
+    private int count = 0;
+    // whether requests had to wait or were shed in the current round
+    private boolean saturated = false;
+    private long[] baselines;
+    private long baselineRounds = 0;
+    private long baseline = 0;
+
+    private static final int MAX_ROUND = 1000;
+    private static final int MIN_ROUND = 20;
+    private static final int BASELINE_ROUNDS = 10;
+    private static final double TOLERANCE = 2.0;
+    private static final double DECREASE = 0.9;
+
+    private final AtomicLong admitted = new AtomicLong();
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong shed = new AtomicLong();
+
+    /**
+     * Create a new admission control.
+     * @param maxLimit the maximal number of concurrent requests
+     * @param minLimit the minimal limit when adaptive limiting is enabled
+     * @param adaptive whether to adapt the limit to observed latency
+     * @param maxQueue the maximal number of requests waiting to be admitted
+     * @param queueTimeout the maximal time in milliseconds a request waits
+     *                     to be admitted
+     */
+    public AdmissionControl(int maxLimit, int minLimit, boolean adaptive,
+                            int maxQueue, long queueTimeout) {
+        if (maxLimit < 1) {
+            throw new IllegalArgumentException("Limit must be positive: " + maxLimit);
+        }
+        this.maxLimit = maxLimit;
+        this.minLimit = Math.max(1, Math.min(minLimit, maxLimit));
+        this.adaptive = adaptive;
+        this.maxQueue = Math.max(0, maxQueue);
+        this.queueTimeout = Math.max(0, queueTimeout);
+        this.limit = maxLimit;
+        if (adaptive) {
+            latencies = new long[MAX_ROUND];
+            baselines = new long[BASELINE_ROUNDS];
+        }
+    }
+
+    /**
+     * Try to admit a request, waiting in the queue if the limit is reached.
+     * @return true if the request was admitted and {@link #release(long)}
+     *         must be called once it is done, false if it should be shed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean acquire() throws InterruptedException {
+        lock.lock();
+        try {
+            if (active < limit) {
+                active += 1;
+                admitted.incrementAndGet();
+                return true;
+            }
+            saturated = true;
+            if (waiting >= maxQueue) {
+                shed.incrementAndGet();
+                return false;
+            }
+            waiting += 1;
+            queued.incrementAndGet();
+            try {
+                long nanos = TimeUnit.MILLISECONDS.toNanos(queueTimeout);
+                while (active >= limit) {
+                    if (nanos <= 0) {
+                        shed.incrementAndGet();
+                        return false;
+                    }
+                    nanos = available.awaitNanos(nanos);
+                }
+                active += 1;
+                admitted.incrementAndGet();
+                return true;
+            } finally {
+                waiting -= 1;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Release an admitted request.
+     * @param latency the time the request took in nanoseconds
+     */
+    public void release(long latency) {
+        lock.lock();
+        try {
+            active -= 1;
+            if (adaptive) {
+                adapt(latency);
+            }
+            if (active < limit) {
+                available.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void adapt(long latency) {
+        latencies[count++] = latency;
+        // evaluate the limit once per round of requests
+        int round = Math.min(MAX_ROUND, Math.max(MIN_ROUND, limit));
+        if (count < round) {
+            return;
+        }
+        long current = median(latencies, count);
+        boolean overloaded = saturated;
+        count = 0;
+        saturated = false;
+        if (baseline == 0) {
+            // use the first round as baseline
+            addBaseline(current);
+            return;
+        }
+        boolean slow = current > baseline * TOLERANCE;
+        if (slow && limit > minLimit) {
+            // keep the baseline frozen while decreasing
+            limit = Math.max(minLimit, (int) (limit * DECREASE));
+            return;
+        }
+        if (!overloaded) {
+            addBaseline(current);
+        }
+        if (!slow && active + 1 >= limit && limit < maxLimit) {
+            limit += 1;
+            available.signal();
+        }
+    }
+
+    /**
+     * Add the median latency of a round to the baseline rounds.
+     */
+    private void addBaseline(long latency) {
+        baselines[(int) (baselineRounds++ % BASELINE_ROUNDS)] = latency;
+        baseline = median(baselines, (int) Math.min(baselineRounds, BASELINE_ROUNDS));
+    }
+
+    /**
+     * Get the median of the first n values of an array.
+     */
+    private static long median(long[] values, int n) {
+        long[] sorted = Arrays.copyOf(values, n);
+        Arrays.sort(sorted);
+        return sorted[n / 2];
+    }
+
+    /**
+     * Get the current concurrency limit.
+     * @return the current limit
+     */
+    public int getLimit() {
+        lock.lock();
+        try {
+            return limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get a snapshot of the admission metrics as a map.
+     * @return a map containing the metrics
+     */
+    public Map<String, Object> getMetrics() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        lock.lock();
+        try {
+            map.put("active", Integer.valueOf(active));
+            map.put("waiting", Integer.valueOf(waiting));
+            map.put("limit", Integer.valueOf(limit));
+        } finally {
+            lock.unlock();
+        }
+        map.put("admitted", Long.valueOf(admitted.get()));
+        map.put("queued", Long.valueOf(queued.get()));
+        map.put("shed", Long.valueOf(shed.get()));
+        map.put("maxLimit", Integer.valueOf(maxLimit));
+        map.put("minLimit", Integer.valueOf(minLimit));
+        map.put("maxQueue", Integer.valueOf(maxQueue));
+        return map;
+    }
+}
@@ -0,0 +1,408 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.ringojs.wrappers.Binary;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collections;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Writes the body of a suspended response from a shared pool of writer
+ * threads. Calls to {@link #write(Object)}, {@link #flush()} and
+ * {@link #close()} only queue the data and return immediately, so threads
+ * producing content never block on a slow client. Queued chunks are written
+ * in batches with a single flush per batch, and closing the writer completes
+ * the continuation once all queued data has been written. Aborting the writer
+ * instead discards queued data and closes the connection right away, which
+ * also releases a writer thread blocked on the client.
+ *
+ * <p>The number of writer threads is set by the <code>ringo.jsgi.writers</code>
+ * system property and defaults to 32. Idle writer threads are terminated
+ * after 60 seconds.</p>
+ *
+ * <p>Writes to the client block the writer thread, so a few stalled clients
+ * could otherwise occupy all writer threads until the server's idle timeout
+ * closes their connections. A watchdog therefore aborts writers whose
+ * current write, flush or close has been blocked for longer than the stall
+ * timeout, which closes the client connection and releases the thread. The
+ * timeout is set in milliseconds by the <code>ringo.jsgi.writetimeout</code>
+ * system property and defaults to 10000, 0 disables it. Writers for other
+ * clients may still have to wait up to the stall timeout for a thread.</p>
+ */
+public class AsyncWriter {
+
+    private final OutputStream output;
+    private final Continuation continuation;
+    private final long maxPending;
+    private final boolean autoflush;
+    private final long stallTimeout;
+
+    private final Queue<Object> queue = new ConcurrentLinkedQueue<Object>();
+    private final AtomicBoolean scheduled = new AtomicBoolean(false);
+    private final AtomicLong pending = new AtomicLong();
+    private volatile boolean closed = false;
+    private volatile boolean failed = false;
+    // the time the current blocking operation started, or 0
+    private volatile long blockedSince = 0;
+
+    private final Runnable drainTask = new Runnable() {
+        public void run() {
+            drain();
+        }
+    };
+
+    private static final Object FLUSH = new Object();
+    private static final Object CLOSE = new Object();
+
+    private static ExecutorService executor;
+    private static ScheduledExecutorService watchdog;
+    // writers currently draining their queue
+    private static final Set<AsyncWriter> draining =
+            Collections.newSetFromMap(new ConcurrentHashMap<AsyncWriter, Boolean>());
+
+    static final long DEFAULT_STALL_TIMEOUT = 10000;
+    private static final long WATCHDOG_INTERVAL = 1000;
+
+    private static Logger log = Logger.getLogger("org.ringojs.jsgi.AsyncWriter");
+
+    /**
+     * Create a writer for a suspended response.
+     * @param output the response output stream
+     * @param continuation the continuation to complete when the writer is
+     *                     closed, or null
+     * @param maxPending the maximal number of bytes that may be queued for
+     *                   writing, 0 for no limit
+     * @param autoflush whether to flush after each batch of writes
+     */
+    public AsyncWriter(OutputStream output, Continuation continuation,
+                       long maxPending, boolean autoflush) {
+        this(output, continuation, maxPending, autoflush,
+                Long.getLong("ringo.jsgi.writetimeout", DEFAULT_STALL_TIMEOUT).longValue());
+    }
+
+    /**
+     * Create a writer for a suspended response.
+     * @param output the response output stream
+     * @param continuation the continuation to complete when the writer is
+     *                     closed, or null
+     * @param maxPending the maximal number of bytes that may be queued for
+     *                   writing, 0 for no limit
+     * @param autoflush whether to flush after each batch of writes
+     * @param stallTimeout the number of milliseconds a single write may block
+     *                   before the writer is aborted, 0 for no limit
+     */
+    public AsyncWriter(OutputStream output, Continuation continuation,
+                       long maxPending, boolean autoflush, long stallTimeout) {
+        this.output = output;
+        this.continuation = continuation;
+        this.maxPending = maxPending;
+        this.autoflush = autoflush;
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Queue a chunk of data for writing.
+     * @param data a Binary or byte array
+     * @return true if the data was queued, false if the writer is closed,
+     *         a previous write failed, or the data would exceed the maximal
+     *         number of pending bytes
+     */
+    public boolean write(Object data) {
+        int length;
+        if (data instanceof Binary) {
+            length = ((Binary) data).getLength();
+        } else if (data instanceof byte[]) {
+            length = ((byte[]) data).length;
+        } else {
+            throw new IllegalArgumentException("Can't write " + data);
+        }
+        if (closed || failed) {
+            return false;
+        }
+        if (maxPending > 0 && pending.get() + length > maxPending) {
+            return false;
+        }
+        pending.addAndGet(length);
+        queue.offer(data);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Request the data queued so far to be flushed to the client.
+     * @return false if the writer is closed or a previous write failed
+     */
+    public boolean flush() {
+        if (closed || failed) {
+            return false;
+        }
+        queue.offer(FLUSH);
+        schedule();
+        return true;
+    }
+
+    /**
+     * Close the writer. The response is closed and the continuation
+     * completed once all queued data has been written.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        queue.offer(CLOSE);
+        schedule();
+    }
+
+    /**
+     * Abort the response. Queued data is discarded, the connection to the
+     * client is closed, and the continuation is completed immediately
+     * instead of after queued data has been written. This should be used
+     * to get rid of slow or unresponsive clients.
+     */
+    public void abort() {
+        closed = true;
+        failed = true;
+        Object chunk;
+        while ((chunk = queue.poll()) != null) {
+            if (chunk != FLUSH && chunk != CLOSE) {
+                pending.addAndGet(-length(chunk));
+            }
+        }
+        try {
+            if (continuation != null && JettySupport.isAvailable()) {
+                JettySupport.closeConnection(continuation);
+            }
+        } catch (IOException iox) {
+            log.log(Level.FINE, "Closing aborted connection failed", iox);
+        } finally {
+            complete();
+        }
+    }
+
+    /**
+     * Get the number of bytes queued but not yet written.
+     * @return the number of pending bytes
+     */
+    public long getPendingBytes() {
+        return pending.get();
+    }
+
+    /**
+     * Check whether this writer has been closed.
+     * @return true if closed
+     */
+    public boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * Check whether writing to the client failed, usually because the
+     * client closed the connection.
+     * @return true if a write failed
+     */
+    public boolean isFailed() {
+        return failed;
+    }
+
+    private void schedule() {
+        if (scheduled.compareAndSet(false, true)) {
+            getExecutor().execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        if (stallTimeout > 0) {
+            startWatchdog();
+            draining.add(this);
+        }
+        try {
+            drainQueue();
+        } finally {
+            if (stallTimeout > 0) {
+                draining.remove(this);
+            }
+        }
+    }
+
+    private void drainQueue() {
+        do {
+            boolean flush = false;
+            Object chunk;
+            while ((chunk = queue.poll()) != null) {
+                try {
+                    if (chunk == CLOSE) {
+                        finish();
+                    } else if (chunk == FLUSH) {
+                        flush = true;
+                    } else if (!failed) {
+                        writeChunk(chunk);
+                        flush |= autoflush;
+                    } else {
+                        pending.addAndGet(-length(chunk));
+                    }
+                } catch (IOException iox) {
+                    fail(iox);
+                }
+            }
+            if (flush && !failed && !closed) {
+                try {
+                    blockedSince = System.nanoTime();
+                    output.flush();
+                } catch (IOException iox) {
+                    fail(iox);
+                } finally {
+                    blockedSince = 0;
+                }
+            }
+            scheduled.set(false);
+            // check for chunks queued after the last poll
+        } while (!queue.isEmpty() && scheduled.compareAndSet(false, true));
+    }
+
+    private void writeChunk(Object chunk) throws IOException {
+        int length = length(chunk);
+        try {
+            blockedSince = System.nanoTime();
+            if (chunk instanceof Binary) {
+                ((Binary) chunk).writeTo(output);
+            } else {
+                output.write((byte[]) chunk);
+            }
+        } finally {
+            blockedSince = 0;
+            pending.addAndGet(-length);
+        }
+    }
+
+    private void finish() {
+        try {
+            if (!failed) {
+                blockedSince = System.nanoTime();
+                output.close();
+            }
+        } catch (IOException iox) {
+            fail(iox);
+        } finally {
+            blockedSince = 0;
+            complete();
+        }
+    }
+
+    private void complete() {
+        if (continuation != null) {
+            try {
+                continuation.complete();
+            } catch (IllegalStateException ignore) {
+                // continuation already completed or timed out
+            }
+        }
+    }
+
+    private void fail(IOException iox) {
+        if (!failed) {
+            failed = true;
+            log.log(Level.FINE, "Async write failed", iox);
+        }
+    }
+
+    /**
+     * Abort this writer if its current blocking operation has exceeded the
+     * stall timeout.
+     */
+    private void checkStalled(long now) {
+        long since = blockedSince;
+        if (since != 0 && !failed
+                && now - since > TimeUnit.MILLISECONDS.toNanos(stallTimeout)) {
+            log.fine("Aborting write stalled for more than " + stallTimeout + "ms");
+            abort();
+        }
+    }
+
+    private static synchronized void startWatchdog() {
+        if (watchdog == null) {
+            watchdog = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ringo-writer-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            watchdog.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    long now = System.nanoTime();
+                    for (AsyncWriter writer : draining) {
+                        writer.checkStalled(now);
+                    }
+                }
+            }, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static int length(Object chunk) {
+        return chunk instanceof Binary ?
+                ((Binary) chunk).getLength() : ((byte[]) chunk).length;
+    }
+
+    /**
+     * Run a task on the writer thread pool. This is used to write complete
+     * asynchronous responses without blocking the thread that produced them.
+     * @param task the task
+     */
+    public static void execute(Runnable task) {
+        getExecutor().execute(task);
+    }
+
+    private static synchronized ExecutorService getExecutor() {
+        if (executor == null) {
+            int threads = Math.max(1, Integer.getInteger("ringo.jsgi.writers", 32).intValue());
+            ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads,
+                    60L, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                    new ThreadFactory() {
+                        private final AtomicInteger ids = new AtomicInteger();
+                        public Thread newThread(Runnable runnable) {
+                            Thread thread = new Thread(runnable,
+                                    "ringo-writer-" + ids.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        }
+                    });
+            pool.allowCoreThreadTimeOut(true);
+            executor = pool;
+        }
+        return executor;
+    }
+}
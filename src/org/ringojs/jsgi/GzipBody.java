@@ -0,0 +1,263 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.ringojs.wrappers.Binary;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * A JSGI response body that gzip-compresses another body while it is
+ * written. When committed by {@link JsgiResponse} the compressed content is
+ * streamed directly to the servlet output stream. Deflaters and buffers are
+ * pooled and reused across responses.
+ */
+public class GzipBody {
+
+    private final Object body;
+    private final String charset;
+    private final int level;
+
+    private static final int BUFFER_SIZE = 8192;
+    private static final int MAX_POOLED = 64;
+
+    // deflater pools indexed by compression level + 1
+    private static final Pool[] pools = new Pool[11];
+
+    static {
+        for (int i = 0; i < pools.length; i++) {
+            pools[i] = new Pool(i - 1);
+        }
+    }
+
+    /**
+     * Create a compressing body.
+     * @param body the JSGI body to compress
+     * @param charset the charset used to encode string parts, or null for UTF-8
+     * @param level the compression level from 0 to 9, or -1 for the default level
+     */
+    public GzipBody(Object body, String charset, int level) {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid compression level: " + level);
+        }
+        this.body = body;
+        this.charset = charset == null ? "utf-8" : charset;
+        this.level = level;
+    }
+
+    /**
+     * Write the compressed body to an output stream.
+     * @param output the output stream
+     * @throws IOException if writing failed
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        GzipStream gzip = new GzipStream(output, level);
+        try {
+            JsgiResponse.writeBody(gzip, body, charset);
+            gzip.finish();
+        } finally {
+            gzip.release();
+        }
+    }
+
+    /**
+     * Pass the compressed body to a JavaScript function as a sequence of
+     * ByteStrings.
+     * @param fn the function
+     * @throws IOException if compressing the body failed
+     */
+    public void forEach(final Function fn) throws IOException {
+        final Context cx = Context.getCurrentContext();
+        final Scriptable scope = ScriptableObject.getTopLevelScope(fn);
+        writeTo(new OutputStream() {
+            @Override
+            public void write(int b) {
+                write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] bytes, int off, int len) {
+                if (len > 0) {
+                    Binary part = new Binary(scope, Binary.Type.ByteString, bytes, off, len);
+                    fn.call(cx, scope, scope, new Object[] {part});
+                }
+            }
+        });
+    }
+
+    /**
+     * Compress a byte array in one go.
+     * @param bytes the bytes to compress
+     * @param level the compression level
+     * @return the gzip-compressed bytes
+     * @throws IOException if compression failed
+     */
+    static byte[] compress(byte[] bytes, int level) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream(Math.max(64, bytes.length / 3));
+        GzipStream gzip = new GzipStream(output, level);
+        try {
+            gzip.write(bytes, 0, bytes.length);
+            gzip.finish();
+        } finally {
+            gzip.release();
+        }
+        return output.toByteArray();
+    }
+
+    /**
+     * A gzip output stream using a pooled deflater and buffer. Unlike
+     * GZIPOutputStream, closing or finishing it doesn't close the underlying
+     * stream, and it must be released after use.
+     */
+    static class GzipStream extends FilterOutputStream {
+        private final Pool pool;
+        private Pooled pooled;
+        private final CRC32 crc = new CRC32();
+        private boolean finished = false;
+
+        private static final byte[] HEADER = {
+            (byte) 0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, 0
+        };
+
+        GzipStream(OutputStream output, int level) throws IOException {
+            super(output);
+            this.pool = pools[level + 1];
+            this.pooled = pool.get();
+            output.write(HEADER);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] bytes, int off, int len) throws IOException {
+            if (finished) {
+                throw new IOException("Gzip stream already finished");
+            }
+            if (len == 0) {
+                return;
+            }
+            crc.update(bytes, off, len);
+            Deflater deflater = pooled.deflater;
+            deflater.setInput(bytes, off, len);
+            while (!deflater.needsInput()) {
+                deflate();
+            }
+        }
+
+        private void deflate() throws IOException {
+            byte[] buffer = pooled.buffer;
+            int length = pooled.deflater.deflate(buffer, 0, buffer.length);
+            if (length > 0) {
+                out.write(buffer, 0, length);
+            }
+        }
+
+        void finish() throws IOException {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            Deflater deflater = pooled.deflater;
+            deflater.finish();
+            while (!deflater.finished()) {
+                deflate();
+            }
+            byte[] trailer = new byte[8];
+            writeInt((int) crc.getValue(), trailer, 0);
+            writeInt(deflater.getTotalIn(), trailer, 4);
+            out.write(trailer);
+        }
+
+        void release() {
+            if (pooled != null) {
+                pool.put(pooled);
+                pooled = null;
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            // called by bodies closing the stream they write to. The gzip
+            // trailer is written by finish(), so there's nothing to do here.
+        }
+
+        private static void writeInt(int value, byte[] bytes, int offset) {
+            bytes[offset] = (byte) value;
+            bytes[offset + 1] = (byte) (value >> 8);
+            bytes[offset + 2] = (byte) (value >> 16);
+            bytes[offset + 3] = (byte) (value >> 24);
+        }
+    }
+
+    static class Pooled {
+        final Deflater deflater;
+        final byte[] buffer = new byte[BUFFER_SIZE];
+
+        Pooled(int level) {
+            deflater = new Deflater(level, true);
+        }
+    }
+
+    static class Pool {
+        final int level;
+        final Queue<Pooled> queue = new ConcurrentLinkedQueue<Pooled>();
+        final AtomicInteger size = new AtomicInteger();
+
+        Pool(int level) {
+            this.level = level;
+        }
+
+        Pooled get() {
+            Pooled pooled = queue.poll();
+            if (pooled == null) {
+                return new Pooled(level);
+            }
+            size.decrementAndGet();
+            return pooled;
+        }
+
+        void put(Pooled pooled) {
+            pooled.deflater.reset();
+            if (size.incrementAndGet() <= MAX_POOLED) {
+                queue.offer(pooled);
+            } else {
+                size.decrementAndGet();
+                pooled.deflater.end();
+            }
+        }
+    }
+}
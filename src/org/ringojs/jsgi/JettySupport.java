@@ -0,0 +1,81 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.eclipse.jetty.continuation.Continuation;
+import org.eclipse.jetty.io.nio.DirectNIOBuffer;
+import org.eclipse.jetty.server.AsyncContinuation;
+import org.eclipse.jetty.server.HttpConnection;
+import org.eclipse.jetty.server.Request;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * Access to Jetty specific features. This class must only be used after
+ * checking {@link #isAvailable()} so the servlet classes still work in
+ * other servlet containers.
+ */
+class JettySupport {
+
+    private JettySupport() {}
+
+    static boolean isAvailable() {
+        try {
+            Class.forName("org.eclipse.jetty.server.HttpConnection");
+            return true;
+        } catch (ClassNotFoundException cnf) {
+            return false;
+        }
+    }
+
+    /**
+     * Send a direct byte buffer as complete content of the response if the
+     * output stream belongs to a Jetty connection.
+     * @param output the servlet output stream
+     * @param buffer the content, which is consumed by Jetty
+     * @return true if the buffer was sent
+     * @throws IOException if sending the buffer failed
+     */
+    static boolean sendBuffer(OutputStream output, ByteBuffer buffer) throws IOException {
+        if (buffer.isDirect() && output instanceof HttpConnection.Output) {
+            ((HttpConnection.Output) output).sendContent(new DirectNIOBuffer(buffer, true));
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Close the connection of a suspended request. This causes any write
+     * blocked on the connection to fail immediately.
+     * @param continuation the continuation of the request
+     * @return true if the connection was closed
+     * @throws IOException if closing the connection failed
+     */
+    static boolean closeConnection(Continuation continuation) throws IOException {
+        if (continuation instanceof AsyncContinuation) {
+            Request request = ((AsyncContinuation) continuation).getBaseRequest();
+            HttpConnection connection = request == null ? null : request.getConnection();
+            if (connection != null) {
+                connection.getEndPoint().close();
+                return true;
+            }
+        }
+        return false;
+    }
+}
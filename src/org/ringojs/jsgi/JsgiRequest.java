@@ -25,12 +25,24 @@ import java.lang.reflect.Method;
 
 public class JsgiRequest extends ScriptableObject {
 
+    private static final long serialVersionUID = -4317457536349431826L;
+
     Scriptable jsgiObject;
-    HttpServletRequest request;
+    HeadersObject headers;
+    EnvObject env;
+    // the servlet request, or null once its data has been copied
+    volatile HttpServletRequest request;
     HttpServletResponse response;
     int readonly = PERMANENT | READONLY;
     Object httpVersion;
 
+    // set when the servlet has returned, the request data is then copied
+    // when it is first accessed
+    volatile boolean detached;
+    String serverName, queryString, remoteHost, protocol;
+    int serverPort;
+    boolean secure;
+
     /**
      * Prototype constructor
      */
@@ -67,46 +79,96 @@ public class JsgiRequest extends ScriptableObject {
         Scriptable jsgi = cx.newObject(scope);
         jsgi.setPrototype(prototype.jsgiObject);
         ScriptableObject.defineProperty(this, "jsgi", jsgi, PERMANENT);
-        Scriptable headers = cx.newObject(scope);
+        headers = new HeadersObject(request, scope);
         ScriptableObject.defineProperty(this, "headers", headers, PERMANENT);
-        for (Enumeration e = request.getHeaderNames(); e.hasMoreElements(); ) {
-            String name = (String) e.nextElement();
-            String value = request.getHeader(name);
-            name = name.toLowerCase();
-            headers.put(name, headers, value);
-        }
         put("scriptName", this, checkString(request.getContextPath() + request.getServletPath()));
         String pathInfo = request.getPathInfo();
         String uri = request.getRequestURI();
         // Workaround for Tomcat returning "/" for pathInfo even if URI doesn't end with "/"
         put("pathInfo", this, "/".equals(pathInfo) && !uri.endsWith("/") ? "" : checkString(pathInfo));
         put("method", this, checkString(request.getMethod()));
-        Scriptable env = cx.newObject(scope);
+        env = new EnvObject(servlet, request, response, scope);
         ScriptableObject.defineProperty(this, "env", env, PERMANENT);
-        ScriptableObject.defineProperty(env, "servlet", Context.javaToJS(servlet, this), PERMANENT);
-        ScriptableObject.defineProperty(env, "servletRequest", Context.javaToJS(request, this), PERMANENT);
-        ScriptableObject.defineProperty(env, "servletResponse", Context.javaToJS(response, this), PERMANENT);
         // JSGI spec and Jack's lint require env.constructor to be Object
         defineProperty("constructor", scope.get("Object", scope), DONTENUM);
     }
 
+    /**
+     * Detach this object from the servlet request, which the servlet
+     * container may recycle once the servlet has returned.
+     *
+     * <p>If the request outlives the servlet invocation, for example because
+     * it was suspended or tasks were spawned while handling it, everything
+     * that is still read lazily from the servlet request is copied right
+     * away. Otherwise the object is only marked as detached and the copy is
+     * made on the first access, so requests that are not used after the
+     * servlet returns don't pay for it.</p>
+     *
+     * @param snapshot true to copy the request data right away
+     * @param suspended true if the request was suspended, in which case
+     *        env.servletRequest and env.servletResponse remain available
+     */
+    public void detach(boolean snapshot, boolean suspended) {
+        if (!suspended) {
+            env.detach();
+        }
+        if (snapshot) {
+            copy();
+        } else {
+            detached = true;
+            headers.detached = true;
+        }
+    }
+
+    /**
+     * Copy the request data still read from the servlet request.
+     */
+    synchronized void copy() {
+        HttpServletRequest req = request;
+        if (req != null) {
+            serverName = req.getServerName();
+            serverPort = req.getServerPort();
+            queryString = req.getQueryString();
+            remoteHost = req.getRemoteHost();
+            protocol = req.getProtocol();
+            secure = req.isSecure();
+            headers.materialize();
+            request = null;
+        }
+    }
+
+    /**
+     * Get the servlet request to read data from, or null if the data has
+     * been copied.
+     */
+    private HttpServletRequest servletRequest() {
+        if (detached) {
+            copy();
+        }
+        return request;
+    }
+
     public String getServerName() {
-        return checkString(request.getServerName());
+        HttpServletRequest req = servletRequest();
+        return checkString(req == null ? serverName : req.getServerName());
     }
 
     public String getServerPort() {
-        return checkString(Integer.toString(request.getServerPort()));
+        HttpServletRequest req = servletRequest();
+        return Integer.toString(req == null ? serverPort : req.getServerPort());
     }
 
     public String getQueryString() {
-        return checkString(request.getQueryString());
+        HttpServletRequest req = servletRequest();
+        return checkString(req == null ? queryString : req.getQueryString());
     }
 
     public Object getHttpVersion() {
         if (httpVersion == null) {
             Context cx = Context.getCurrentContext();
             Scriptable scope = getParentScope();
-            String protocol = request.getProtocol();
+            HttpServletRequest req = servletRequest();
+            String protocol = req == null ? this.protocol : req.getProtocol();
             if (protocol != null) {
                 int major = protocol.indexOf('/');
                 int minor = protocol.indexOf('.');
@@ -125,11 +187,13 @@ public class JsgiRequest extends ScriptableObject {
     }
 
     public String getRemoteHost() {
-        return checkString(request.getRemoteHost());
+        HttpServletRequest req = servletRequest();
+        return checkString(req == null ? remoteHost : req.getRemoteHost());
     }
 
     public String getUrlScheme() {
-        return request.isSecure() ? "https" : "http";
+        HttpServletRequest req = servletRequest();
+        return (req == null ? secure : req.isSecure()) ? "https" : "http";
     }
 
     public Object getServletRequest() {
@@ -155,4 +219,216 @@ public class JsgiRequest extends ScriptableObject {
     public String getClassName() {
         return "JsgiRequest";
     }
+
+    /**
+     * The request headers object. Header names are lower case. Headers are
+     * read from the servlet request on demand and only copied into the
+     * object when it is modified, its properties are enumerated, or it is
+     * first accessed after the request was detached from the servlet request.
+     */
+    static class HeadersObject extends ScriptableObject {
+
+        private static final long serialVersionUID = 2914365792418934513L;
+
+        // the servlet request, or null once headers have been copied
+        volatile HttpServletRequest request;
+        // set when the servlet has returned, headers are then copied on access
+        volatile boolean detached;
+
+        HeadersObject(HttpServletRequest request, Scriptable scope) {
+            super(scope, ScriptableObject.getObjectPrototype(scope));
+            this.request = request;
+        }
+
+        @Override
+        public Object get(String name, Scriptable start) {
+            if (detached) {
+                materialize();
+            }
+            if (request != null) {
+                // lock against concurrent detaching, after which the
+                // servlet request may be recycled
+                synchronized (this) {
+                    HttpServletRequest req = request;
+                    if (req != null) {
+                        String value = isLowerCase(name) ? req.getHeader(name) : null;
+                        return value == null ? NOT_FOUND : value;
+                    }
+                }
+            }
+            return super.get(name, start);
+        }
+
+        @Override
+        public boolean has(String name, Scriptable start) {
+            if (detached) {
+                materialize();
+            }
+            if (request != null) {
+                synchronized (this) {
+                    HttpServletRequest req = request;
+                    if (req != null) {
+                        return isLowerCase(name) && req.getHeader(name) != null;
+                    }
+                }
+            }
+            return super.has(name, start);
+        }
+
+        @Override
+        public void put(String name, Scriptable start, Object value) {
+            materialize();
+            super.put(name, start, value);
+        }
+
+        @Override
+        public void delete(String name) {
+            materialize();
+            super.delete(name);
+        }
+
+        @Override
+        public Object[] getIds() {
+            materialize();
+            return super.getIds();
+        }
+
+        @Override
+        public Object[] getAllIds() {
+            materialize();
+            return super.getAllIds();
+        }
+
+        @Override
+        public void defineOwnProperty(Context cx, Object id, ScriptableObject desc) {
+            materialize();
+            super.defineOwnProperty(cx, id, desc);
+        }
+
+        synchronized void materialize() {
+            HttpServletRequest req = request;
+            detached = false;
+            if (req != null) {
+                request = null;
+                for (Enumeration e = req.getHeaderNames(); e.hasMoreElements(); ) {
+                    String name = (String) e.nextElement();
+                    String value = req.getHeader(name);
+                    super.put(name.toLowerCase(), this, value);
+                }
+            }
+        }
+
+        private static boolean isLowerCase(String name) {
+            for (int i = 0; i < name.length(); i++) {
+                if (Character.isUpperCase(name.charAt(i))) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public String getClassName() {
+            return "Object";
+        }
+    }
+
+    /**
+     * The request env object. The servlet, servletRequest and servletResponse
+     * properties are only wrapped as JavaScript objects when first accessed.
+     */
+    static class EnvObject extends ScriptableObject {
+
+        private static final long serialVersionUID = -6048391734417265302L;
+
+        Object servlet, servletRequest, servletResponse;
+
+        EnvObject(JsgiServlet servlet, HttpServletRequest request,
+                  HttpServletResponse response, Scriptable scope) {
+            super(scope, ScriptableObject.getObjectPrototype(scope));
+            this.servlet = servlet;
+            this.servletRequest = request;
+            this.servletResponse = response;
+        }
+
+        @Override
+        public Object get(String name, Scriptable start) {
+            wrap(name);
+            return super.get(name, start);
+        }
+
+        @Override
+        public boolean has(String name, Scriptable start) {
+            wrap(name);
+            return super.has(name, start);
+        }
+
+        @Override
+        public void put(String name, Scriptable start, Object value) {
+            wrap(name);
+            super.put(name, start, value);
+        }
+
+        @Override
+        public Object[] getIds() {
+            wrapAll();
+            return super.getIds();
+        }
+
+        @Override
+        public Object[] getAllIds() {
+            wrapAll();
+            return super.getAllIds();
+        }
+
+        @Override
+        public void defineOwnProperty(Context cx, Object id, ScriptableObject desc) {
+            if (id instanceof String) {
+                wrap((String) id);
+            }
+            super.defineOwnProperty(cx, id, desc);
+        }
+
+        private void wrap(String name) {
+            if (name.startsWith("servlet")) {
+                synchronized (this) {
+                    Object javaObject = null;
+                    if ("servlet".equals(name)) {
+                        javaObject = servlet;
+                        servlet = null;
+                    } else if ("servletRequest".equals(name)) {
+                        javaObject = servletRequest;
+                        servletRequest = null;
+                    } else if ("servletResponse".equals(name)) {
+                        javaObject = servletResponse;
+                        servletResponse = null;
+                    }
+                    if (javaObject != null) {
+                        defineProperty(name, Context.javaToJS(javaObject, getParentScope()),
+                                PERMANENT);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Drop the servlet request and response if they haven't been
+         * accessed yet, as the servlet container may recycle them.
+         */
+        synchronized void detach() {
+            servletRequest = null;
+            servletResponse = null;
+        }
+
+        private void wrapAll() {
+            wrap("servlet");
+            wrap("servletRequest");
+            wrap("servletResponse");
+        }
+
+        @Override
+        public String getClassName() {
+            return "Object";
+        }
+    }
 }
@@ -0,0 +1,393 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.mozilla.javascript.BaseFunction;
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.NativeArray;
+import org.mozilla.javascript.ScriptRuntime;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.mozilla.javascript.Wrapper;
+import org.ringojs.wrappers.Binary;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.UnsupportedCharsetException;
+
+/**
+ * Writes JSGI response objects to servlet responses. Header values may be
+ * strings containing multiple values separated by newlines or arrays of
+ * values. The body must have a <code>forEach</code> method yielding strings
+ * or binaries, and may have a <code>close</code> method which is called after
+ * the body has been written. {@link ResourceBody} and {@link GzipBody}
+ * instances are written natively.
+ */
+public class JsgiResponse {
+
+    private static final String DEFAULT_CHARSET = "utf-8";
+
+    // encoder and buffer reused by all responses written on a thread
+    private static final ThreadLocal<Encoder> encoders = new ThreadLocal<Encoder>() {
+        @Override
+        protected Encoder initialValue() {
+            return new Encoder();
+        }
+    };
+
+    private JsgiResponse() {}
+
+    /**
+     * Commit a JSGI response to a servlet response. Nothing is written if the
+     * servlet response has already been committed or if the JSGI response
+     * contains a <code>X-JSGI-Skip-Response</code> header. If the body is a
+     * {@link ResourceBody}, conditional and range requests are handled
+     * as well.
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param result the JSGI response object
+     * @throws IOException if writing the response failed
+     */
+    public static void commit(HttpServletRequest request, HttpServletResponse response,
+                              Scriptable result)
+            throws IOException {
+        Object status = ScriptableObject.getProperty(result, "status");
+        Object headers = ScriptableObject.getProperty(result, "headers");
+        Object body = ScriptableObject.getProperty(result, "body");
+        if (!isTrue(status) || !(headers instanceof Scriptable) || !isTrue(body)) {
+            throw Context.reportRuntimeError("No valid JSGI response: "
+                    + ScriptRuntime.toString(result));
+        }
+        if (!response.isCommitted()
+                && getHeader((Scriptable) headers, "X-JSGI-Skip-Response") == null) {
+            Object unwrapped = body instanceof Wrapper ? ((Wrapper) body).unwrap() : body;
+            if (unwrapped instanceof ResourceBody) {
+                ((ResourceBody) unwrapped).serve(request, response,
+                        ScriptRuntime.toInt32(status), (Scriptable) headers);
+            } else {
+                write(response, status, (Scriptable) headers, body);
+            }
+        }
+    }
+
+    /**
+     * Write status, headers and body to a servlet response.
+     * @param response the servlet response
+     * @param status the HTTP status code
+     * @param headers the JSGI headers object
+     * @param body the JSGI body
+     * @throws IOException if writing the response failed
+     */
+    public static void write(HttpServletResponse response, Object status,
+                             Scriptable headers, Object body)
+            throws IOException {
+        response.setStatus(ScriptRuntime.toInt32(status));
+        writeHeaders(response, headers);
+        Object contentType = getHeader(headers, "Content-Type");
+        String charset = contentType instanceof CharSequence ?
+                getMimeParameter(contentType.toString(), "charset") : null;
+        writeBody(response, body, charset == null ? DEFAULT_CHARSET : charset);
+    }
+
+    /**
+     * Add the headers contained in a JSGI headers object to a servlet response.
+     * @param response the servlet response
+     * @param headers the JSGI headers object
+     */
+    public static void writeHeaders(HttpServletResponse response, Scriptable headers) {
+        for (Object id : headers.getIds()) {
+            String name = ScriptRuntime.toString(id);
+            Object value = ScriptableObject.getProperty(headers, name);
+            if (value instanceof CharSequence) {
+                String str = value.toString();
+                int start = 0, end;
+                while ((end = str.indexOf('\n', start)) > -1) {
+                    response.addHeader(name, str.substring(start, end));
+                    start = end + 1;
+                }
+                response.addHeader(name, start == 0 ? str : str.substring(start));
+            } else if (value instanceof NativeArray) {
+                NativeArray array = (NativeArray) value;
+                long length = array.getLength();
+                for (int i = 0; i < length; i++) {
+                    Object item = array.get(i, array);
+                    if (item != Scriptable.NOT_FOUND) {
+                        response.addHeader(name, ScriptRuntime.toString(item));
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Write a JSGI body to a servlet response.
+     * @param response the servlet response
+     * @param body the JSGI body
+     * @param charset the charset used to encode string parts
+     * @throws IOException if writing the body failed
+     */
+    public static void writeBody(HttpServletResponse response, Object body, String charset)
+            throws IOException {
+        writeBody(response.getOutputStream(), body, charset);
+    }
+
+    /**
+     * Write a JSGI body to an output stream.
+     * @param output the output stream
+     * @param body the JSGI body
+     * @param charset the charset used to encode string parts
+     * @throws IOException if writing the body failed
+     */
+    public static void writeBody(OutputStream output, Object body, String charset)
+            throws IOException {
+        Object unwrapped = body instanceof Wrapper ? ((Wrapper) body).unwrap() : body;
+        if (unwrapped instanceof ResourceBody) {
+            ((ResourceBody) unwrapped).writeTo(output);
+            return;
+        } else if (unwrapped instanceof GzipBody) {
+            ((GzipBody) unwrapped).writeTo(output);
+            return;
+        }
+        if (!(body instanceof Scriptable)) {
+            throw Context.reportRuntimeError("Response body doesn't implement forEach: "
+                    + ScriptRuntime.toString(body));
+        }
+        Scriptable obj = (Scriptable) body;
+        // bodies may write other bodies from within forEach, e.g. a GzipBody
+        // being iterated. Nested calls get their own encoder so they don't
+        // change the charset or buffer of the outer one.
+        Encoder encoder = encoders.get();
+        if (encoder.inUse) {
+            encoder = new Encoder();
+        }
+        encoder.setCharset(charset);
+        encoder.inUse = true;
+        try {
+            writeBody(obj, output, encoder, charset);
+        } finally {
+            encoder.inUse = false;
+        }
+    }
+
+    private static void writeBody(Scriptable obj, OutputStream output,
+                                  Encoder encoder, String charset)
+            throws IOException {
+        if (obj instanceof NativeArray && !obj.has("forEach", obj)) {
+            // plain arrays are iterated directly
+            NativeArray array = (NativeArray) obj;
+            long length = array.getLength();
+            for (int i = 0; i < length; i++) {
+                Object part = array.get(i, array);
+                if (part != Scriptable.NOT_FOUND) {
+                    writePart(part, output, encoder, charset);
+                }
+            }
+            closeBody(obj, null, output, encoder, charset);
+        } else {
+            Object forEach = ScriptableObject.getProperty(obj, "forEach");
+            if (!(forEach instanceof Function)) {
+                throw Context.reportRuntimeError("Response body doesn't implement forEach: "
+                        + ScriptRuntime.toString(obj));
+            }
+            Context cx = Context.getCurrentContext();
+            Scriptable scope = ScriptableObject.getTopLevelScope(obj);
+            BodyWriter writer = new BodyWriter(scope, output, encoder, charset);
+            ((Function) forEach).call(cx, scope, obj, new Object[] {writer});
+            closeBody(obj, writer, output, encoder, charset);
+        }
+    }
+
+    private static void closeBody(Scriptable body, BodyWriter writer, OutputStream output,
+                                  Encoder encoder, String charset) {
+        Object close = ScriptableObject.getProperty(body, "close");
+        if (close instanceof Function) {
+            Context cx = Context.getCurrentContext();
+            Scriptable scope = ScriptableObject.getTopLevelScope(body);
+            if (writer == null) {
+                writer = new BodyWriter(scope, output, encoder, charset);
+            }
+            ((Function) close).call(cx, scope, body, new Object[] {writer});
+        }
+    }
+
+    private static void writePart(Object part, OutputStream output,
+                                  Encoder encoder, String charset)
+            throws IOException {
+        if (part instanceof Binary) {
+            ((Binary) part).writeTo(output);
+        } else if (part instanceof CharSequence) {
+            encoder.write((CharSequence) part, output);
+        } else {
+            // let the part convert itself, as in part.toByteString(charset)
+            Object toByteString = part instanceof Scriptable ?
+                    ScriptableObject.getProperty((Scriptable) part, "toByteString") : null;
+            if (toByteString instanceof Function) {
+                Context cx = Context.getCurrentContext();
+                Scriptable obj = (Scriptable) part;
+                Object bytes = ((Function) toByteString).call(cx,
+                        ScriptableObject.getTopLevelScope(obj), obj, new Object[] {charset});
+                if (bytes instanceof Binary) {
+                    ((Binary) bytes).writeTo(output);
+                    return;
+                }
+            }
+            encoder.write(ScriptRuntime.toString(part), output);
+        }
+    }
+
+    static Object getHeader(Scriptable headers, String name) {
+        Object value = ScriptableObject.getProperty(headers, name);
+        if (value != Scriptable.NOT_FOUND) {
+            return value;
+        }
+        for (Object id : headers.getIds()) {
+            if (id instanceof String && name.equalsIgnoreCase((String) id)) {
+                return ScriptableObject.getProperty(headers, (String) id);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get a parameter from a MIME header value such as the charset in a
+     * Content-Type header.
+     * @param headerValue the header value
+     * @param paramName the parameter name
+     * @return the parameter value, or null
+     */
+    static String getMimeParameter(String headerValue, String paramName) {
+        int start, end = 0;
+        while ((start = headerValue.indexOf(';', end)) > -1) {
+            end = headerValue.indexOf(';', ++start);
+            if (end < 0) {
+                end = headerValue.length();
+            }
+            int eq = headerValue.indexOf('=', start);
+            if (eq > start && eq < end) {
+                String name = headerValue.substring(start, eq).trim();
+                if (name.equalsIgnoreCase(paramName)) {
+                    String value = headerValue.substring(eq + 1, end).trim();
+                    if (value.length() > 1 && value.startsWith("\"") && value.endsWith("\"")) {
+                        return value.substring(1, value.length() - 1)
+                                .replace("\\\\", "\\").replace("\\\"", "\"");
+                    }
+                    return value;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean isTrue(Object value) {
+        return value != null && value != Scriptable.NOT_FOUND
+                && ScriptRuntime.toBoolean(value);
+    }
+
+    /**
+     * The function passed to the body's forEach and close methods.
+     */
+    static class BodyWriter extends BaseFunction {
+        private static final long serialVersionUID = 8154921873561302712L;
+
+        final OutputStream output;
+        final Encoder encoder;
+        final String charset;
+
+        BodyWriter(Scriptable scope, OutputStream output, Encoder encoder, String charset) {
+            ScriptRuntime.setFunctionProtoAndParent(this, scope);
+            this.output = output;
+            this.encoder = encoder;
+            this.charset = charset;
+        }
+
+        @Override
+        public Object call(Context cx, Scriptable scope, Scriptable thisObj, Object[] args) {
+            if (args.length > 0) {
+                try {
+                    writePart(args[0], output, encoder, charset);
+                } catch (IOException iox) {
+                    throw Context.throwAsScriptRuntimeEx(iox);
+                }
+            }
+            return Context.getUndefinedValue();
+        }
+    }
+
+    /**
+     * A charset encoder that encodes strings to an output stream through
+     * a reusable buffer.
+     */
+    static class Encoder {
+        String charset;
+        CharsetEncoder encoder;
+        boolean inUse;
+        final ByteBuffer buffer = ByteBuffer.allocate(8192);
+
+        void setCharset(String name) {
+            if (name.equals(charset)) {
+                return;
+            }
+            try {
+                encoder = Charset.forName(name).newEncoder()
+                        .onMalformedInput(CodingErrorAction.REPLACE)
+                        .onUnmappableCharacter(CodingErrorAction.REPLACE);
+                charset = name;
+            } catch (IllegalCharsetNameException icn) {
+                throw Context.reportRuntimeError("Unsupported charset: " + name);
+            } catch (UnsupportedCharsetException ucs) {
+                throw Context.reportRuntimeError("Unsupported charset: " + name);
+            }
+        }
+
+        void write(CharSequence str, OutputStream output) throws IOException {
+            CharBuffer in = CharBuffer.wrap(str);
+            encoder.reset();
+            buffer.clear();
+            CoderResult result;
+            do {
+                result = encoder.encode(in, buffer, true);
+                drain(result, output);
+            } while (result.isOverflow());
+            do {
+                result = encoder.flush(buffer);
+                drain(result, output);
+            } while (result.isOverflow());
+            output.write(buffer.array(), 0, buffer.position());
+            buffer.clear();
+        }
+
+        private void drain(CoderResult result, OutputStream output) throws IOException {
+            if (result.isError()) {
+                result.throwException();
+            }
+            if (result.isOverflow()) {
+                output.write(buffer.array(), 0, buffer.position());
+                buffer.clear();
+            }
+        }
+    }
+}
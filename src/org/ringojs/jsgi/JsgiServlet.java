@@ -19,6 +19,8 @@ package org.ringojs.jsgi;
 import org.eclipse.jetty.continuation.ContinuationSupport;
 import org.mozilla.javascript.Context;
 import org.mozilla.javascript.RhinoException;
+import org.mozilla.javascript.Scriptable;
+import org.ringojs.engine.RingoGlobal;
 import org.ringojs.engine.SyntaxError;
 import org.ringojs.tools.RingoConfiguration;
 import org.ringojs.tools.RingoRunner;
@@ -34,9 +36,11 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 import javax.servlet.ServletConfig;
 import javax.servlet.ServletException;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.List;
+import java.util.Map;
 
 public class JsgiServlet extends HttpServlet {
 
@@ -45,6 +49,13 @@ public class JsgiServlet extends HttpServlet {
     RhinoEngine engine;
     JsgiRequest requestProto;
     boolean hasContinuation = false;
+    // the composed app and the config module exports it was resolved from
+    volatile ResolvedApp resolvedApp;
+    // limits concurrent requests, null if unlimited
+    AdmissionControl admission;
+    int retryAfter;
+
+    private static final String ADMITTED = "org.ringojs.jsgi.admitted";
 
     public JsgiServlet() {}
 
@@ -75,6 +86,8 @@ public class JsgiServlet extends HttpServlet {
             boolean production = getBooleanParameter(config, "production", false);
             boolean verbose = getBooleanParameter(config, "verbose", false);
             boolean legacyMode = getBooleanParameter(config, "legacy-mode", false);
+            String classCache = getStringParameter(config, "class-cache", null);
+            boolean precompile = getBooleanParameter(config, "precompile", false);
 
             Repository home = new WebappRepository(config.getServletContext(), ringoHome);
             try {
@@ -92,12 +105,26 @@ public class JsgiServlet extends HttpServlet {
                 ringoConfig.setStrictVars(!legacyMode && !production);
                 ringoConfig.setReloading(!production);
                 ringoConfig.setOptLevel(optlevel);
+                if (classCache != null) {
+                    ringoConfig.setClassCacheDirectory(new File(classCache));
+                }
+                ringoConfig.setPrecompiling(precompile);
                 engine = new RhinoEngine(ringoConfig, null);
             } catch (Exception x) {
                 throw new ServletException(x);
             }
         }
 
+        int maxConcurrency = getIntParameter(config, "max-concurrency", 0);
+        if (maxConcurrency > 0) {
+            admission = new AdmissionControl(maxConcurrency,
+                    getIntParameter(config, "min-concurrency", 1),
+                    getBooleanParameter(config, "adaptive-concurrency", false),
+                    getIntParameter(config, "max-queue", 100),
+                    getIntParameter(config, "queue-timeout", 1000));
+            retryAfter = getIntParameter(config, "retry-after", 1);
+        }
+
         Context cx = engine.getContextFactory().enterContext();
         try {
             requestProto = new JsgiRequest(cx, engine.getScope());
@@ -124,10 +151,45 @@ public class JsgiServlet extends HttpServlet {
         } catch (Exception ignore) {
             // continuation may not be set up even if class is availble - ignore
         }
+        // requests resumed from a continuation have already been admitted
+        if (admission == null || request.getAttribute(ADMITTED) != null) {
+            handle(request, response);
+            return;
+        }
+        boolean admitted;
+        try {
+            admitted = admission.acquire();
+        } catch (InterruptedException ix) {
+            admitted = false;
+        }
+        if (!admitted) {
+            response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+            response.setHeader("Retry-After", Integer.toString(retryAfter));
+            response.setContentType("text/plain");
+            response.getWriter().write("Service temporarily unavailable");
+            return;
+        }
+        request.setAttribute(ADMITTED, Boolean.TRUE);
+        long start = System.nanoTime();
+        try {
+            handle(request, response);
+        } finally {
+            admission.release(System.nanoTime() - start);
+        }
+    }
+
+    private void handle(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException {
         Context cx = engine.getContextFactory().enterContext();
+        JsgiRequest req = null;
+        long asyncStarted = RingoGlobal.getAsyncStartedCount();
         try {
-            JsgiRequest req = new JsgiRequest(cx, request, response, requestProto, engine.getScope(), this);
-            engine.invoke("ringo/jsgi", "handleRequest", module, function, req);
+            req = new JsgiRequest(cx, request, response, requestProto, engine.getScope(), this);
+            Object result = engine.invoke("ringo/jsgi", "runApp",
+                    getApplication(cx), req, module);
+            if (result instanceof Scriptable) {
+                JsgiResponse.commit(request, response, (Scriptable) result);
+            }
         } catch (Exception x) {
             try {
                 renderError(x, response);
@@ -138,10 +200,56 @@ public class JsgiServlet extends HttpServlet {
                 throw new ServletException(x);
             }
         } finally {
+            if (req != null) {
+                // the servlet request may be recycled once we return. Copy
+                // the request data right away if the request may still be
+                // used by continuation callbacks or async tasks; this may
+                // include tasks started by concurrent requests.
+                boolean suspended = isSuspended(request);
+                req.detach(suspended ||
+                        RingoGlobal.getAsyncStartedCount() != asyncStarted,
+                        suspended);
+            }
             Context.exit();
         }
     }
 
+    private boolean isSuspended(HttpServletRequest request) {
+        try {
+            return hasContinuation &&
+                    ContinuationSupport.getContinuation(request).isSuspended();
+        } catch (Exception ignore) {
+            return false;
+        }
+    }
+
+    /**
+     * Get the metrics of this servlet's admission control.
+     * @return a map containing the admission metrics, or null if the number
+     *         of concurrent requests is not limited
+     * @see AdmissionControl#getMetrics()
+     */
+    public Map<String, Object> getAdmissionMetrics() {
+        return admission == null ? null : admission.getMetrics();
+    }
+
+    /**
+     * Get the JSGI application including its middleware stack. The app is
+     * resolved once and only resolved again if the config module has been
+     * reloaded, which we notice by its exports object being replaced.
+     */
+    private Object getApplication(Context cx)
+            throws IOException, NoSuchMethodException {
+        ResolvedApp resolved = resolvedApp;
+        Object exports = module == null ?
+                null : engine.loadModule(cx, module, null).getExports();
+        if (resolved == null || resolved.exports != exports) {
+            Object app = engine.invoke("ringo/jsgi", "resolveApp", module, function);
+            resolvedApp = resolved = new ResolvedApp(exports, app);
+        }
+        return resolved.app;
+    }
+
     protected void renderError(Throwable t, HttpServletResponse response)
             throws IOException {
         response.reset();
@@ -215,4 +323,14 @@ public class JsgiServlet extends HttpServlet {
         }
         return defaultValue;
     }
+
+    static class ResolvedApp {
+        final Object exports;
+        final Object app;
+
+        ResolvedApp(Object exports, Object app) {
+            this.exports = exports;
+            this.app = app;
+        }
+    }
 }
@@ -0,0 +1,33 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import java.io.IOException;
+
+/**
+ * Thrown when a request body exceeds a limit of the form data parsers.
+ * @see UrlEncodedParser
+ * @see MultipartParser
+ */
+public class LimitExceededException extends IOException {
+
+    private static final long serialVersionUID = -6408542379210415728L;
+
+    public LimitExceededException(String message) {
+        super(message);
+    }
+}
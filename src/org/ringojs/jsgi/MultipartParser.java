@@ -0,0 +1,523 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A streaming parser for multipart/form-data request bodies. Parts are read
+ * from the input stream in a single pass and written to the output stream
+ * provided by a {@link Sink}, so file uploads are never held in memory unless
+ * the sink does so. Boundaries are located with a Boyer-Moore-Horspool search.
+ *
+ * <p>The number of parts and the size of headers, form fields, file parts and
+ * the whole body can be limited. Exceeding a limit causes parsing to fail with
+ * a {@link LimitExceededException}, and temporary files created so far
+ * are deleted.</p>
+ */
+public class MultipartParser {
+
+    private final InputStream input;
+    private final String charset;
+    // the delimiter preceding each part, "\r\n--" + boundary
+    private final byte[] delimiter;
+    private final int[] skip = new int[256];
+
+    private byte[] buffer;
+    private int position = 0;
+    private int limit = 0;
+    private boolean eof = false;
+    private long total = 0;
+
+    private int maxParts = -1;
+    private int maxHeaderSize = 16 * 1024;
+    private long maxFieldSize = -1;
+    private long maxFileSize = -1;
+    private long maxTotalSize = -1;
+
+    private static final int BUFFER_SIZE = 16 * 1024;
+
+    /**
+     * Creates output streams for the content of parts.
+     */
+    public interface Sink {
+        /**
+         * Open the output stream for a part's content. The stream is closed
+         * by the parser once the part has been read.
+         * @param part the part, with name, file name and headers set
+         * @return the output stream
+         * @throws IOException if the stream couldn't be created
+         */
+        OutputStream open(Part part) throws IOException;
+    }
+
+    /**
+     * A sink that keeps the content of all parts in memory.
+     */
+    public static final Sink MEMORY = new Sink() {
+        public OutputStream open(Part part) {
+            return part.memory = new ByteArrayOutputStream();
+        }
+    };
+
+    /**
+     * Create a sink that writes file uploads to temporary files and keeps
+     * form fields in memory.
+     * @param directory the directory for temporary files, or null for the
+     *                  default temporary directory
+     * @return the sink
+     */
+    public static Sink tempFiles(final File directory) {
+        return new Sink() {
+            public OutputStream open(Part part) throws IOException {
+                if (part.filename == null) {
+                    return MEMORY.open(part);
+                }
+                part.file = File.createTempFile("ringo-upload-", null, directory);
+                return new FileOutputStream(part.file);
+            }
+        };
+    }
+
+    /**
+     * Create a new parser.
+     * @param input the input stream to read from
+     * @param boundary the boundary from the content type header
+     * @param charset the charset used to decode headers and form fields
+     */
+    public MultipartParser(InputStream input, String boundary, String charset) {
+        if (boundary == null || boundary.length() == 0 || boundary.length() > 200) {
+            throw new IllegalArgumentException("Invalid multipart boundary: " + boundary);
+        }
+        this.input = input;
+        this.charset = charset == null ? "UTF-8" : charset;
+        try {
+            this.delimiter = ("\r\n--" + boundary).getBytes("ISO-8859-1");
+        } catch (UnsupportedEncodingException x) {
+            throw new RuntimeException(x);
+        }
+        int length = delimiter.length;
+        for (int i = 0; i < skip.length; i++) {
+            skip[i] = length;
+        }
+        for (int i = 0; i < length - 1; i++) {
+            skip[delimiter[i] & 0xff] = length - 1 - i;
+        }
+        this.buffer = new byte[Math.max(BUFFER_SIZE, length * 4)];
+    }
+
+    /**
+     * Set the maximal number of parts.
+     * @param maxParts the limit, or -1 for no limit
+     */
+    public void setMaxParts(int maxParts) {
+        this.maxParts = maxParts;
+    }
+
+    /**
+     * Set the maximal size of the headers of a single part.
+     * @param maxHeaderSize the limit in bytes, defaults to 16 KB
+     */
+    public void setMaxHeaderSize(int maxHeaderSize) {
+        this.maxHeaderSize = maxHeaderSize;
+    }
+
+    /**
+     * Set the maximal size of a form field, i.e. a part without file name.
+     * @param maxFieldSize the limit in bytes, or -1 for no limit
+     */
+    public void setMaxFieldSize(long maxFieldSize) {
+        this.maxFieldSize = maxFieldSize;
+    }
+
+    /**
+     * Set the maximal size of an uploaded file.
+     * @param maxFileSize the limit in bytes, or -1 for no limit
+     */
+    public void setMaxFileSize(long maxFileSize) {
+        this.maxFileSize = maxFileSize;
+    }
+
+    /**
+     * Set the maximal size of the whole multipart body.
+     * @param maxTotalSize the limit in bytes, or -1 for no limit
+     */
+    public void setMaxTotalSize(long maxTotalSize) {
+        this.maxTotalSize = maxTotalSize;
+    }
+
+    /**
+     * Parse the multipart body, writing each part to the given sink.
+     * @param sink the sink creating output streams for parts
+     * @return the list of parts
+     * @throws IOException if reading or writing failed, the body is
+     *         malformed, or a limit was exceeded
+     */
+    public List<Part> parse(Sink sink) throws IOException {
+        List<Part> parts = new ArrayList<Part>();
+        try {
+            // the first delimiter is not preceded by CRLF
+            buffer[0] = '\r';
+            buffer[1] = '\n';
+            limit = 2;
+            skipPreamble();
+            while (readDelimiterEnd()) {
+                if (maxParts > -1 && parts.size() >= maxParts) {
+                    throw new LimitExceededException("Too many parts, limit is " + maxParts);
+                }
+                Part part = readHeaders();
+                parts.add(part);
+                OutputStream output = sink.open(part);
+                try {
+                    readContent(part, output);
+                } finally {
+                    output.close();
+                }
+            }
+            return parts;
+        } catch (IOException x) {
+            for (Part part : parts) {
+                part.delete();
+            }
+            throw x;
+        }
+    }
+
+    private void skipPreamble() throws IOException {
+        while (true) {
+            int found = indexOf(position, limit);
+            if (found > -1) {
+                position = found + delimiter.length;
+                return;
+            }
+            // keep a possible partial delimiter at the end of the buffer
+            position = Math.max(position, limit - delimiter.length + 1);
+            if (!fill()) {
+                throw new IOException("Boundary not found in multipart stream");
+            }
+        }
+    }
+
+    /**
+     * Read what follows a delimiter: "--" for the final one, otherwise
+     * optional whitespace and CRLF.
+     * @return true if a part follows
+     */
+    private boolean readDelimiterEnd() throws IOException {
+        require(2);
+        if (buffer[position] == '-' && buffer[position + 1] == '-') {
+            position += 2;
+            return false;
+        }
+        while (true) {
+            require(2);
+            byte b = buffer[position];
+            if (b == '\r' && buffer[position + 1] == '\n') {
+                position += 2;
+                return true;
+            } else if (b == ' ' || b == '\t') {
+                position += 1;
+            } else {
+                throw new IOException("Malformed multipart delimiter");
+            }
+        }
+    }
+
+    private Part readHeaders() throws IOException {
+        Part part = new Part();
+        int size = 0;
+        String header = null;
+        while (true) {
+            int end = findLineEnd();
+            int length = end - position;
+            size += length + 2;
+            if (size > maxHeaderSize) {
+                throw new LimitExceededException("Part headers too large, limit is " + maxHeaderSize);
+            }
+            String line = new String(buffer, position, length, charset);
+            position = end + 2;
+            if (line.length() == 0) {
+                break;
+            }
+            if (header != null && (line.charAt(0) == ' ' || line.charAt(0) == '\t')) {
+                // folded header line
+                header += line;
+                continue;
+            }
+            if (header != null) {
+                part.addHeader(header);
+            }
+            header = line;
+        }
+        if (header != null) {
+            part.addHeader(header);
+        }
+        String disposition = part.getHeader("content-disposition");
+        if (disposition != null) {
+            part.name = getParameter(disposition, "name");
+            part.filename = getParameter(disposition, "filename");
+        }
+        part.contentType = part.getHeader("content-type");
+        return part;
+    }
+
+    private int findLineEnd() throws IOException {
+        int from = position;
+        while (true) {
+            for (int i = from; i < limit - 1; i++) {
+                if (buffer[i] == '\r' && buffer[i + 1] == '\n') {
+                    return i;
+                }
+            }
+            if (limit - position > maxHeaderSize) {
+                throw new LimitExceededException("Part headers too large, limit is " + maxHeaderSize);
+            }
+            from = Math.max(position, limit - 1);
+            int offset = position;
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart stream in headers");
+            }
+            from -= offset - position;
+        }
+    }
+
+    private void readContent(Part part, OutputStream output) throws IOException {
+        long max = part.filename == null ? maxFieldSize : maxFileSize;
+        while (true) {
+            int found = indexOf(position, limit);
+            int end = found > -1 ? found : Math.max(position, limit - delimiter.length + 1);
+            int length = end - position;
+            if (length > 0) {
+                part.size += length;
+                if (max > -1 && part.size > max) {
+                    throw new LimitExceededException((part.filename == null ?
+                            "Form field" : "File") + " too large, limit is " + max);
+                }
+                output.write(buffer, position, length);
+                position = end;
+            }
+            if (found > -1) {
+                position = found + delimiter.length;
+                return;
+            }
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    /**
+     * Search the delimiter in the buffer using Boyer-Moore-Horspool.
+     */
+    private int indexOf(int from, int to) {
+        int length = delimiter.length;
+        int last = length - 1;
+        int i = from;
+        while (i <= to - length) {
+            int j = last;
+            while (buffer[i + j] == delimiter[j]) {
+                if (j == 0) {
+                    return i;
+                }
+                j--;
+            }
+            i += skip[buffer[i + last] & 0xff];
+        }
+        return -1;
+    }
+
+    private void require(int count) throws IOException {
+        while (limit - position < count) {
+            if (!fill()) {
+                throw new IOException("Unexpected end of multipart stream");
+            }
+        }
+    }
+
+    /**
+     * Compact the buffer and read more bytes.
+     * @return false if the end of the input has been reached
+     */
+    private boolean fill() throws IOException {
+        if (position > 0) {
+            System.arraycopy(buffer, position, buffer, 0, limit - position);
+            limit -= position;
+            position = 0;
+        }
+        if (limit == buffer.length) {
+            byte[] b = new byte[buffer.length * 2];
+            System.arraycopy(buffer, 0, b, 0, limit);
+            buffer = b;
+        }
+        if (eof) {
+            return false;
+        }
+        int read = input.read(buffer, limit, buffer.length - limit);
+        if (read < 0) {
+            eof = true;
+            return false;
+        }
+        total += read;
+        if (maxTotalSize > -1 && total > maxTotalSize) {
+            throw new LimitExceededException("Request body too large, limit is " + maxTotalSize);
+        }
+        limit += read;
+        return true;
+    }
+
+    /**
+     * Get a parameter from a header value such as <code>form-data;
+     * name="field"</code>. Quoted values may contain semicolons.
+     */
+    static String getParameter(String header, String name) {
+        int length = header.length();
+        int i = header.indexOf(';');
+        while (i > -1 && i < length) {
+            i++;
+            while (i < length && Character.isWhitespace(header.charAt(i))) {
+                i++;
+            }
+            int eq = header.indexOf('=', i);
+            if (eq < 0) {
+                return null;
+            }
+            String key = header.substring(i, eq).trim();
+            int start = eq + 1;
+            String value;
+            int next;
+            if (start < length && header.charAt(start) == '"') {
+                StringBuilder b = new StringBuilder();
+                int j = start + 1;
+                for (; j < length && header.charAt(j) != '"'; j++) {
+                    char c = header.charAt(j);
+                    if (c == '\\' && j + 1 < length) {
+                        c = header.charAt(++j);
+                    }
+                    b.append(c);
+                }
+                value = b.toString();
+                next = header.indexOf(';', j);
+            } else {
+                next = header.indexOf(';', start);
+                value = header.substring(start, next < 0 ? length : next).trim();
+            }
+            if (key.equalsIgnoreCase(name)) {
+                return value;
+            }
+            i = next;
+        }
+        return null;
+    }
+
+    /**
+     * A part of a multipart body.
+     */
+    public static class Part {
+        String name;
+        String filename;
+        String contentType;
+        long size = 0;
+        File file;
+        ByteArrayOutputStream memory;
+        final Map<String, String> headers = new HashMap<String, String>();
+
+        void addHeader(String line) {
+            int colon = line.indexOf(':');
+            if (colon > 0) {
+                headers.put(line.substring(0, colon).trim().toLowerCase(),
+                        line.substring(colon + 1).trim());
+            }
+        }
+
+        /**
+         * @return the form field name
+         */
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * @return the file name, or null if this is not a file upload
+         */
+        public String getFilename() {
+            return filename;
+        }
+
+        /**
+         * @return the content type, or null if not specified
+         */
+        public String getContentType() {
+            return contentType;
+        }
+
+        /**
+         * Get a header of this part.
+         * @param name the header name, case insensitive
+         * @return the header value, or null
+         */
+        public String getHeader(String name) {
+            return headers.get(name.toLowerCase());
+        }
+
+        /**
+         * @return the size of the part's content in bytes
+         */
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @return the file the content was written to by the sink, or null
+         */
+        public File getFile() {
+            return file;
+        }
+
+        /**
+         * @return the content if it was kept in memory by the sink, or null
+         */
+        public byte[] getBytes() {
+            return memory == null ? null : memory.toByteArray();
+        }
+
+        /**
+         * Get the content kept in memory decoded as string.
+         * @param charset the charset
+         * @return the decoded content, or null
+         * @throws UnsupportedEncodingException if the charset isn't supported
+         */
+        public String getString(String charset) throws UnsupportedEncodingException {
+            return memory == null ? null : memory.toString(charset);
+        }
+
+        void delete() {
+            if (file != null) {
+                file.delete();
+            }
+        }
+    }
+}
@@ -0,0 +1,487 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.mozilla.javascript.Context;
+import org.mozilla.javascript.Function;
+import org.mozilla.javascript.Scriptable;
+import org.mozilla.javascript.ScriptableObject;
+import org.ringojs.repository.FileResource;
+import org.ringojs.repository.Resource;
+import org.ringojs.wrappers.Binary;
+
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A JSGI response body serving a static resource. When committed by
+ * {@link JsgiResponse} the resource is written by Java code rather than
+ * through <code>forEach()</code>, and conditional and range requests are
+ * handled according to the <code>If-None-Match</code>, <code>If-Modified-Since</code>,
+ * <code>Range</code> and <code>If-Range</code> request headers.
+ *
+ * <p>The body also implements <code>forEach()</code> and <code>digest()</code>
+ * so it can be used by JSGI middleware like any other body.</p>
+ */
+public class ResourceBody {
+
+    private final Resource resource;
+    private final ResourceCache.Entry entry;
+    private final ResourceCache cache;
+    // the file to read the content from, if available
+    private final File file;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    static boolean hasJetty;
+
+    static {
+        try {
+            hasJetty = JettySupport.isAvailable();
+        } catch (Throwable t) {
+            hasJetty = false;
+        }
+    }
+
+    /**
+     * Create a body for the given resource.
+     * @param resource the resource
+     */
+    public ResourceBody(Resource resource) {
+        if (resource == null) {
+            throw new IllegalArgumentException("resource must not be null");
+        }
+        this.resource = resource;
+        this.entry = null;
+        this.cache = null;
+        this.file = getFile(resource);
+    }
+
+    /**
+     * Create a body for the given resource, serving its content from a
+     * resource cache.
+     * @param resource the resource
+     * @param cache the resource cache
+     * @throws IOException if the resource couldn't be loaded into the cache
+     */
+    public ResourceBody(Resource resource, ResourceCache cache) throws IOException {
+        if (resource == null) {
+            throw new IllegalArgumentException("resource must not be null");
+        }
+        this.resource = resource;
+        this.entry = cache == null ? null : cache.get(resource);
+        this.cache = cache;
+        this.file = entry == null ? getFile(resource) : null;
+    }
+
+    private ResourceBody(Resource resource, ResourceCache.Entry entry) {
+        this.resource = resource;
+        this.entry = entry;
+        this.cache = null;
+        this.file = null;
+    }
+
+    /**
+     * Get a body serving the gzip-compressed content of the resource. If
+     * enabled, a precompressed sibling resource with a <code>.gz</code>
+     * extension is used if it is at least as recent as the resource itself.
+     * Otherwise the compressed content is taken from the resource cache if
+     * this body has one.
+     * @param level the compression level
+     * @param precompressed whether to look for a <code>.gz</code> sibling
+     * @return the compressed body, or null if no compressed representation
+     *         is available
+     * @throws IOException if the resource couldn't be read
+     */
+    public ResourceBody getGzipBody(int level, boolean precompressed) throws IOException {
+        if (precompressed && resource.getParentRepository() != null) {
+            Resource gz = resource.getParentRepository()
+                    .getResource(resource.getName() + ".gz");
+            if (gz != null && gz.exists() && gz.lastModified() >= lastModified()) {
+                return cache == null ? new ResourceBody(gz) : new ResourceBody(gz, cache);
+            }
+        }
+        if (cache != null) {
+            ResourceCache.Entry compressed = cache.getCompressed(resource, level);
+            if (compressed != null) {
+                return new ResourceBody(resource, compressed);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Get the resource served by this body.
+     * @return the resource
+     */
+    public Resource getResource() {
+        return resource;
+    }
+
+    /**
+     * Get the length of the resource in bytes.
+     * @return the resource length
+     */
+    public long getLength() {
+        return entry == null ? resource.getLength() : entry.getLength();
+    }
+
+    /**
+     * Get the last modification date of the resource.
+     * @return the last modification date in milliseconds
+     */
+    public long lastModified() {
+        return entry == null ? resource.lastModified() : entry.lastModified();
+    }
+
+    /**
+     * Get a digest of the resource based on its modification date and length.
+     * @return the digest string
+     */
+    public String digest() {
+        if (entry != null) {
+            return entry.getDigest();
+        }
+        return Long.toString(lastModified(), 36) + Long.toString(getLength(), 36);
+    }
+
+    /**
+     * Get the entity tag for the resource.
+     * @return the quoted digest
+     */
+    public String getETag() {
+        return entry == null ? "\"" + digest() + "\"" : entry.getETag();
+    }
+
+    /**
+     * Check whether the resource content is served from a resource cache.
+     * @return true if the content is cached
+     */
+    public boolean isCached() {
+        return entry != null;
+    }
+
+    /**
+     * Pass the resource content to a JavaScript function as a sequence
+     * of ByteStrings.
+     * @param fn the function
+     * @throws IOException if the resource couldn't be read
+     */
+    public void forEach(Function fn) throws IOException {
+        Context cx = Context.getCurrentContext();
+        Scriptable scope = ScriptableObject.getTopLevelScope(fn);
+        InputStream input = entry == null ?
+                resource.getInputStream() : new ByteBufferInputStream(entry.getContent());
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = input.read(buffer)) > -1) {
+                if (read > 0) {
+                    Binary part = new Binary(scope, Binary.Type.ByteString, buffer, 0, read);
+                    fn.call(cx, scope, scope, new Object[] {part});
+                }
+            }
+        } finally {
+            input.close();
+        }
+    }
+
+    /**
+     * Serve the resource to a servlet response, handling conditional and
+     * range requests if the status is 200.
+     * @param request the servlet request
+     * @param response the servlet response
+     * @param status the response status
+     * @param headers the JSGI response headers
+     * @throws IOException if writing the response failed
+     */
+    public void serve(HttpServletRequest request, HttpServletResponse response,
+                      int status, Scriptable headers) throws IOException {
+        long length = getLength();
+        long lastModified = lastModified();
+        String etag = getETag();
+        if (status == 200 && isNotModified(request, etag, lastModified)) {
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            JsgiResponse.writeHeaders(response, headers);
+            setValidators(response, headers, etag, lastModified);
+            return;
+        }
+        // the length of non-file resources is only known if they are not
+        // subject to shebang stripping
+        boolean exact = entry != null || file != null || !resource.getStripShebang();
+        long[] range = status == 200 && exact ?
+                getRange(request, length, etag, lastModified) : null;
+        if (range == UNSATISFIABLE) {
+            response.setStatus(HttpServletResponse.SC_REQUESTED_RANGE_NOT_SATISFIABLE);
+            JsgiResponse.writeHeaders(response, headers);
+            response.setHeader("Content-Range", "bytes */" + length);
+            response.setHeader("Content-Length", "0");
+            return;
+        }
+        response.setStatus(range == null ? status : HttpServletResponse.SC_PARTIAL_CONTENT);
+        JsgiResponse.writeHeaders(response, headers);
+        setValidators(response, headers, etag, lastModified);
+        if (!exact) {
+            if (!"HEAD".equals(request.getMethod())) {
+                write(response.getOutputStream(), 0, Long.MAX_VALUE, false);
+            }
+            return;
+        }
+        response.setHeader("Accept-Ranges", "bytes");
+        long offset = 0, count = length;
+        if (range != null) {
+            offset = range[0];
+            count = range[1] - range[0] + 1;
+            response.setHeader("Content-Range",
+                    "bytes " + range[0] + "-" + range[1] + "/" + length);
+        }
+        response.setHeader("Content-Length", Long.toString(count));
+        if (!"HEAD".equals(request.getMethod())) {
+            write(response.getOutputStream(), offset, count, count == length);
+        }
+    }
+
+    /**
+     * Write the complete resource to an output stream.
+     * @param output the output stream
+     * @throws IOException if writing failed
+     */
+    public void writeTo(OutputStream output) throws IOException {
+        write(output, 0, getLength(), false);
+    }
+
+    private void write(OutputStream output, long offset, long count, boolean complete)
+            throws IOException {
+        if (entry != null) {
+            entry.write(output, offset, count, complete && hasJetty);
+        } else if (file != null) {
+            FileChannel channel = new FileInputStream(file).getChannel();
+            try {
+                // the servlet output stream is not a file or socket channel,
+                // so this copies through a buffer rather than using sendfile.
+                // It still saves us from managing the read buffer ourselves.
+                WritableByteChannel target = Channels.newChannel(output);
+                while (count > 0) {
+                    long written = channel.transferTo(offset, count, target);
+                    if (written <= 0) {
+                        break;
+                    }
+                    offset += written;
+                    count -= written;
+                }
+            } finally {
+                channel.close();
+            }
+        } else {
+            InputStream input = resource.getInputStream();
+            try {
+                while (offset > 0) {
+                    long skipped = input.skip(offset);
+                    if (skipped <= 0) {
+                        break;
+                    }
+                    offset -= skipped;
+                }
+                byte[] buffer = new byte[BUFFER_SIZE];
+                while (count > 0) {
+                    int read = input.read(buffer, 0, (int) Math.min(buffer.length, count));
+                    if (read < 0) {
+                        break;
+                    }
+                    output.write(buffer, 0, read);
+                    count -= read;
+                }
+            } finally {
+                input.close();
+            }
+        }
+    }
+
+    /**
+     * Get the file backing a resource if its content can be read directly
+     * from the file system, which is the case for file resources that don't
+     * start with a shebang line to be stripped.
+     */
+    static File getFile(Resource resource) {
+        if (resource instanceof FileResource) {
+            File file = ((FileResource) resource).getFile();
+            if (!resource.getStripShebang() || !hasShebang(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private static boolean hasShebang(File file) {
+        try {
+            InputStream input = new FileInputStream(file);
+            try {
+                return input.read() == '#' && input.read() == '!';
+            } finally {
+                input.close();
+            }
+        } catch (IOException iox) {
+            return false;
+        }
+    }
+
+    private static void setValidators(HttpServletResponse response, Scriptable headers,
+                                      String etag, long lastModified) {
+        if (JsgiResponse.getHeader(headers, "ETag") == null) {
+            response.setHeader("ETag", etag);
+        }
+        if (lastModified > 0 && JsgiResponse.getHeader(headers, "Last-Modified") == null) {
+            response.setDateHeader("Last-Modified", lastModified);
+        }
+    }
+
+    static boolean isNotModified(HttpServletRequest request, String etag, long lastModified) {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            return matchesETag(ifNoneMatch, etag);
+        }
+        long ifModifiedSince = getDateHeader(request, "If-Modified-Since");
+        // HTTP dates have a resolution of one second
+        return ifModifiedSince > -1 && lastModified / 1000 <= ifModifiedSince / 1000;
+    }
+
+    private static final long[] UNSATISFIABLE = new long[0];
+
+    /**
+     * Parse a single byte range from the Range header. Returns null if the
+     * complete resource should be served, or UNSATISFIABLE if the range is
+     * outside of the resource. Multiple ranges are not supported and
+     * result in the complete resource being served.
+     */
+    static long[] getRange(HttpServletRequest request, long length,
+                           String etag, long lastModified) {
+        String header = request.getHeader("Range");
+        if (header == null || !header.startsWith("bytes=") || header.indexOf(',') > -1) {
+            return null;
+        }
+        String ifRange = request.getHeader("If-Range");
+        if (ifRange != null) {
+            if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+                if (!ifRange.equals(etag)) {
+                    return null;
+                }
+            } else {
+                long date = getDateHeader(request, "If-Range");
+                if (date == -1 || lastModified / 1000 > date / 1000) {
+                    return null;
+                }
+            }
+        }
+        String spec = header.substring(6).trim();
+        int dash = spec.indexOf('-');
+        if (dash < 0) {
+            return null;
+        }
+        long start, end;
+        try {
+            if (dash == 0) {
+                // suffix range: the last n bytes
+                long suffix = Long.parseLong(spec.substring(1).trim());
+                if (suffix <= 0) {
+                    return UNSATISFIABLE;
+                }
+                start = Math.max(0, length - suffix);
+                end = length - 1;
+            } else {
+                start = Long.parseLong(spec.substring(0, dash).trim());
+                String last = spec.substring(dash + 1).trim();
+                end = last.length() == 0 ?
+                        length - 1 : Math.min(Long.parseLong(last), length - 1);
+                if (end < start) {
+                    return last.length() == 0 || start >= length ? UNSATISFIABLE : null;
+                }
+            }
+        } catch (NumberFormatException nfx) {
+            return null;
+        }
+        if (start >= length) {
+            return UNSATISFIABLE;
+        }
+        return new long[] {start, end};
+    }
+
+    private static boolean matchesETag(String header, String etag) {
+        if ("*".equals(header.trim())) {
+            return true;
+        }
+        int start = 0;
+        while (start < header.length()) {
+            int end = header.indexOf(',', start);
+            if (end < 0) {
+                end = header.length();
+            }
+            if (etag.equals(header.substring(start, end).trim())) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    private static long getDateHeader(HttpServletRequest request, String name) {
+        try {
+            return request.getDateHeader(name);
+        } catch (IllegalArgumentException iax) {
+            return -1;
+        }
+    }
+
+    /**
+     * An input stream reading from a byte buffer.
+     */
+    static class ByteBufferInputStream extends InputStream {
+        final ByteBuffer buffer;
+
+        ByteBufferInputStream(ByteBuffer buffer) {
+            this.buffer = buffer;
+        }
+
+        @Override
+        public int read() {
+            return buffer.hasRemaining() ? buffer.get() & 0xff : -1;
+        }
+
+        @Override
+        public int read(byte[] bytes, int off, int len) {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            len = Math.min(len, buffer.remaining());
+            buffer.get(bytes, off, len);
+            return len;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "[ResourceBody " + resource + "]";
+    }
+}
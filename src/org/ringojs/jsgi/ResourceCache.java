@@ -0,0 +1,452 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import org.ringojs.repository.Resource;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache for the content of static resources. Resources smaller
+ * than the direct threshold are kept as byte arrays on the heap, larger file
+ * resources are read into direct buffers outside of the heap. Both kinds of
+ * content have their own size budget. Files are copied rather than memory
+ * mapped, so rewriting or truncating a cached file never affects content
+ * that is being served. Entries are validated against the resource's
+ * checksum and reloaded if it has changed. To spare a file system call on
+ * each request, an entry is only validated again once the revalidation
+ * interval has passed since its last validation. The cache can also hold
+ * gzip-compressed representations of resources.
+ *
+ * <p>The shared instance returned by {@link #getInstance()} is configured
+ * through the following system properties:</p>
+ * <ul>
+ * <li><code>ringo.static.cache.entries</code> - the maximal number of
+ *     cached resources, defaults to 1000</li>
+ * <li><code>ringo.static.cache.size</code> - the maximal number of bytes
+ *     kept on the heap, defaults to 32 MB</li>
+ * <li><code>ringo.static.cache.directsize</code> - the maximal number of
+ *     bytes kept in direct buffers, defaults to 64 MB</li>
+ * <li><code>ringo.static.cache.directthreshold</code> - the size in bytes
+ *     from which file resources are kept in direct buffers instead of on the
+ *     heap, defaults to 256 KB</li>
+ * <li><code>ringo.static.cache.revalidate</code> - the interval in
+ *     milliseconds after which entries are validated against their
+ *     resource again, defaults to 1000. 0 validates entries on each
+ *     lookup.</li>
+ * </ul>
+ *
+ * <p>Resources are loaded outside of the cache lock, so concurrent misses
+ * on the same resource may load it more than once. The memory of evicted
+ * direct buffers is released by the garbage collector, as buffers may still
+ * be in use by responses being written.</p>
+ */
+public class ResourceCache {
+
+    private final int maxEntries;
+    private final long maxSize;
+    private final long maxDirectSize;
+    private final long directThreshold;
+    private final long revalidateInterval;
+
+    static final long DEFAULT_REVALIDATE_INTERVAL = 1000;
+
+    // access ordered, guarded by this
+    private final LinkedHashMap<String, Entry> entries =
+            new LinkedHashMap<String, Entry>(16, 0.75f, true);
+    private long size = 0;
+    private long directSize = 0;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong invalidations = new AtomicLong();
+
+    private static ResourceCache instance;
+
+    /**
+     * Create a new resource cache.
+     * @param maxEntries the maximal number of cached resources
+     * @param maxSize the maximal number of bytes kept on the heap
+     * @param maxDirectSize the maximal number of bytes kept in direct buffers
+     * @param directThreshold the resource size from which file resources are
+     *                     read into direct buffers instead of the heap
+     */
+    public ResourceCache(int maxEntries, long maxSize, long maxDirectSize,
+                         long directThreshold) {
+        this(maxEntries, maxSize, maxDirectSize, directThreshold,
+                DEFAULT_REVALIDATE_INTERVAL);
+    }
+
+    /**
+     * Create a new resource cache.
+     * @param maxEntries the maximal number of cached resources
+     * @param maxSize the maximal number of bytes kept on the heap
+     * @param maxDirectSize the maximal number of bytes kept in direct buffers
+     * @param directThreshold the resource size from which file resources are
+     *                     read into direct buffers instead of the heap
+     * @param revalidateInterval the number of milliseconds after which an
+     *                     entry is validated against its resource again
+     */
+    public ResourceCache(int maxEntries, long maxSize, long maxDirectSize,
+                         long directThreshold, long revalidateInterval) {
+        this.maxEntries = maxEntries;
+        this.maxSize = maxSize;
+        this.maxDirectSize = maxDirectSize;
+        this.directThreshold = directThreshold;
+        this.revalidateInterval = revalidateInterval;
+    }
+
+    /**
+     * Get the shared cache instance, creating it on first invocation.
+     * @return the shared resource cache
+     */
+    public static synchronized ResourceCache getInstance() {
+        if (instance == null) {
+            int entries = Integer.getInteger("ringo.static.cache.entries", 1000).intValue();
+            long size = Long.getLong("ringo.static.cache.size", 32L * 1024 * 1024).longValue();
+            long directSize = Long.getLong("ringo.static.cache.directsize", 64L * 1024 * 1024).longValue();
+            long threshold = Long.getLong("ringo.static.cache.directthreshold", 256L * 1024).longValue();
+            long revalidate = Long.getLong("ringo.static.cache.revalidate",
+                    DEFAULT_REVALIDATE_INTERVAL).longValue();
+            instance = new ResourceCache(entries, size, directSize, threshold, revalidate);
+        }
+        return instance;
+    }
+
+    /**
+     * Get the cache entry for a resource, loading it if it isn't cached or
+     * its checksum has changed.
+     * @param resource the resource
+     * @return the cache entry, or null if the resource doesn't exist or is
+     *         too large to be cached
+     * @throws IOException if the resource couldn't be read
+     */
+    public Entry get(Resource resource) throws IOException {
+        return get(resource, resource.getPath(), false, 0);
+    }
+
+    /**
+     * Check whether the cache holds an entry for a resource that was
+     * validated within the revalidation interval. Such a resource can be
+     * assumed to exist without asking the file system.
+     * @param resource the resource
+     * @return true if the resource is cached and needs no revalidation
+     */
+    public boolean isCached(Resource resource) {
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(resource.getPath());
+        }
+        return entry != null && entry.isFresh(System.currentTimeMillis());
+    }
+
+    /**
+     * Get the cache entry for the gzip-compressed content of a resource,
+     * compressing it if it isn't cached or its checksum has changed. Only
+     * resources below the direct threshold are compressed and cached.
+     * @param resource the resource
+     * @param level the compression level
+     * @return the cache entry, or null if the resource doesn't exist or is
+     *         too large to be compressed in memory
+     * @throws IOException if the resource couldn't be read
+     */
+    public Entry getCompressed(Resource resource, int level) throws IOException {
+        return get(resource, resource.getPath() + "#gzip" + level, true, level);
+    }
+
+    private Entry get(Resource resource, String key, boolean gzip, int level)
+            throws IOException {
+        long now = System.currentTimeMillis();
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(key);
+        }
+        if (entry != null && entry.isFresh(now)) {
+            hits.incrementAndGet();
+            return entry;
+        }
+        long checksum = resource.getChecksum();
+        synchronized (this) {
+            entry = entries.get(key);
+            if (entry != null && entry.checksum != checksum) {
+                remove(key);
+                invalidations.incrementAndGet();
+                entry = null;
+            }
+        }
+        if (entry != null) {
+            entry.validated = now;
+            hits.incrementAndGet();
+            return entry;
+        }
+        misses.incrementAndGet();
+        if (!resource.exists()) {
+            return null;
+        }
+        entry = gzip ?
+                loadCompressed(resource, checksum, level) : load(resource, checksum);
+        if (entry != null) {
+            put(key, entry);
+        }
+        return entry;
+    }
+
+    private Entry load(Resource resource, long checksum) throws IOException {
+        long length = resource.getLength();
+        long lastModified = resource.lastModified();
+        if (length >= directThreshold) {
+            File file = ResourceBody.getFile(resource);
+            if (file != null && length <= maxDirectSize) {
+                ByteBuffer buffer = readDirect(file, length);
+                if (buffer != null) {
+                    return new Entry(buffer, null, checksum, lastModified, "",
+                            revalidateInterval);
+                }
+            }
+            // too large to keep on the heap
+            return null;
+        }
+        if (length > maxSize) {
+            return null;
+        }
+        return new Entry(null, readBytes(resource, length), checksum, lastModified, "",
+                revalidateInterval);
+    }
+
+    private Entry loadCompressed(Resource resource, long checksum, int level)
+            throws IOException {
+        long length = resource.getLength();
+        if (length >= directThreshold || length > maxSize) {
+            return null;
+        }
+        long lastModified = resource.lastModified();
+        byte[] compressed = GzipBody.compress(readBytes(resource, length), level);
+        return new Entry(null, compressed, checksum, lastModified, "-gzip",
+                revalidateInterval);
+    }
+
+    /**
+     * Read a file into a direct buffer. Returns null if the file changed
+     * its length while being read.
+     */
+    private static ByteBuffer readDirect(File file, long length) throws IOException {
+        FileChannel channel = new FileInputStream(file).getChannel();
+        try {
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) length);
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            buffer.flip();
+            return buffer;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static byte[] readBytes(Resource resource, long length) throws IOException {
+        InputStream input = resource.getInputStream();
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream((int) length);
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = input.read(buffer)) > -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        } finally {
+            input.close();
+        }
+    }
+
+    private synchronized void put(String key, Entry entry) {
+        remove(key);
+        entries.put(key, entry);
+        if (entry.isDirect()) {
+            directSize += entry.length;
+        } else {
+            size += entry.length;
+        }
+        Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+        while ((size > maxSize || directSize > maxDirectSize
+                || entries.size() > maxEntries) && it.hasNext()) {
+            Entry eldest = it.next().getValue();
+            if (eldest == entry) {
+                continue;
+            }
+            // only evict entries that count against an exceeded budget
+            if (entries.size() <= maxEntries && (eldest.isDirect() ?
+                    directSize <= maxDirectSize : size <= maxSize)) {
+                continue;
+            }
+            it.remove();
+            release(eldest);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private void remove(String key) {
+        Entry entry = entries.remove(key);
+        if (entry != null) {
+            release(entry);
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry.isDirect()) {
+            directSize -= entry.length;
+        } else {
+            size -= entry.length;
+        }
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public synchronized void clear() {
+        entries.clear();
+        size = directSize = 0;
+    }
+
+    /**
+     * Get a snapshot of the cache statistics as a map.
+     * @return a map containing the cache statistics
+     */
+    public synchronized Map<String, Object> getStats() {
+        Map<String, Object> map = new HashMap<String, Object>();
+        map.put("entries", Integer.valueOf(entries.size()));
+        map.put("size", Long.valueOf(size));
+        map.put("directSize", Long.valueOf(directSize));
+        map.put("hits", Long.valueOf(hits.get()));
+        map.put("misses", Long.valueOf(misses.get()));
+        map.put("evictions", Long.valueOf(evictions.get()));
+        map.put("invalidations", Long.valueOf(invalidations.get()));
+        map.put("maxEntries", Integer.valueOf(maxEntries));
+        map.put("maxSize", Long.valueOf(maxSize));
+        map.put("maxDirectSize", Long.valueOf(maxDirectSize));
+        map.put("revalidateInterval", Long.valueOf(revalidateInterval));
+        return map;
+    }
+
+    /**
+     * The cached content of a resource along with its length, modification
+     * date and entity tag. Entries are immutable apart from the time they
+     * were last validated.
+     */
+    public static final class Entry {
+        private final ByteBuffer direct;
+        private final byte[] content;
+        final long checksum;
+        final long length;
+        final long lastModified;
+        final String digest;
+        final String etag;
+        final long revalidateInterval;
+        // the time the entry was last validated against its resource
+        volatile long validated;
+
+        Entry(ByteBuffer direct, byte[] content, long checksum, long lastModified,
+              String variant, long revalidateInterval) {
+            this.direct = direct;
+            this.content = content;
+            this.checksum = checksum;
+            this.length = direct != null ? direct.limit() : content.length;
+            this.lastModified = lastModified;
+            this.digest = Long.toString(lastModified, 36) + Long.toString(length, 36) + variant;
+            this.etag = "\"" + digest + "\"";
+            this.revalidateInterval = revalidateInterval;
+            this.validated = System.currentTimeMillis();
+        }
+
+        boolean isFresh(long now) {
+            return now - validated < revalidateInterval;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        public long lastModified() {
+            return lastModified;
+        }
+
+        public String getDigest() {
+            return digest;
+        }
+
+        public String getETag() {
+            return etag;
+        }
+
+        public boolean isDirect() {
+            return direct != null;
+        }
+
+        /**
+         * Get a read-only view of the cached content.
+         * @return a new read-only buffer containing the content
+         */
+        public ByteBuffer getContent() {
+            return direct != null ?
+                    direct.asReadOnlyBuffer() : ByteBuffer.wrap(content).asReadOnlyBuffer();
+        }
+
+        /**
+         * Write part of the cached content to an output stream.
+         * @param output the output stream
+         * @param offset the offset of the first byte to write
+         * @param count the number of bytes to write
+         * @param complete whether the complete content may be handed to
+         *               Jetty as the whole response content
+         * @throws IOException if writing failed
+         */
+        void write(OutputStream output, long offset, long count, boolean complete)
+                throws IOException {
+            if (content != null) {
+                output.write(content, (int) offset, (int) count);
+            } else {
+                ByteBuffer buffer = direct.duplicate();
+                buffer.position((int) offset);
+                buffer.limit((int) (offset + count));
+                if (complete && offset == 0 && count == length
+                        && JettySupport.sendBuffer(output, buffer)) {
+                    return;
+                }
+                WritableByteChannel channel = Channels.newChannel(output);
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.jsgi;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A decoder for application/x-www-form-urlencoded data such as query strings
+ * and form posts. The input is scanned once, and each name and value is
+ * percent-decoded into a single reusable buffer before being converted to a
+ * string. Parameters with an empty name or value are skipped.
+ *
+ * <p>The number of fields and the size of the input can be limited. Exceeding
+ * a limit causes parsing to fail with a {@link LimitExceededException}.</p>
+ */
+public class UrlEncodedParser {
+
+    private int maxFields = -1;
+    private int maxSize = -1;
+
+    /**
+     * Set the maximal number of fields.
+     * @param maxFields the limit, or -1 for no limit
+     */
+    public void setMaxFields(int maxFields) {
+        this.maxFields = maxFields;
+    }
+
+    /**
+     * Set the maximal size of the encoded input.
+     * @param maxSize the limit in bytes, or -1 for no limit
+     */
+    public void setMaxSize(int maxSize) {
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Decode urlencoded data into a flat array of names and values.
+     * @param bytes the encoded data
+     * @param charset the charset of the data, defaults to UTF-8
+     * @return an array containing the decoded name of each parameter followed
+     *         by its value. Names are trimmed.
+     * @throws UnsupportedEncodingException if the charset isn't supported
+     * @throws LimitExceededException if the input exceeds a limit
+     */
+    public String[] parse(byte[] bytes, String charset)
+            throws IOException {
+        if (charset == null) {
+            charset = "UTF-8";
+        }
+        int length = bytes.length;
+        if (maxSize > -1 && length > maxSize) {
+            throw new LimitExceededException("Form data too large, limit is " + maxSize);
+        }
+        List<String> result = new ArrayList<String>();
+        byte[] buffer = new byte[Math.min(length, 1024)];
+        int fields = 0;
+        int start = 0;
+        while (start < length) {
+            int end = start, equals = -1;
+            while (end < length && bytes[end] != '&') {
+                if (equals < 0 && bytes[end] == '=') {
+                    equals = end;
+                }
+                end++;
+            }
+            // skip fields without name or value
+            if (equals > start && equals < end - 1) {
+                if (maxFields > -1 && ++fields > maxFields) {
+                    throw new LimitExceededException("Too many fields, limit is " + maxFields);
+                }
+                if (buffer.length < end - start) {
+                    buffer = new byte[end - start];
+                }
+                result.add(decode(bytes, start, equals, buffer, charset).trim());
+                result.add(decode(bytes, equals + 1, end, buffer, charset));
+            }
+            start = end + 1;
+        }
+        return result.toArray(new String[result.size()]);
+    }
+
+    /**
+     * Decode '+' to space and %xx hex sequences, then decode the resulting
+     * bytes using the given charset. Malformed hex sequences are kept as is.
+     */
+    private static String decode(byte[] bytes, int from, int to, byte[] buffer,
+                                 String charset)
+            throws UnsupportedEncodingException {
+        int n = 0;
+        for (int i = from; i < to; i++) {
+            byte b = bytes[i];
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < to) {
+                int hi = hexValue(bytes[i + 1]);
+                int lo = hexValue(bytes[i + 2]);
+                if (hi > -1 && lo > -1) {
+                    b = (byte) ((hi << 4) + lo);
+                    i += 2;
+                }
+            }
+            buffer[n++] = b;
+        }
+        return new String(buffer, 0, n, charset);
+    }
+
+    private static int hexValue(byte b) {
+        if (b >= '0' && b <= '9') {
+            return b - '0';
+        } else if (b >= 'a' && b <= 'f') {
+            return b - 'a' + 10;
+        } else if (b >= 'A' && b <= 'F') {
+            return b - 'A' + 10;
+        }
+        return -1;
+    }
+}
@@ -20,6 +20,7 @@ import java.io.IOException;
 import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * Provides common methods and fields for the default implementations of the
@@ -42,7 +43,8 @@ public abstract class AbstractRepository implements Repository {
     /**
      * Cache for direct resources
      */
-    Map<String, AbstractResource> resources = new ConcurrentHashMap<String, AbstractResource>();
+    ConcurrentMap<String, AbstractResource> resources =
+            new ConcurrentHashMap<String, AbstractResource>();
 
     /**
      * Cached name for faster access
@@ -191,7 +193,7 @@ public abstract class AbstractRepository implements Repository {
      * If the name can't be resolved to a resource, a resource object is returned
      * for which {@link Resource exists()} returns <code>false<code>.
      */
-    public synchronized Resource getResource(String subpath) throws IOException {
+    public Resource getResource(String subpath) throws IOException {
         String[] list = resolve(subpath, false);
         AbstractRepository repo = this;
         if (list.length == 0) {
@@ -162,7 +162,10 @@ public class FileRepository extends AbstractRepository {
         AbstractResource res = resources.get(name);
         if (res == null) {
             res = new FileResource(new File(directory, name), this);
-            resources.put(name, res);
+            AbstractResource existing = resources.putIfAbsent(name, res);
+            if (existing != null) {
+                res = existing;
+            }
         }
         return res;
     }
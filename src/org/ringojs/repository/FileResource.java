@@ -51,6 +51,14 @@ public class FileResource extends AbstractResource {
         baseName = (lastDot == -1) ? name : name.substring(0, lastDot);
     }
 
+    /**
+     * Get the file represented by this resource.
+     * @return the file
+     */
+    public File getFile() {
+        return file;
+    }
+
     public InputStream getInputStream() throws IOException {
         return stripShebang(new FileInputStream(file));
     }
@@ -72,6 +80,15 @@ public class FileResource extends AbstractResource {
         return file.isFile();
     }
 
+    /**
+     * Check whether changes to this resource are tracked by the
+     * {@link FileWatcher}.
+     * @return true if the underlying file is being watched
+     */
+    public boolean isWatched() {
+        return FileWatcher.isWatched(file);
+    }
+
     @Override
     public int hashCode() {
         return 17 + path.hashCode();
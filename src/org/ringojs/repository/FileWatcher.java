@@ -0,0 +1,240 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.repository;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Keeps track of file modification dates in a background thread so that
+ * the engine can tell whether a module file has changed without a file
+ * system call.
+ *
+ * <p>Files are registered explicitly through {@link #watch(File)}. The
+ * engine does this for module sources it loads when reloading is enabled,
+ * so the watcher thread is only started in that case. The thread checks all
+ * registered files at a fixed interval and updates their state, so the cost
+ * of checking a file is paid once per interval instead of each time a
+ * module is loaded. {@link #getLastModified(File)} returns the tracked
+ * modification time of a file, which the engine uses to check whether
+ * compiled modules are up to date. Each detected change also increments a
+ * global modification count, so callers can tell whether anything has
+ * changed at all with a single read. Listeners can be registered to be
+ * notified of each detected change.</p>
+ *
+ * <p>The check interval in milliseconds is read from the
+ * <code>ringo.watch.interval</code> system property and defaults to 1000.
+ * Setting it to 0 disables the watcher. The maximal number of watched
+ * files is read from the <code>ringo.watch.limit</code> system property
+ * and defaults to 50000. Files beyond that limit are not watched, and
+ * callers must check them directly.</p>
+ */
+public final class FileWatcher {
+
+    private static final long interval =
+            Long.getLong("ringo.watch.interval", 1000L).longValue();
+    private static final int limit =
+            Integer.getInteger("ringo.watch.limit", 50000).intValue();
+    private static final Map<File, Entry> entries =
+            new ConcurrentHashMap<File, Entry>();
+    private static final AtomicLong modCount = new AtomicLong();
+    private static final List<WeakReference<Listener>> listeners =
+            new CopyOnWriteArrayList<WeakReference<Listener>>();
+    private static final Logger log =
+            Logger.getLogger(FileWatcher.class.getName());
+    private static Thread thread;
+
+    private FileWatcher() {}
+
+    /**
+     * Register a file with the watcher, starting the watcher thread if
+     * necessary.
+     * @param file the file
+     * @return true if the file is being watched, false if the watcher is
+     *         disabled or the limit of watched files has been reached
+     */
+    public static boolean watch(File file) {
+        if (interval <= 0) {
+            return false;
+        }
+        if (!entries.containsKey(file)) {
+            if (entries.size() >= limit) {
+                return false;
+            }
+            entries.put(file, new Entry(file));
+            start();
+        }
+        return true;
+    }
+
+    /**
+     * Stop watching the given file.
+     * @param file the file
+     */
+    public static void unwatch(File file) {
+        entries.remove(file);
+    }
+
+    /**
+     * Check whether the given file is currently being watched.
+     * @param file the file
+     * @return true if the file is registered with the watcher
+     */
+    public static boolean isWatched(File file) {
+        return interval > 0 && entries.containsKey(file);
+    }
+
+    /**
+     * Get the modification time of a watched file as of the last check,
+     * without calling the file system. Changes are noticed within the
+     * check interval.
+     * @param file the file
+     * @return the tracked modification time, 0 if the file didn't exist at
+     *         the last check, or -1 if the file isn't watched
+     */
+    public static long getLastModified(File file) {
+        Entry entry = interval > 0 ? entries.get(file) : null;
+        return entry == null ? -1 : entry.lastModified;
+    }
+
+    /**
+     * Get the number of modifications detected since the watcher was started.
+     * If this value hasn't changed, none of the watched files has changed.
+     * Files that aren't watched never affect this value.
+     * @return the modification count
+     */
+    public static long getModificationCount() {
+        return modCount.get();
+    }
+
+    /**
+     * Check whether file modifications are tracked by the background thread.
+     * @return true if the watcher is enabled
+     */
+    public static boolean isEnabled() {
+        return interval > 0;
+    }
+
+    /**
+     * Register a listener to be notified of file changes. Listeners are
+     * only weakly referenced, so the caller must keep a reference to the
+     * listener for as long as it wants to receive notifications.
+     * @param listener the listener
+     */
+    public static void addListener(Listener listener) {
+        listeners.add(new WeakReference<Listener>(listener));
+    }
+
+    /**
+     * Unregister a file change listener.
+     * @param listener the listener
+     */
+    public static void removeListener(Listener listener) {
+        for (WeakReference<Listener> ref : listeners) {
+            Listener l = ref.get();
+            if (l == null || l == listener) {
+                listeners.remove(ref);
+            }
+        }
+    }
+
+    /**
+     * Get the number of files currently being watched.
+     * @return the number of watched files
+     */
+    public static int size() {
+        return entries.size();
+    }
+
+    private static synchronized void start() {
+        if (thread == null) {
+            thread = new Thread(new Runnable() {
+                public void run() {
+                    while (true) {
+                        try {
+                            Thread.sleep(interval);
+                        } catch (InterruptedException ix) {
+                            break;
+                        }
+                        check();
+                    }
+                }
+            }, "ringo-file-watcher");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private static void check() {
+        for (Entry entry : entries.values()) {
+            long lastModified = entry.file.lastModified();
+            boolean isFile = entry.file.isFile();
+            if (lastModified != entry.lastModified || isFile != entry.isFile) {
+                entry.lastModified = lastModified;
+                entry.isFile = isFile;
+                modCount.incrementAndGet();
+                notifyListeners(entry.file);
+            }
+        }
+    }
+
+    private static void notifyListeners(File file) {
+        for (WeakReference<Listener> ref : listeners) {
+            Listener listener = ref.get();
+            if (listener == null) {
+                listeners.remove(ref);
+            } else {
+                try {
+                    listener.fileChanged(file);
+                } catch (RuntimeException x) {
+                    log.log(Level.WARNING, "Error in file change listener", x);
+                }
+            }
+        }
+    }
+
+    /**
+     * Interface for objects interested in file changes detected by the watcher.
+     */
+    public interface Listener {
+        /**
+         * Called from the watcher thread when a change to a watched file
+         * has been detected.
+         * @param file the file that has changed
+         */
+        public void fileChanged(File file);
+    }
+
+    static class Entry {
+        final File file;
+        volatile long lastModified;
+        volatile boolean isFile;
+
+        Entry(File file) {
+            this.file = file;
+            this.lastModified = file.lastModified();
+            this.isFile = file.isFile();
+        }
+    }
+}
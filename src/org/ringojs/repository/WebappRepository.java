@@ -66,7 +66,10 @@ public class WebappRepository extends AbstractRepository {
         AbstractResource res = resources.get(name);
         if (res == null) {
             res = new WebappResource(context, this, name);
-            resources.put(name, res);
+            AbstractResource existing = resources.putIfAbsent(name, res);
+            if (existing != null) {
+                res = existing;
+            }
         }
         return res;
     }
@@ -144,7 +144,10 @@ public final class ZipRepository extends AbstractRepository {
             String childName = getChildName(name);
             ZipEntry entry = getZipFile().getEntry(childName);
             res = new ZipResource(childName, this, entry);
-            resources.put(name, res);
+            AbstractResource existing = resources.putIfAbsent(name, res);
+            if (existing != null) {
+                res = existing;
+            }
         }
         return res;
     }
@@ -0,0 +1,113 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.test;
+
+import org.ringojs.jsgi.AdmissionControl;
+import junit.framework.TestCase;
+
+import java.util.Map;
+
+public class AdmissionControlTest extends TestCase {
+
+    public void testShedWhenQueueFull() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(2, 1, false, 0, 0);
+        assertTrue(admission.acquire());
+        assertTrue(admission.acquire());
+        assertFalse(admission.acquire());
+        admission.release(1000);
+        assertTrue(admission.acquire());
+        Map<String, Object> metrics = admission.getMetrics();
+        assertEquals(Long.valueOf(3), metrics.get("admitted"));
+        assertEquals(Long.valueOf(1), metrics.get("shed"));
+        assertEquals(Integer.valueOf(2), metrics.get("active"));
+    }
+
+    public void testQueueTimeout() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(1, 1, false, 1, 20);
+        assertTrue(admission.acquire());
+        assertFalse(admission.acquire());
+        Map<String, Object> metrics = admission.getMetrics();
+        assertEquals(Long.valueOf(1), metrics.get("queued"));
+        assertEquals(Long.valueOf(1), metrics.get("shed"));
+        assertEquals(Integer.valueOf(0), metrics.get("waiting"));
+    }
+
+    public void testQueuedRequestAdmitted() throws InterruptedException {
+        final AdmissionControl admission = new AdmissionControl(1, 1, false, 1, 5000);
+        assertTrue(admission.acquire());
+        Thread releaser = new Thread() {
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException ignore) {}
+                admission.release(1000);
+            }
+        };
+        releaser.start();
+        assertTrue(admission.acquire());
+        releaser.join();
+        assertEquals(Long.valueOf(1), admission.getMetrics().get("queued"));
+    }
+
+    public void testAdaptiveLimit() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(10, 2, true, 0, 0);
+        // establish a low baseline latency
+        for (int i = 0; i < 20; i++) {
+            assertTrue(admission.acquire());
+            admission.release(1000);
+        }
+        assertEquals(10, admission.getLimit());
+        // latency degrades, so the limit should shrink towards the minimum
+        for (int i = 0; i < 200; i++) {
+            assertTrue(admission.acquire());
+            admission.release(100000);
+        }
+        assertEquals(2, admission.getLimit());
+    }
+
+    public void testOverloadDoesNotBecomeBaseline() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(10, 2, true, 0, 0);
+        for (int i = 0; i < 20; i++) {
+            assertTrue(admission.acquire());
+            admission.release(1000);
+        }
+        // sustained overload with shed requests must keep the limit down
+        for (int i = 0; i < 3000; i++) {
+            int admitted = 0;
+            for (int j = 0; j < 3; j++) {
+                if (admission.acquire()) {
+                    admitted++;
+                }
+            }
+            for (int j = 0; j < admitted; j++) {
+                admission.release(100000);
+            }
+        }
+        assertEquals(2, admission.getLimit());
+    }
+
+    public void testAdaptiveLimitWithMixedLatency() throws InterruptedException {
+        AdmissionControl admission = new AdmissionControl(10, 1, true, 0, 0);
+        // a stable mix of fast and slow requests must not shrink the limit
+        for (int i = 0; i < 3000; i++) {
+            assertTrue(admission.acquire());
+            admission.release(i % 4 == 0 ? 100000 : 1000);
+        }
+        assertEquals(10, admission.getLimit());
+    }
+
+}
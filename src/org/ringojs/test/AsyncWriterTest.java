@@ -0,0 +1,146 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.test;
+
+import org.ringojs.jsgi.AsyncWriter;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+public class AsyncWriterTest extends TestCase {
+
+    public void testWriteInOrder() throws Exception {
+        ClosingStream output = new ClosingStream();
+        AsyncWriter writer = new AsyncWriter(output, null, 0, false);
+        for (int i = 0; i < 100; i++) {
+            assertTrue(writer.write(("" + i + ",").getBytes()));
+        }
+        writer.close();
+        assertFalse(writer.write("x".getBytes()));
+        assertTrue(output.closed.await(5, TimeUnit.SECONDS));
+        StringBuffer expected = new StringBuffer();
+        for (int i = 0; i < 100; i++) {
+            expected.append(i).append(',');
+        }
+        assertEquals(expected.toString(), output.toString());
+        assertEquals(0, writer.getPendingBytes());
+    }
+
+    public void testPendingLimit() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                try {
+                    blocked.await();
+                } catch (InterruptedException x) {
+                    throw new IOException("interrupted");
+                }
+            }
+        };
+        AsyncWriter writer = new AsyncWriter(output, null, 10, false);
+        assertTrue(writer.write(new byte[6]));
+        assertFalse(writer.write(new byte[6]));
+        assertTrue(writer.write(new byte[4]));
+        blocked.countDown();
+    }
+
+    public void testFailure() throws Exception {
+        final CountDownLatch attempted = new CountDownLatch(1);
+        OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                attempted.countDown();
+                throw new IOException("connection closed");
+            }
+        };
+        AsyncWriter writer = new AsyncWriter(output, null, 0, false);
+        writer.write(new byte[1]);
+        assertTrue(attempted.await(5, TimeUnit.SECONDS));
+        for (int i = 0; i < 100 && !writer.isFailed(); i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(writer.isFailed());
+        assertFalse(writer.write(new byte[1]));
+    }
+
+    public void testAbort() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                try {
+                    blocked.await();
+                } catch (InterruptedException x) {
+                    throw new IOException("interrupted");
+                }
+                written.write(b);
+            }
+        };
+        AsyncWriter writer = new AsyncWriter(output, null, 0, false);
+        assertTrue(writer.write(new byte[1]));
+        assertTrue(writer.write(new byte[100]));
+        writer.abort();
+        assertTrue(writer.isClosed());
+        assertTrue(writer.isFailed());
+        assertFalse(writer.write(new byte[1]));
+        blocked.countDown();
+        for (int i = 0; i < 100 && writer.getPendingBytes() > 0; i++) {
+            Thread.sleep(10);
+        }
+        assertEquals(0, writer.getPendingBytes());
+        // queued data is discarded
+        assertTrue(written.size() <= 1);
+    }
+
+    public void testStalledWrite() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        OutputStream output = new OutputStream() {
+            public void write(int b) throws IOException {
+                try {
+                    blocked.await();
+                } catch (InterruptedException x) {
+                    throw new IOException("interrupted");
+                }
+            }
+        };
+        AsyncWriter writer = new AsyncWriter(output, null, 0, false, 50);
+        try {
+            assertTrue(writer.write(new byte[1]));
+            // the watchdog aborts the writer once the write is stalled
+            for (int i = 0; i < 500 && !writer.isFailed(); i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(writer.isFailed());
+            assertTrue(writer.isClosed());
+            assertFalse(writer.write(new byte[1]));
+        } finally {
+            blocked.countDown();
+        }
+    }
+
+    static class ClosingStream extends ByteArrayOutputStream {
+        final CountDownLatch closed = new CountDownLatch(1);
+
+        public void close() {
+            closed.countDown();
+        }
+    }
+
+}
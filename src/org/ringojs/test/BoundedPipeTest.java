@@ -0,0 +1,119 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.test;
+
+import org.ringojs.util.BoundedPipe;
+import junit.framework.TestCase;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+public class BoundedPipeTest extends TestCase {
+
+    public void testTransfer() throws Exception {
+        final BoundedPipe pipe = new BoundedPipe(100);
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    byte[] chunk = new byte[30];
+                    for (int i = 0; i < 100; i++) {
+                        java.util.Arrays.fill(chunk, (byte) i);
+                        pipe.write(chunk, 0, chunk.length);
+                        assertTrue(pipe.getBuffered() <= 100);
+                    }
+                    pipe.close();
+                } catch (Exception x) {
+                    pipe.fail(new IOException(x.toString()));
+                }
+            }
+        };
+        writer.start();
+        InputStream input = pipe.getInputStream();
+        byte[] buffer = new byte[7];
+        int total = 0, read;
+        while ((read = input.read(buffer)) > -1) {
+            for (int i = 0; i < read; i++) {
+                assertEquals((byte) ((total + i) / 30), buffer[i]);
+            }
+            total += read;
+        }
+        assertEquals(3000, total);
+        writer.join();
+    }
+
+    public void testFail() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(100);
+        pipe.write(new byte[10], 0, 10);
+        pipe.fail(new IOException("aborted"));
+        InputStream input = pipe.getInputStream();
+        assertEquals(10, input.read(new byte[20]));
+        try {
+            input.read();
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertEquals("aborted", expected.getMessage());
+        }
+    }
+
+    public void testReaderClose() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(10);
+        pipe.write(new byte[10], 0, 10);
+        pipe.getInputStream().close();
+        try {
+            pipe.write(new byte[10], 0, 10);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            // reader has gone away
+        }
+    }
+
+    public void testFailReleasesWriter() throws Exception {
+        final BoundedPipe pipe = new BoundedPipe(10);
+        pipe.write(new byte[10], 0, 10);
+        final IOException[] result = new IOException[1];
+        Thread writer = new Thread() {
+            public void run() {
+                try {
+                    pipe.write(new byte[10], 0, 10);
+                } catch (IOException iox) {
+                    result[0] = iox;
+                } catch (InterruptedException ignore) {}
+            }
+        };
+        writer.start();
+        Thread.sleep(50);
+        // the reader never reads, but failing the pipe must release the writer
+        pipe.fail(new IOException("expired"));
+        writer.join(5000);
+        assertFalse(writer.isAlive());
+        assertNotNull(result[0]);
+    }
+
+    public void testWriteTimeout() throws Exception {
+        BoundedPipe pipe = new BoundedPipe(10);
+        pipe.write(new byte[10], 0, 10, 50);
+        long start = System.currentTimeMillis();
+        try {
+            pipe.write(new byte[10], 0, 10, 50);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertTrue(System.currentTimeMillis() - start >= 40);
+        }
+        assertEquals(10, pipe.getBuffered());
+    }
+
+}
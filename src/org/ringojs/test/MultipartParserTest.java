@@ -0,0 +1,132 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.test;
+
+import org.ringojs.jsgi.LimitExceededException;
+import org.ringojs.jsgi.MultipartParser;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+public class MultipartParserTest extends TestCase {
+
+    static final String BOUNDARY = "AaB03x";
+
+    static final String BODY = "preamble\r\n"
+            + "--AaB03x\r\n"
+            + "Content-Disposition: form-data; name=\"field\"\r\n"
+            + "\r\n"
+            + "value\r\n"
+            + "--AaB03x  \r\n"
+            + "Content-Disposition: form-data;\r\n"
+            + " name=\"upload\"; filename=\"a;b.txt\"\r\n"
+            + "Content-Type: text/plain\r\n"
+            + "\r\n"
+            + "\r\n--AaB03 almost\r\n"
+            + "\r\n--AaB03x--\r\n"
+            + "epilogue";
+
+    public void testParse() throws Exception {
+        // read one byte at a time so delimiters span buffer fills
+        for (InputStream input : new InputStream[] {stream(BODY), trickle(BODY)}) {
+            MultipartParser parser = new MultipartParser(input, BOUNDARY, "UTF-8");
+            List<MultipartParser.Part> parts = parser.parse(MultipartParser.MEMORY);
+            assertEquals(2, parts.size());
+            assertEquals("field", parts.get(0).getName());
+            assertNull(parts.get(0).getFilename());
+            assertEquals("value", parts.get(0).getString("UTF-8"));
+            assertEquals("upload", parts.get(1).getName());
+            assertEquals("a;b.txt", parts.get(1).getFilename());
+            assertEquals("text/plain", parts.get(1).getContentType());
+            assertEquals("\r\n--AaB03 almost\r\n", parts.get(1).getString("UTF-8"));
+            assertEquals(18, parts.get(1).getSize());
+        }
+    }
+
+    public void testEmptyPart() throws Exception {
+        String body = "--AaB03x\r\nContent-Disposition: form-data; name=\"a\"\r\n\r\n"
+                + "\r\n--AaB03x--";
+        List<MultipartParser.Part> parts = new MultipartParser(stream(body), BOUNDARY, null)
+                .parse(MultipartParser.MEMORY);
+        assertEquals(1, parts.size());
+        assertEquals("", parts.get(0).getString("UTF-8"));
+    }
+
+    public void testTempFiles() throws Exception {
+        MultipartParser parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        List<MultipartParser.Part> parts = parser.parse(MultipartParser.tempFiles(null));
+        assertNull(parts.get(0).getFile());
+        File file = parts.get(1).getFile();
+        assertNotNull(file);
+        assertEquals(18, file.length());
+        assertTrue(file.delete());
+    }
+
+    public void testLimits() throws Exception {
+        MultipartParser parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        parser.setMaxParts(1);
+        assertLimitExceeded(parser);
+        parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        parser.setMaxFieldSize(4);
+        assertLimitExceeded(parser);
+        parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        parser.setMaxFileSize(10);
+        assertLimitExceeded(parser);
+        parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        parser.setMaxHeaderSize(20);
+        assertLimitExceeded(parser);
+        parser = new MultipartParser(stream(BODY), BOUNDARY, "UTF-8");
+        parser.setMaxTotalSize(BODY.length() - 1);
+        assertLimitExceeded(parser);
+    }
+
+    public void testMalformed() throws Exception {
+        try {
+            new MultipartParser(stream("--AaB03x\r\n\r\nunterminated"), BOUNDARY, "UTF-8")
+                    .parse(MultipartParser.MEMORY);
+            fail("expected IOException");
+        } catch (IOException expected) {
+            assertFalse(expected instanceof LimitExceededException);
+        }
+    }
+
+    private void assertLimitExceeded(MultipartParser parser) throws IOException {
+        try {
+            parser.parse(MultipartParser.tempFiles(null));
+            fail("expected LimitExceededException");
+        } catch (LimitExceededException expected) {
+            // limit enforced
+        }
+    }
+
+    private static InputStream stream(String body) throws IOException {
+        return new ByteArrayInputStream(body.getBytes("UTF-8"));
+    }
+
+    private static InputStream trickle(String body) throws IOException {
+        return new FilterInputStream(stream(body)) {
+            public int read(byte[] b, int off, int len) throws IOException {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+    }
+}
@@ -0,0 +1,69 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.test;
+
+import org.ringojs.jsgi.LimitExceededException;
+import org.ringojs.jsgi.UrlEncodedParser;
+import junit.framework.TestCase;
+
+import java.util.Arrays;
+
+public class UrlEncodedParserTest extends TestCase {
+
+    public void testParse() throws Exception {
+        String[] pairs = parse("a=1&&b=x+y%2B%41&c=&=d&e&f=g=h&%", "UTF-8");
+        assertEquals(Arrays.asList("a", "1", "b", "x y+A", "f", "g=h"), Arrays.asList(pairs));
+    }
+
+    public void testCharset() throws Exception {
+        assertEquals("\u00e4", parse("x=%C3%A4", "UTF-8")[1]);
+        assertEquals("\u00e4", parse("x=%E4", "ISO-8859-1")[1]);
+        assertEquals("%4", parse("x=%4", null)[1]);
+    }
+
+    public void testLargeField() throws Exception {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            value.append("%41");
+        }
+        assertEquals(5000, parse("x=" + value, null)[1].length());
+    }
+
+    public void testLimits() throws Exception {
+        UrlEncodedParser parser = new UrlEncodedParser();
+        parser.setMaxFields(2);
+        assertEquals(4, parser.parse("a=1&b=2".getBytes("UTF-8"), null).length);
+        try {
+            parser.parse("a=1&b=2&c=3".getBytes("UTF-8"), null);
+            fail("expected LimitExceededException");
+        } catch (LimitExceededException expected) {
+            // limit enforced
+        }
+        parser = new UrlEncodedParser();
+        parser.setMaxSize(6);
+        try {
+            parser.parse("a=1&b=2".getBytes("UTF-8"), null);
+            fail("expected LimitExceededException");
+        } catch (LimitExceededException expected) {
+            // limit enforced
+        }
+    }
+
+    private static String[] parse(String input, String charset) throws Exception {
+        return new UrlEncodedParser().parse(input.getBytes("UTF-8"), charset);
+    }
+}
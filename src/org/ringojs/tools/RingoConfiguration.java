@@ -59,6 +59,8 @@ public class RingoConfiguration {
     private boolean packagesDisabled = false;
     private String charset = "UTF-8";
     private Repository packages = null;
+    private File classCacheDir = null;
+    private boolean precompiling = false;
 
     /**
      * Create a new Ringo configuration and sets up its module search path.
@@ -86,6 +88,10 @@ public class RingoConfiguration {
         if (parentProto != null) {
             parentProtoProperties = Integer.parseInt(parentProto) != 0;
         }
+        String classCache = System.getProperty("ringo.classcache");
+        if (classCache != null) {
+            classCacheDir = new File(classCache);
+        }
 
         if (modulePath != null) {
             for (String aModulePath : modulePath) {
@@ -467,6 +473,41 @@ public class RingoConfiguration {
         this.policyEnabled = hasPolicy;
     }
 
+    /**
+     * Get the directory used to persist compiled module classes.
+     * @return the class cache directory, or null if class caching is disabled
+     */
+    public File getClassCacheDirectory() {
+        return classCacheDir;
+    }
+
+    /**
+     * Set the directory used to persist compiled module classes. Compiled
+     * classes are only cached for optimization levels of 0 and above.
+     * @param dir the class cache directory, or null to disable class caching
+     */
+    public void setClassCacheDirectory(File dir) {
+        this.classCacheDir = dir;
+    }
+
+    /**
+     * Check whether all modules in the module path should be compiled
+     * in parallel when the engine is started.
+     * @return true if modules are precompiled on engine startup
+     */
+    public boolean isPrecompiling() {
+        return precompiling;
+    }
+
+    /**
+     * Enable or disable parallel compilation of all modules in the module
+     * path on engine startup.
+     * @param precompiling true to precompile modules on engine startup
+     */
+    public void setPrecompiling(boolean precompiling) {
+        this.precompiling = precompiling;
+    }
+
     public List<String> getBootstrapScripts() {
         return bootstrapScripts;
     }
@@ -49,6 +49,7 @@ public class RingoRunner {
     String expr = null;
     File history = null;
     Repository packages = null;
+    File classCache = null;
     String charset;
     boolean runShell = false;
     boolean debug = false;
@@ -57,11 +58,13 @@ public class RingoRunner {
     boolean legacyMode = false;
     boolean productionMode = false;
     boolean disablePackages = false;
+    boolean precompile = false;
     List<String> bootScripts = new ArrayList<String>();
 
     static final String[][] options = {
         {"b", "bootscript", "Run additional bootstrap script", "FILE"},
         {"c", "charset", "Set character encoding for scripts (default: utf-8)", "CHARSET"},
+        {"",  "class-cache", "Cache compiled modules in the given directory", "DIR"},
         {"D", "java-property", "Set Java system property K to value V", "K=V"},
         {"d", "debug", "Run with debugger GUI", ""},
         {"e", "expression", "Run the given expression as script", "EXPR"},
@@ -73,9 +76,11 @@ public class RingoRunner {
         {"n", "no-packages", "Run with packages disabled", ""},
         {"",  "packages", "Set the packages directory", "DIR"},
         {"p", "production", "Disable module reloading and warnings", ""},
+        {"",  "precompile", "Compile all modules in parallel on startup", ""},
         {"P", "policy", "Set java policy file and enable security manager", "URL"},
         {"s", "silent", "Disable shell prompt and echo for piped stdin/stdout", ""},
         {"V", "verbose", "Print java stack traces on errors", ""},
+        {"",  "virtual-threads", "Run spawn() and scheduler tasks on virtual threads", ""},
         {"v", "version", "Print version number and exit", ""},
     };
 
@@ -127,12 +132,16 @@ public class RingoRunner {
         config.setStrictVars(!legacyMode && !productionMode);
         config.setReloading(!productionMode);
         config.setPackagesDisabled(disablePackages);
+        config.setPrecompiling(precompile);
         if (charset != null) {
             config.setCharset(charset);
         }
         if (packages != null && !disablePackages) {
             config.setPackageRepository(packages);
         }
+        if (classCache != null) {
+            config.setClassCacheDirectory(classCache);
+        }
         engine = new RhinoEngine(config, null);
     }
 
@@ -338,6 +347,8 @@ public class RingoRunner {
             }
         } else if ("history".equals(option)) {
             history = new File(arg);
+        } else if ("class-cache".equals(option)) {
+            classCache = new File(arg);
         } else if ("packages".equals(option)) {
             packages = new FileRepository(arg);
         } else if ("policy".equals(option)) {
@@ -364,6 +375,10 @@ public class RingoRunner {
             legacyMode = true;
         } else if ("no-packages".equals(option)) {
             disablePackages = true;
+        } else if ("precompile".equals(option)) {
+            precompile = true;
+        } else if ("virtual-threads".equals(option)) {
+            System.setProperty("ringo.virtualthreads", "true");
         } else if ("version".equals(option)) {
             printVersion();
             System.exit(0);
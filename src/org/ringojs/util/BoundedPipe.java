@@ -0,0 +1,254 @@
+/*
+ *  Copyright 2010 Hannes Wallnoefer <hannes@helma.at>
+ *
+ *  Licensed under the Apache License, Version 2.0 (the "License");
+ *  you may not use this file except in compliance with the License.
+ *  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *  Unless required by applicable law or agreed to in writing, software
+ *  distributed under the License is distributed on an "AS IS" BASIS,
+ *  WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *  See the License for the specific language governing permissions and
+ *  limitations under the License.
+ */
+
+package org.ringojs.util;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A pipe that passes chunks of bytes from a producer thread to a consumer
+ * reading from the pipe's input stream. At most <code>capacity</code> bytes
+ * are buffered; writers block until the reader has consumed enough data,
+ * the pipe is closed, or an optional timeout expires.
+ * Unlike <code>java.io.PipedInputStream</code> the pipe may be written to by
+ * different threads, such as the threads of an I/O thread pool.
+ */
+public class BoundedPipe {
+
+    private final int capacity;
+    private final LinkedList<byte[]> chunks = new LinkedList<byte[]>();
+    private int buffered = 0;
+    private boolean closed = false;
+    private boolean readerClosed = false;
+    private IOException error;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private final InputStream input = new PipeInputStream();
+
+    /**
+     * Create a new pipe.
+     * @param capacity the maximal number of bytes to buffer
+     */
+    public BoundedPipe(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /**
+     * Write bytes to the pipe, blocking while the pipe is full. The bytes
+     * are copied, so the array may be reused by the caller.
+     * @param bytes the byte array
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @throws IOException if the reader closed the pipe or the pipe has
+     *         already been closed
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void write(byte[] bytes, int offset, int length)
+            throws IOException, InterruptedException {
+        write(bytes, offset, length, 0);
+    }
+
+    /**
+     * Write bytes to the pipe, blocking at most <code>timeout</code>
+     * milliseconds while the pipe is full. The bytes are copied, so the
+     * array may be reused by the caller.
+     * @param bytes the byte array
+     * @param offset the offset of the first byte to write
+     * @param length the number of bytes to write
+     * @param timeout the maximal time to wait in milliseconds, 0 to wait
+     *                until the reader has consumed enough data
+     * @throws IOException if the reader closed the pipe, the pipe has
+     *         already been closed, or the timeout expired
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public void write(byte[] bytes, int offset, int length, long timeout)
+            throws IOException, InterruptedException {
+        if (length == 0) {
+            return;
+        }
+        byte[] chunk = new byte[length];
+        System.arraycopy(bytes, offset, chunk, 0, length);
+        long nanos = TimeUnit.MILLISECONDS.toNanos(timeout);
+        lock.lock();
+        try {
+            // a chunk larger than the capacity is accepted into an empty pipe
+            while (buffered > 0 && buffered + length > capacity
+                    && !readerClosed && !closed) {
+                if (timeout <= 0) {
+                    notFull.await();
+                } else if (nanos > 0) {
+                    nanos = notFull.awaitNanos(nanos);
+                } else {
+                    throw new IOException("Timed out writing to pipe");
+                }
+            }
+            if (readerClosed) {
+                throw new IOException("Pipe closed by reader");
+            }
+            if (closed) {
+                throw new IOException("Pipe already closed");
+            }
+            chunks.addLast(chunk);
+            buffered += length;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Signal the end of data. The reader receives the remaining buffered
+     * bytes followed by end of stream.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Abort the pipe with an error. The reader receives the remaining buffered
+     * bytes, after which reading throws the given exception.
+     * @param error the error
+     */
+    public void fail(IOException error) {
+        lock.lock();
+        try {
+            if (!closed) {
+                this.error = error;
+                closed = true;
+            }
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the number of bytes currently buffered in the pipe.
+     * @return the number of buffered bytes
+     */
+    public int getBuffered() {
+        lock.lock();
+        try {
+            return buffered;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Get the input stream to read from the pipe. Closing it causes further
+     * writes to fail.
+     * @return the input stream
+     */
+    public InputStream getInputStream() {
+        return input;
+    }
+
+    class PipeInputStream extends InputStream {
+
+        private byte[] current;
+        private int position;
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            int n = read(b, 0, 1);
+            return n == -1 ? -1 : b[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] bytes, int offset, int length) throws IOException {
+            if (length == 0) {
+                return 0;
+            }
+            if (current == null || position >= current.length) {
+                current = take();
+                position = 0;
+                if (current == null) {
+                    return -1;
+                }
+            }
+            int n = Math.min(length, current.length - position);
+            System.arraycopy(current, position, bytes, offset, n);
+            position += n;
+            return n;
+        }
+
+        @Override
+        public int available() {
+            int remaining = current == null ? 0 : current.length - position;
+            return remaining + getBuffered();
+        }
+
+        @Override
+        public void close() {
+            lock.lock();
+            try {
+                readerClosed = true;
+                chunks.clear();
+                buffered = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        private byte[] take() throws IOException {
+            lock.lock();
+            try {
+                while (chunks.isEmpty()) {
+                    if (readerClosed) {
+                        throw new IOException("Stream closed");
+                    }
+                    if (closed) {
+                        if (error != null) {
+                            throw error;
+                        }
+                        return null;
+                    }
+                    notEmpty.await();
+                }
+                byte[] chunk = chunks.removeFirst();
+                buffered -= chunk.length;
+                notFull.signal();
+                return chunk;
+            } catch (InterruptedException ix) {
+                throw new IOException("Interrupted while reading from pipe");
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+}
@@ -7,6 +7,8 @@ import org.mozilla.javascript.annotations.JSSetter;
 import org.mozilla.javascript.annotations.JSConstructor;
 import org.ringojs.util.ScriptUtils;
 
+import java.io.IOException;
+import java.io.OutputStream;
 import java.io.UnsupportedEncodingException;
 import java.util.List;
 import java.util.ArrayList;
@@ -38,7 +40,7 @@ public class Binary extends ScriptableObject implements Wrapper {
     private int length;
     private final Type type;
 
-    enum Type {
+    public enum Type {
         Binary, ByteArray, ByteString
     }
 
@@ -544,6 +546,24 @@ public class Binary extends ScriptableObject implements Wrapper {
         return bytes;
     }
 
+    /**
+     * Write the content of this binary to an output stream without
+     * copying the underlying byte array. The monitor is only held to read
+     * the array and length, so concurrent writes of the same binary don't
+     * block each other while writing to the stream.
+     * @param out the output stream
+     * @throws IOException if writing to the stream failed
+     */
+    public void writeTo(OutputStream out) throws IOException {
+        byte[] b;
+        int l;
+        synchronized (this) {
+            b = bytes;
+            l = length;
+        }
+        out.write(b, 0, l);
+    }
+
     public String getClassName() {
         return type.toString();
     }
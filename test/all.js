@@ -11,6 +11,7 @@ for (var key in most) {
 
 // Add tests exclusive to all.js
 exports.testHttpclient = require('./ringo/httpclient_test');
+exports.testEventSource = require('./ringo/webapp/eventsource_test');
 
 // start the test runner if we're called directly from command line
 if (require.main == module.id) {
@@ -9,6 +9,11 @@ exports.testBuffer         = require('./ringo/buffer_test');
 exports.testEncoding       = require('./ringo/encoding_test');
 exports.testEvents         = require('./ringo/events_test');
 exports.testSkin           = require('./ringo/skin_test');
+exports.testScheduler      = require('./ringo/scheduler_test');
+exports.testWebapp         = require('./ringo/webapp_test');
+exports.testFileUpload     = require('./ringo/webapp/fileupload_test');
+exports.testParameters     = require('./ringo/webapp/parameters_test');
+exports.testRequest        = require('./ringo/webapp/request_test');
 exports.testArrays         = require('./ringo/utils/arrays_test');
 exports.testFiles          = require('./ringo/utils/files_test');
 exports.testObjects        = require('./ringo/utils/objects_test');
@@ -98,6 +98,29 @@ exports.testBasic = function() {
 };
 
 
+/**
+ * test that request headers read by async callbacks are still those of the
+ * original request once the servlet request has been recycled (not
+ * httpclient specific either)
+ */
+exports.testStoredRequestHeaders = function() {
+   var {setTimeout} = require("ringo/scheduler");
+   var latch = new java.util.concurrent.CountDownLatch(2);
+   var stored = [];
+   getResponse = function(req, env) {
+      setTimeout(function() {
+         stored.push(env.headers["x-test"]);
+         latch.countDown();
+      }, 200);
+      return new Response('');
+   };
+   var client = new Client();
+   client.request({url: baseUri, headers: {"X-Test": "one"}});
+   client.request({url: baseUri, headers: {"X-Test": "two"}});
+   assert.isTrue(latch.await(5, java.util.concurrent.TimeUnit.SECONDS));
+   assert.deepEqual(stored.sort(), ["one", "two"]);
+};
+
 /**
  * test servlet on request env (this is not httpclient specific, but uses same setUp tearDown)
  */
@@ -362,6 +385,222 @@ exports.testStreamRequest = function() {
     assert.strictEqual('image/png', myContentType);
 };
 
+/**
+ * stream a large response body without buffering it
+ */
+exports.testStreamResponse = function() {
+    var {ByteString} = require('binary');
+    var chunk = new ByteString(new Array(1025).join("x"), "ascii");
+    getResponse = function(req) {
+        return {
+            status: 200,
+            headers: {'Content-Type': 'application/octet-stream'},
+            body: {
+                forEach: function(fn) {
+                    for (var i = 0; i < 1024; i++) {
+                        fn(chunk);
+                    }
+                }
+            }
+        };
+    };
+
+    var completeContent = "not called";
+    var exchange = request({
+        url: baseUri,
+        stream: true,
+        bufferSize: 8192,
+        complete: function(content) {
+            completeContent = content;
+        }
+    });
+    assert.strictEqual(exchange.status, 200);
+    assert.isNotNull(exchange.stream);
+    var total = 0, bytes;
+    while ((bytes = exchange.stream.read(4096)).length > 0) {
+        total += bytes.length;
+        assert.strictEqual(bytes.get(0), 120);
+    }
+    assert.strictEqual(total, 1024 * 1024);
+    exchange.wait();
+    assert.isNull(completeContent);
+    assert.strictEqual(exchange.contentBytes.length, 0);
+
+    // the same with a promise
+    var promise = request({url: baseUri, stream: true, promise: true});
+    total = 0;
+    promise.then(function(exchange) {
+        exchange.stream.forEach(function(bytes) {
+            total += bytes.length;
+        });
+    }).wait(5000);
+    assert.strictEqual(total, 1024 * 1024);
+};
+
+/**
+ * a streamed response that is never read must not block the client forever
+ */
+exports.testUnreadStreamResponse = function() {
+    var {ByteString} = require('binary');
+    var chunk = new ByteString(new Array(1025).join("x"), "ascii");
+    getResponse = function(req) {
+        return {
+            status: 200,
+            headers: {'Content-Type': 'application/octet-stream'},
+            body: {
+                forEach: function(fn) {
+                    for (var i = 0; i < 1024; i++) {
+                        fn(chunk);
+                    }
+                }
+            }
+        };
+    };
+    var client = new Client({timeout: 500});
+    var exchange = client.request({url: baseUri, stream: true, bufferSize: 8192});
+    assert.strictEqual(exchange.status, 200);
+    for (var i = 0; i < 100 && !exchange.done; i++) {
+        java.lang.Thread.sleep(50);
+    }
+    assert.isTrue(exchange.done);
+    assert.throws(function() {
+        while (exchange.stream.read(65536).length > 0) {}
+    });
+};
+
+/**
+ * write the response body to an output stream
+ */
+exports.testOutputResponse = function() {
+    getResponse = function(req) {
+        return new Response('hello output');
+    };
+    var output = new java.io.ByteArrayOutputStream();
+    var completeContent;
+    var exchange = request({
+        url: baseUri,
+        output: output,
+        complete: function(content) {
+            completeContent = content;
+        }
+    });
+    assert.strictEqual(exchange.status, 200);
+    assert.isNull(completeContent);
+    assert.strictEqual(String(new java.lang.String(output.toByteArray(), "UTF-8")),
+            'hello output');
+
+    var {MemoryStream} = require('io');
+    var stream = new MemoryStream();
+    request({url: baseUri, output: stream});
+    assert.strictEqual(stream.content.decodeToString('utf-8'), 'hello output');
+};
+
+/**
+ * connection pool options and metrics
+ */
+exports.testClientMetrics = function() {
+    getResponse = function(req) {
+        if (req.pathInfo == "/slow") {
+            java.lang.Thread.sleep(300);
+        }
+        return new Response('ok');
+    };
+    var client = new Client({
+        maxConnections: 4,
+        idleTimeout: 5000,
+        maxPending: 1,
+        threads: 4
+    });
+    var exchange = client.get(baseUri);
+    assert.strictEqual(exchange.status, 200);
+    var metrics = client.getMetrics();
+    assert.strictEqual(metrics.requests, 1);
+    assert.strictEqual(metrics.pending, 0);
+    assert.strictEqual(metrics.latency.count, 1);
+    assert.strictEqual(metrics.latency.counts.length, metrics.latency.buckets.length + 1);
+    var destination = metrics.destinations["http://" + host + ":" + port];
+    assert.isNotUndefined(destination);
+    assert.strictEqual(destination.connections, 1);
+    // the connection may not have been returned to the pool yet
+    assert.isTrue(destination.idleConnections <= 1);
+
+    // only one pending request per destination is allowed
+    var promise = client.request({url: baseUri + "slow", promise: true});
+    var rejected;
+    client.request({
+        url: baseUri,
+        async: true,
+        error: function(message, status) {
+            rejected = message;
+        }
+    });
+    assert.strictEqual(rejected, "Too many pending requests");
+    assert.strictEqual(client.getMetrics().pending, 1);
+    assert.strictEqual(promise.wait(5000).status, 200);
+    assert.strictEqual(client.getMetrics().rejected, 1);
+
+    // destinations without requests or connections are forgotten
+    client = new Client({keepAlive: false});
+    assert.strictEqual(client.get(baseUri).status, 200);
+    var key = "http://" + host + ":" + port;
+    for (var i = 0; i < 100 && client.getMetrics().destinations[key]; i++) {
+        java.lang.Thread.sleep(20);
+    }
+    assert.isUndefined(client.getMetrics().destinations[key]);
+};
+
+/**
+ * concurrent requests with an aggregate promise
+ */
+exports.testRequestAll = function() {
+    getResponse = function(req) {
+        if (req.pathInfo == "/slow") {
+            java.lang.Thread.sleep(500);
+        } else if (req.pathInfo == "/fail") {
+            return {status: 500, headers: {"Content-Type": "text/plain"}, body: ["failed"]};
+        }
+        return new Response(req.pathInfo);
+    };
+    var client = new Client();
+    var results = client.requestAll([
+        baseUri + "a",
+        {url: baseUri + "b", method: "GET"},
+        baseUri + "c"
+    ], {maxConcurrency: 2}).wait(5000);
+    assert.strictEqual(results.length, 3);
+    assert.deepEqual(results.map(function(result) {
+        return result.value.content;
+    }), ["/a", "/b", "/c"]);
+
+    // fail fast
+    try {
+        client.requestAll([baseUri + "slow", baseUri + "fail"]).wait(5000);
+        assert.fail("expected requestAll to fail");
+    } catch (error) {
+        assert.strictEqual(error.index, 1);
+        assert.strictEqual(error.status, 500);
+    }
+
+    // collect errors
+    results = client.requestAll([baseUri + "fail", baseUri + "a"],
+            {failFast: false}).wait(5000);
+    assert.strictEqual(results[0].status, 500);
+    assert.isNotUndefined(results[0].error);
+    assert.strictEqual(results[1].value.content, "/a");
+
+    // timeout
+    try {
+        client.requestAll([baseUri + "slow"], {timeout: 100}).wait(5000);
+        assert.fail("expected requestAll to time out");
+    } catch (error) {
+        assert.strictEqual(error.error, "Requests timed out");
+    }
+    for (var i = 0; i < 100 && client.getMetrics().pending > 0; i++) {
+        java.lang.Thread.sleep(20);
+    }
+    assert.strictEqual(client.getMetrics().pending, 0);
+};
+
 // start the test runner if we're called directly from command line
 if (require.main == module.id) {
     system.exit(require("test").run(exports));
@@ -1,3 +1,5 @@
+exports.testCache = require("./cache_test");
+exports.testGzip = require("./gzip_test");
 exports.testStatic = require("./static_test");
 
 // start the test runner if we're called directly from command line
@@ -0,0 +1,186 @@
+var assert = require("assert");
+var {middleware, ResponseCache} = require("ringo/middleware/cache");
+
+function request(path, headers) {
+    return {
+        method: "GET",
+        scriptName: "",
+        pathInfo: path,
+        queryString: "",
+        headers: headers || {}
+    };
+}
+
+function text(res) {
+    assert.strictEqual(res.body.length, 1);
+    return res.body[0].decodeToString("utf-8");
+}
+
+exports.testHitAndMiss = function() {
+    var count = 0;
+    var cache = new ResponseCache();
+    var app = middleware({cache: cache})(function(req) {
+        count++;
+        return {
+            status: 200,
+            headers: {"Content-Type": "text/plain; charset=utf-8"},
+            body: ["Grüße ", "from ", req.pathInfo]
+        };
+    });
+    assert.strictEqual(text(app(request("/a"))), "Grüße from /a");
+    assert.strictEqual(text(app(request("/a"))), "Grüße from /a");
+    assert.strictEqual(text(app(request("/b"))), "Grüße from /b");
+    assert.strictEqual(count, 2);
+    var stats = cache.getStats();
+    assert.strictEqual(stats.entries, 2);
+    assert.strictEqual(stats.hits, 1);
+    assert.strictEqual(stats.misses, 2);
+    // cached responses can be modified without affecting the cache
+    app(request("/a")).headers["Content-Type"] = "text/html";
+    assert.strictEqual(app(request("/a")).headers["Content-Type"],
+            "text/plain; charset=utf-8");
+};
+
+exports.testUncacheable = function() {
+    var count = 0;
+    var headers = [{"Set-Cookie": "foo=bar"}, {"Cache-Control": "private"},
+        {"Cache-Control": "no-store"}, {"Vary": "*"}];
+    var app = middleware({})(function(req) {
+        count++;
+        return {status: 200, headers: headers[req.pathInfo], body: ["x"]};
+    });
+    for (var i = 0; i < headers.length; i++) {
+        app(request(i));
+        app(request(i));
+    }
+    assert.strictEqual(count, headers.length * 2);
+    var req = request("/post");
+    req.method = "POST";
+    app(req);
+    app(req);
+    assert.strictEqual(count, headers.length * 2 + 2);
+};
+
+exports.testCookies = function() {
+    var count = 0;
+    var app = function(req) {
+        count++;
+        return {status: 200, headers: {}, body: [req.headers.cookie || "none"]};
+    };
+    // requests with cookies are neither served from nor stored in the cache
+    var cached = middleware({})(app);
+    cached(request("/"));
+    assert.strictEqual(cached(request("/", {"cookie": "JSESSIONID=a"})).body[0],
+            "JSESSIONID=a");
+    assert.strictEqual(cached(request("/", {"cookie": "JSESSIONID=b"})).body[0],
+            "JSESSIONID=b");
+    assert.strictEqual(text(cached(request("/"))), "none");
+    assert.strictEqual(count, 3);
+    // unless enabled with the cookies option
+    count = 0;
+    cached = middleware({cookies: true})(app);
+    cached(request("/", {"cookie": "JSESSIONID=a"}));
+    cached(request("/", {"cookie": "JSESSIONID=b"}));
+    assert.strictEqual(count, 1);
+};
+
+exports.testVary = function() {
+    var count = 0;
+    var app = middleware(function(req) {
+        count++;
+        return {
+            status: 200,
+            headers: {"Vary": "Accept-Language"},
+            body: [req.headers["accept-language"] || "none"]
+        };
+    });
+    assert.strictEqual(text(app(request("/", {"accept-language": "de"}))), "de");
+    assert.strictEqual(text(app(request("/", {"accept-language": "en"}))), "en");
+    assert.strictEqual(text(app(request("/", {"accept-language": "de"}))), "de");
+    assert.strictEqual(text(app(request("/", {"accept-language": "en"}))), "en");
+    assert.strictEqual(count, 2);
+};
+
+exports.testExpiration = function() {
+    var count = 0;
+    var cache = new ResponseCache();
+    var app = middleware({cache: cache, ttl: 0.05})(function(req) {
+        count++;
+        return {status: 200, headers: {}, body: ["x"]};
+    });
+    app(request("/"));
+    app(request("/"));
+    assert.strictEqual(count, 1);
+    java.lang.Thread.sleep(100);
+    app(request("/"));
+    assert.strictEqual(count, 2);
+    assert.strictEqual(cache.getStats().expirations, 1);
+};
+
+exports.testEviction = function() {
+    var cache = new ResponseCache({maxEntries: 2});
+    var app = middleware({cache: cache})(function(req) {
+        return {status: 200, headers: {}, body: [req.pathInfo]};
+    });
+    app(request("/a"));
+    app(request("/b"));
+    app(request("/a"));
+    app(request("/c"));
+    var stats = cache.getStats();
+    assert.strictEqual(stats.entries, 2);
+    assert.strictEqual(stats.evictions, 1);
+    // "/b" was least recently used
+    app(request("/a"));
+    assert.strictEqual(cache.getStats().hits, 2);
+};
+
+exports.testCoalescing = function() {
+    var count = new java.util.concurrent.atomic.AtomicInteger();
+    var cache = new ResponseCache();
+    var app = middleware({cache: cache})(function(req) {
+        count.incrementAndGet();
+        java.lang.Thread.sleep(200);
+        return {status: 200, headers: {}, body: ["slow"]};
+    });
+    var threads = [];
+    for (var i = 0; i < 4; i++) {
+        var thread = new java.lang.Thread(function() {
+            app(request("/slow"));
+        });
+        thread.start();
+        threads.push(thread);
+    }
+    threads.forEach(function(thread) {
+        thread.join();
+    });
+    assert.strictEqual(count.get(), 1);
+    assert.strictEqual(cache.getStats().coalesced, 3);
+};
+
+exports.testHead = function() {
+    var count = 0;
+    var cache = new ResponseCache();
+    var app = middleware({cache: cache})(function(req) {
+        count++;
+        var body = req.method === "HEAD" ? [] : ["content"];
+        return {status: 200, headers: {"Content-Length": "7"}, body: body};
+    });
+    var head = request("/a");
+    head.method = "HEAD";
+    // HEAD responses are passed through but not stored
+    assert.strictEqual(app(head).body.length, 0);
+    assert.strictEqual(cache.getStats().entries, 0);
+    assert.strictEqual(text(app(request("/a"))), "content");
+    assert.strictEqual(count, 2);
+    // HEAD is served from the GET response without body
+    var res = app(head);
+    assert.strictEqual(res.body.length, 0);
+    assert.strictEqual(res.headers["Content-Length"], "7");
+    assert.strictEqual(text(app(request("/a"))), "content");
+    assert.strictEqual(count, 2);
+};
+
+// start the test runner if we're called directly from command line
+if (require.main == module.id) {
+    system.exit(require("test").run(exports));
+}
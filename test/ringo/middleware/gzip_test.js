@@ -0,0 +1,106 @@
+var assert = require("assert");
+var fs = require("fs");
+var {ByteArray} = require("binary");
+
+var gzip = require("ringo/middleware/gzip").middleware;
+var {Response} = require("ringo/webapp/response");
+
+function gunzip(body) {
+    var bytes = new java.io.ByteArrayOutputStream();
+    body.forEach(function(part) {
+        bytes.write(part);
+    });
+    var input = new java.util.zip.GZIPInputStream(
+            new java.io.ByteArrayInputStream(bytes.toByteArray()));
+    var output = new java.io.ByteArrayOutputStream();
+    var buffer = new ByteArray(1024);
+    var read;
+    while ((read = input.read(buffer)) > -1) {
+        output.write(buffer, 0, read);
+    }
+    return String(new java.lang.String(output.toByteArray(), "UTF-8"));
+}
+
+var request = {headers: {"accept-encoding": "gzip, deflate"}};
+
+exports.testStreamingBody = function() {
+    var text = "Grüße aus Wien! ";
+    var parts = [];
+    for (var i = 0; i < 1000; i++) {
+        parts.push(text);
+    }
+    [-1, 1, 9].forEach(function(level) {
+        var app = gzip({level: level})(function(req) {
+            return {
+                status: 200,
+                headers: {"Content-Type": "text/plain; charset=utf-8"},
+                body: parts
+            };
+        });
+        var res = app(request);
+        assert.strictEqual(res.headers["Content-Encoding"], "gzip");
+        assert.strictEqual(gunzip(res.body), parts.join(""));
+    });
+    // uncompressable content types are left alone
+    var app = gzip(function(req) {
+        return {status: 200, headers: {"Content-Type": "image/png"}, body: parts};
+    });
+    assert.strictEqual(app(request).body, parts);
+};
+
+exports.testStaticResource = function() {
+    var tmp = java.io.File.createTempFile("ringo-gzip-", "");
+    var dir = String(tmp.getPath());
+    fs.remove(dir);
+    fs.makeDirectory(dir);
+    try {
+        var file = fs.join(dir, "test.txt");
+        fs.write(file, "hello hello hello hello");
+        var repo = getRepository(dir);
+        var cache = new org.ringojs.jsgi.ResourceCache(10, 100000, 100000, 100000);
+        var app = gzip(function(req) {
+            return Response.static(repo.getResource(req.pathInfo), "text/plain", cache);
+        });
+        // compressed on the fly and cached
+        var req = {pathInfo: "test.txt", headers: request.headers};
+        var res = app(req);
+        assert.isTrue(res.body.isCached());
+        assert.strictEqual(gunzip(res.body), "hello hello hello hello");
+        app(req);
+        var stats = new ScriptableMap(cache.getStats());
+        assert.strictEqual(Number(stats.entries), 2);
+        assert.strictEqual(Number(stats.hits), 2);
+        // served from precompressed sibling
+        fs.write(fs.join(dir, "other.txt"), "original");
+        var gz = new java.util.zip.GZIPOutputStream(
+                new java.io.FileOutputStream(fs.join(dir, "other.txt.gz")));
+        gz.write(new java.lang.String("precompressed").getBytes("UTF-8"));
+        gz.close();
+        req.pathInfo = "other.txt";
+        assert.strictEqual(gunzip(app(req).body), "precompressed");
+    } finally {
+        fs.removeTree(dir);
+    }
+};
+
+// start the test runner if we're called directly from command line
+exports.testNestedBody = function() {
+    // writing a gzipped utf-8 body from within a latin-1 body must not
+    // change the outer body's encoding
+    var {JsgiResponse} = org.ringojs.jsgi;
+    var inner = new org.ringojs.jsgi.GzipBody(["Grüße"], "utf-8", -1);
+    var output = new java.io.ByteArrayOutputStream();
+    JsgiResponse.writeBody(output, {
+        forEach: function(write) {
+            write("ä");
+            inner.forEach(function(part) {});
+            write("ö");
+        }
+    }, "iso-8859-1");
+    assert.strictEqual(String(output.toString("iso-8859-1")), "äö");
+    assert.strictEqual(output.size(), 2);
+};
+
+if (require.main == module.id) {
+    system.exit(require("test").run(exports));
+}
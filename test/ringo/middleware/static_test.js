@@ -1,7 +1,8 @@
 var assert = require("assert");
-var {base} = require("fs");
+var fs = require("fs");
+var {base, read, lastModified, size} = fs;
 
-var middleware = require("ringo/middleware/static").middleware;
+var {middleware, getCacheStats} = require("ringo/middleware/static");
 
 function notFound(request) {
     return {
@@ -43,6 +44,251 @@ exports.testIndexConfig = function() {
     
 };
 
+exports.testResourceBody = function() {
+
+    var app = middleware(module.directory)(notFound);
+    var resp = app({pathInfo: thisName});
+    var file = module.resolve(thisName);
+
+    // the body still works as regular JSGI body with a digest
+    var parts = [];
+    resp.body.forEach(function(part) {
+        parts.push(part);
+    });
+    assert.strictEqual(parts.map(function(p) p.decodeToString()).join(""),
+            read(file), "body content");
+    assert.strictEqual(String(resp.body.digest()),
+            lastModified(file).getTime().toString(36) + size(file).toString(36),
+            "body digest");
+
+};
+
+exports.testResourceCache = function() {
+
+    var file = module.resolve(thisName);
+    var content = read(file);
+    [100000, 10].forEach(function(directThreshold) {
+        var cache = new org.ringojs.jsgi.ResourceCache(10, 100000, 100000, directThreshold);
+        var app = middleware({base: module.directory, cache: cache})(notFound);
+        for (var i = 0; i < 3; i++) {
+            var resp = app({pathInfo: thisName});
+            assert.isTrue(resp.body.isCached(), "body is cached");
+            var parts = [];
+            resp.body.forEach(function(part) {
+                parts.push(part.decodeToString());
+            });
+            assert.strictEqual(parts.join(""), content, "cached content");
+        }
+        var stats = new ScriptableMap(cache.getStats());
+        assert.strictEqual(Number(stats.entries), 1);
+        assert.strictEqual(Number(stats.misses), 1);
+        assert.strictEqual(Number(stats.hits), 2);
+        assert.strictEqual(Number(stats.directSize) > 0, directThreshold < size(file));
+    });
+
+    // caching can be disabled
+    var app = middleware({base: module.directory, cache: false})(notFound);
+    assert.isFalse(app({pathInfo: thisName}).body.isCached(), "caching disabled");
+    assert.strictEqual(typeof getCacheStats().hits, "number");
+
+};
+
+exports.testCacheRevalidation = function() {
+
+    var tmp = java.io.File.createTempFile("ringo-static-", "");
+    var dir = String(tmp.getPath());
+    fs.remove(dir);
+    fs.makeDirectory(dir);
+    try {
+        var file = fs.join(dir, "test.txt");
+        fs.write(file, "original");
+        // entries are not validated again within the revalidation interval
+        var app = middleware({base: dir, cache: {revalidate: 60000}})(notFound);
+        assert.isTrue(app({pathInfo: "/test.txt"}).body.isCached());
+        fs.write(file, "changed content");
+        fs.remove(file);
+        assert.strictEqual(app({pathInfo: "/test.txt"}).status, 200);
+        var stats = app.getCacheStats();
+        assert.strictEqual(stats.hits, 1);
+        assert.strictEqual(stats.misses, 1);
+        assert.strictEqual(stats.revalidateInterval, 60000);
+
+        // with a revalidation interval of 0 changes are noticed right away
+        fs.write(file, "original");
+        var wrapper = middleware({base: dir, cache: {revalidate: 0}});
+        app = wrapper(notFound);
+        assert.isTrue(app({pathInfo: "/test.txt"}).body.isCached());
+        fs.write(file, "changed content");
+        fs.touch(file, new Date(Date.now() + 2000));
+        assert.strictEqual(app({pathInfo: "/test.txt"}).body.getLength(), 15);
+        stats = wrapper.getCacheStats();
+        assert.strictEqual(stats.invalidations, 1);
+        fs.remove(file);
+        assert.strictEqual(app({pathInfo: "/test.txt"}).status, 404);
+
+        // caching disabled
+        assert.isNull(middleware({base: dir, cache: false}).getCacheStats());
+    } finally {
+        fs.removeTree(dir);
+    }
+
+};
+
+exports.testCacheBudgets = function() {
+
+    var names = [thisName, "cache_test.js", "gzip_test.js"];
+    var sizes = names.map(function(name) size(module.resolve(name)));
+    // the first file goes into a direct buffer, the others fit on the heap
+    // only one at a time
+    var heapSize = Math.max(sizes[1], sizes[2]);
+    var cache = new org.ringojs.jsgi.ResourceCache(10, heapSize, sizes[0], sizes[0]);
+    var app = middleware({base: module.directory, cache: cache})(notFound);
+    names.forEach(function(name) {
+        assert.isTrue(app({pathInfo: name}).body.isCached(), name + " is cached");
+    });
+    var stats = new ScriptableMap(cache.getStats());
+    // exceeding the heap budget must not evict the direct entry
+    assert.strictEqual(Number(stats.entries), 2);
+    assert.strictEqual(Number(stats.directSize), sizes[0]);
+    assert.strictEqual(Number(stats.size), sizes[2]);
+    assert.strictEqual(Number(stats.evictions), 1);
+
+    // resources larger than the direct budget are not cached
+    cache = new org.ringojs.jsgi.ResourceCache(10, heapSize, sizes[0] - 1, 1000);
+    app = middleware({base: module.directory, cache: cache})(notFound);
+    assert.isFalse(app({pathInfo: thisName}).body.isCached());
+
+};
+
+exports.testServe = function() {
+
+    var file = module.resolve(thisName);
+    var content = read(file);
+    var length = size(file);
+    var modified = lastModified(file).getTime();
+    [false, new org.ringojs.jsgi.ResourceCache(10, 100000, 100000, 100000)].forEach(function(cache) {
+        var app = middleware({base: module.directory, cache: cache})(notFound);
+        var body = app({pathInfo: thisName}).body;
+        var etag = String(body.getETag());
+        var res;
+
+        res = serve(body);
+        assert.strictEqual(res.status, 200);
+        assert.strictEqual(res.headers["Content-Length"], String(length));
+        assert.strictEqual(res.headers["Accept-Ranges"], "bytes");
+        assert.strictEqual(res.headers["ETag"], etag);
+        assert.strictEqual(res.content, content);
+
+        // byte ranges
+        res = serve(body, {"Range": "bytes=0-9"});
+        assert.strictEqual(res.status, 206);
+        assert.strictEqual(res.headers["Content-Range"], "bytes 0-9/" + length);
+        assert.strictEqual(res.headers["Content-Length"], "10");
+        assert.strictEqual(res.content, content.substring(0, 10));
+        res = serve(body, {"Range": "bytes=-5"});
+        assert.strictEqual(res.status, 206);
+        assert.strictEqual(res.content, content.substring(length - 5));
+        res = serve(body, {"Range": "bytes=10-"});
+        assert.strictEqual(res.status, 206);
+        assert.strictEqual(res.content, content.substring(10));
+        // multiple ranges are answered with the full entity
+        res = serve(body, {"Range": "bytes=0-1,5-6"});
+        assert.strictEqual(res.status, 200);
+        assert.strictEqual(res.content, content);
+
+        // unsatisfiable ranges
+        res = serve(body, {"Range": "bytes=" + length + "-"}, null, null,
+                {"Cache-Control": "max-age=60", "Content-Length": String(length)});
+        assert.strictEqual(res.status, 416);
+        assert.strictEqual(res.headers["Content-Range"], "bytes */" + length);
+        assert.strictEqual(res.headers["Cache-Control"], "max-age=60");
+        assert.strictEqual(res.headers["Content-Length"], "0");
+        assert.strictEqual(res.content, "");
+
+        // If-Range with matching and outdated validators
+        res = serve(body, {"Range": "bytes=0-9", "If-Range": etag});
+        assert.strictEqual(res.status, 206);
+        res = serve(body, {"Range": "bytes=0-9", "If-Range": '"outdated"'});
+        assert.strictEqual(res.status, 200);
+        assert.strictEqual(res.content, content);
+        res = serve(body, {"Range": "bytes=0-9", "If-Range": modified + 1000});
+        assert.strictEqual(res.status, 206);
+        res = serve(body, {"Range": "bytes=0-9", "If-Range": modified - 10000});
+        assert.strictEqual(res.status, 200);
+
+        // conditional requests
+        res = serve(body, {"If-None-Match": etag});
+        assert.strictEqual(res.status, 304);
+        assert.strictEqual(res.content, "");
+        res = serve(body, {"If-None-Match": '"other", ' + etag});
+        assert.strictEqual(res.status, 304);
+        res = serve(body, {"If-None-Match": '"other"'});
+        assert.strictEqual(res.status, 200);
+        res = serve(body, {"If-Modified-Since": modified + 1000});
+        assert.strictEqual(res.status, 304);
+        res = serve(body, {"If-Modified-Since": modified - 10000});
+        assert.strictEqual(res.status, 200);
+
+        // HEAD requests get headers only
+        res = serve(body, {}, "HEAD");
+        assert.strictEqual(res.status, 200);
+        assert.strictEqual(res.headers["Content-Length"], String(length));
+        assert.strictEqual(res.content, "");
+
+        // other statuses are served as is
+        res = serve(body, {"Range": "bytes=0-9", "If-None-Match": etag}, "GET", 404);
+        assert.strictEqual(res.status, 404);
+        assert.strictEqual(res.content, content);
+    });
+
+};
+
+/**
+ * Serve a ResourceBody to fake servlet request and response objects.
+ * Date header values are passed as numbers.
+ */
+function serve(body, headers, method, status, responseHeaders) {
+    headers = headers || {};
+    var request = new javax.servlet.http.HttpServletRequest({
+        getMethod: function() method || "GET",
+        getHeader: function(name) {
+            return name in headers ? String(headers[name]) : null;
+        },
+        getDateHeader: function(name) {
+            return name in headers ? Number(headers[name]) : -1;
+        }
+    });
+    var result = {status: 0, headers: {}};
+    var bytes = new java.io.ByteArrayOutputStream();
+    var output = new JavaAdapter(javax.servlet.ServletOutputStream, {
+        write: function(b, off, len) {
+            if (typeof b === "number") {
+                bytes.write(b);
+            } else {
+                bytes.write(b, off || 0, len === undefined ? b.length : len);
+            }
+        }
+    });
+    var response = new javax.servlet.http.HttpServletResponse({
+        setStatus: function(status) {
+            result.status = status;
+        },
+        setHeader: function(name, value) {
+            result.headers[name] = String(value);
+        },
+        addHeader: function(name, value) {
+            result.headers[name] = String(value);
+        },
+        setDateHeader: function(name, value) {
+            result.headers[name] = value;
+        },
+        getOutputStream: function() output
+    });
+    body.serve(request, response, status || 200, responseHeaders || {});
+    result.content = String(bytes.toString("UTF-8"));
+    return result;
+}
+
 // start the test runner if we're called directly from command line
 if (require.main == module.id) {
     system.exit(require("test").run(exports));
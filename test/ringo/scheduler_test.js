@@ -0,0 +1,78 @@
+var assert = require("assert");
+var {setTimeout, clearTimeout} = require("ringo/scheduler");
+var {getSpawnMetrics} = require("ringo/engine");
+
+exports.testSetTimeout = function() {
+    var latch = new java.util.concurrent.CountDownLatch(2);
+    var thread;
+    setTimeout(function() {
+        latch.countDown();
+    }, 0);
+    setTimeout(function() {
+        thread = java.lang.Thread.currentThread().getName();
+        latch.countDown();
+    }, 10);
+    assert.isTrue(latch.await(5, java.util.concurrent.TimeUnit.SECONDS));
+    // delayed callbacks are handed over to the spawn() thread pool
+    assert.isTrue(/^ringo-spawn-/.test(thread));
+};
+
+exports.testClearTimeout = function() {
+    var called = false;
+    var id = setTimeout(function() {
+        called = true;
+    }, 50);
+    clearTimeout(id);
+    java.lang.Thread.sleep(100);
+    assert.isFalse(called);
+};
+
+exports.testSpawnMetrics = function() {
+    var before = getSpawnMetrics();
+    for (var i = 0; i < 3; i++) {
+        spawn(function() {}).get();
+    }
+    // the completed count is updated after the task's result is set
+    var after = getSpawnMetrics();
+    for (i = 0; i < 100 && after.completed - before.completed < 3; i++) {
+        java.lang.Thread.sleep(10);
+        after = getSpawnMetrics();
+    }
+    assert.strictEqual(after.completed - before.completed, 3);
+    assert.isTrue(after.maxThreads > 0);
+    assert.strictEqual(typeof after.rejected, "number");
+    assert.strictEqual(typeof after.queued, "number");
+};
+
+exports.testExecuteLater = function() {
+    // a pool with a single thread and no queue
+    var executor = new org.ringojs.engine.SpawnExecutor(1, 0, true);
+    var block = new java.util.concurrent.CountDownLatch(1);
+    var done = new java.util.concurrent.CountDownLatch(2);
+    var threads = [];
+    try {
+        executor.execute(function() {
+            block.await();
+            done.countDown();
+        });
+        // rejected tasks handed over with executeLater() must not run in
+        // the calling thread, but once the pool has capacity again
+        executor.executeLater(function() {
+            threads.push(String(java.lang.Thread.currentThread().getName()));
+            done.countDown();
+        });
+        assert.strictEqual(threads.length, 0);
+        assert.strictEqual(executor.getOverflowCount() + executor.getQueuedCount(), 1);
+        block.countDown();
+        assert.isTrue(done.await(5, java.util.concurrent.TimeUnit.SECONDS));
+        assert.isTrue(/^ringo-spawn-/.test(threads[0]));
+    } finally {
+        block.countDown();
+        executor.shutdown();
+    }
+};
+
+// start the test runner if we're called directly from command line
+if (require.main == module.id) {
+    require('test').run(exports);
+}
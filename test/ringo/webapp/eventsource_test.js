@@ -0,0 +1,156 @@
+var assert = require("assert");
+var {EventSource, encodeEvent} = require("ringo/webapp/eventsource");
+var {Server} = require("ringo/httpserver");
+
+var port = 8283;
+var server, events;
+
+exports.setUp = function() {
+    events = new EventSource({retry: 2000});
+    server = new Server({host: "127.0.0.1", port: port});
+    server.getDefaultContext().serveApplication(function(request) {
+        return events.connect(request);
+    });
+    server.start();
+};
+
+exports.tearDown = function() {
+    events.close();
+    server.stop();
+    server.destroy();
+};
+
+exports.testEncodeEvent = function() {
+    assert.strictEqual(encodeEvent("hello").decodeToString("utf-8"),
+            "data: hello\n\n");
+    assert.strictEqual(encodeEvent("a\nb\r\nc", {event: "update", id: 7}).decodeToString("utf-8"),
+            "id: 7\nevent: update\ndata: a\ndata: b\ndata: c\n\n");
+    assert.strictEqual(encodeEvent(null, {retry: 1000}).decodeToString("utf-8"),
+            "retry: 1000\n\n");
+    // line breaks in single line fields would inject fields or events
+    assert.throws(function() {
+        encodeEvent("x", {id: "1\ndata: injected"});
+    }, Error);
+    assert.throws(function() {
+        encodeEvent("x", {event: "update\r\n\r\ndata: injected"});
+    }, Error);
+};
+
+exports.testBroadcast = function() {
+    var clients = [connect(), connect(), connect()];
+    for (var i = 0; i < 100 && events.getSubscriberCount() < clients.length; i++) {
+        java.lang.Thread.sleep(10);
+    }
+    assert.strictEqual(events.getSubscriberCount(), 3);
+    assert.strictEqual(events.send("hello\nworld", {event: "greeting", id: "1"}), 3);
+    clients.forEach(function(client) {
+        assert.strictEqual(readEvent(client), "retry: 2000\n");
+        assert.strictEqual(readEvent(client),
+                "id: 1\nevent: greeting\ndata: hello\ndata: world\n");
+    });
+    // disconnected clients are removed on the next send
+    clients[0].socket.close();
+    for (i = 0; i < 100 && events.getSubscriberCount() > 2; i++) {
+        events.send("ping");
+        java.lang.Thread.sleep(10);
+    }
+    assert.strictEqual(events.getSubscriberCount(), 2);
+    var stats = events.getStats();
+    assert.isTrue(stats.disconnected >= 1);
+    clients[1].socket.close();
+    clients[2].socket.close();
+};
+
+exports.testSlowConsumerDrop = function() {
+    events.close();
+    events = new EventSource({maxPending: 16 * 1024, slowConsumer: "drop", keepAlive: 0});
+    var client = connect(true);
+    awaitSubscribers(1);
+    var payload = new Array(8 * 1024).join("x");
+    // the client doesn't read, so its queue fills up eventually
+    for (var i = 0; i < 10000 && events.getStats().dropped == 0; i++) {
+        events.send(payload);
+    }
+    assert.isTrue(events.getStats().dropped > 0);
+    assert.strictEqual(events.getStats().disconnected, 0);
+    assert.strictEqual(events.getSubscriberCount(), 1);
+    client.socket.close();
+};
+
+exports.testSlowConsumerDisconnect = function() {
+    events.close();
+    events = new EventSource({maxPending: 16 * 1024, keepAlive: 0});
+    var client = connect(true);
+    awaitSubscribers(1);
+    var payload = new Array(8 * 1024).join("x");
+    var queued = 0;
+    for (var i = 0; i < 10000 && events.getSubscriberCount() > 0; i++) {
+        queued += events.send(payload) * payload.length;
+    }
+    assert.strictEqual(events.getSubscriberCount(), 0);
+    assert.strictEqual(events.getStats().disconnected, 1);
+    // the connection is closed without writing the queued events
+    var input = client.socket.getInputStream();
+    var buffer = java.lang.reflect.Array.newInstance(java.lang.Byte.TYPE, 8192);
+    var received = 0, read;
+    try {
+        while ((read = input.read(buffer)) > -1) {
+            received += read;
+        }
+    } catch (error if error.javaException instanceof java.net.SocketException) {
+        // connection reset
+    }
+    assert.isTrue(received < queued, "queued events were discarded");
+    client.socket.close();
+};
+
+function awaitSubscribers(count) {
+    for (var i = 0; i < 100 && events.getSubscriberCount() < count; i++) {
+        java.lang.Thread.sleep(10);
+    }
+    assert.strictEqual(events.getSubscriberCount(), count);
+}
+
+function connect(slow) {
+    var socket = new java.net.Socket();
+    if (slow) {
+        socket.setReceiveBufferSize(1024);
+    }
+    socket.connect(new java.net.InetSocketAddress("127.0.0.1", port));
+    socket.setSoTimeout(5000);
+    var output = socket.getOutputStream();
+    output.write(new java.lang.String("GET /events HTTP/1.1\r\nHost: localhost\r\n\r\n").getBytes());
+    output.flush();
+    var reader = new java.io.BufferedReader(
+            new java.io.InputStreamReader(socket.getInputStream(), "UTF-8"));
+    // skip response headers
+    var line;
+    while ((line = reader.readLine()) != null && String(line).length > 0) {}
+    return {socket: socket, reader: reader};
+}
+
+/**
+ * Read the next event from a chunked event stream, skipping chunk sizes.
+ */
+function readEvent(client) {
+    var event = [];
+    var line;
+    while ((line = client.reader.readLine()) != null) {
+        line = String(line);
+        if (/^[0-9a-fA-F]+$/.test(line) && event.length == 0) {
+            continue; // chunk size
+        }
+        if (line == "") {
+            if (event.length) break;
+            continue;
+        }
+        if (line.charAt(0) != ":") {
+            event.push(line + "\n");
+        }
+    }
+    return event.join("");
+}
+
+if (require.main == module.id) {
+    require("test").run(exports);
+}
@@ -0,0 +1,100 @@
+var assert = require("assert");
+var {parseFileUpload, BufferFactory, TempFileFactory} = require("ringo/webapp/fileupload");
+var {Stream, MemoryStream} = require("io");
+var {ByteString} = require("binary");
+var fs = require("fs");
+
+var BOUNDARY = "----RingoBoundary7MA4YWxkTrZu0gW";
+
+function createBody(parts) {
+    var buffer = [];
+    parts.forEach(function(part) {
+        buffer.push("--" + BOUNDARY + "\r\n");
+        buffer.push('Content-Disposition: form-data; name="' + part.name + '"');
+        if (part.filename) {
+            buffer.push('; filename="' + part.filename + '"\r\nContent-Type: text/plain');
+        }
+        buffer.push("\r\n\r\n" + part.value + "\r\n");
+    });
+    buffer.push("--" + BOUNDARY + "--\r\n");
+    return new ByteString(buffer.join(""), "utf-8");
+}
+
+function createRequest(body, javaStream) {
+    var bytes = body.unwrap();
+    return {
+        headers: {"content-type": "multipart/form-data; boundary=" + BOUNDARY},
+        input: javaStream ?
+                new Stream(new java.io.ByteArrayInputStream(bytes)) :
+                new MemoryStream(body)
+    };
+}
+
+var PARTS = [
+    {name: "title", value: "hällo"},
+    {name: "tags[]", value: "a"},
+    {name: "tags[]", value: "b"},
+    {name: "file", filename: "data.txt", value: "line one\r\n--not a boundary\r\nline two"}
+];
+
+exports.testParseNative = function() {
+    var params = {};
+    parseFileUpload(createRequest(createBody(PARTS), true), params, "utf-8");
+    assertParams(params);
+    assert.strictEqual(params.file.value.decodeToString("utf-8"), PARTS[3].value);
+};
+
+exports.testParseScript = function() {
+    // MemoryStream input isn't backed by a Java stream and uses the JS parser
+    var params = {};
+    parseFileUpload(createRequest(createBody(PARTS), false), params, "utf-8");
+    assertParams(params);
+    assert.strictEqual(params.file.value.decodeToString("utf-8"), PARTS[3].value);
+};
+
+exports.testLargeFile = function() {
+    var value = new Array(20000).join("0123456789\r\n-");
+    var params = {};
+    parseFileUpload(createRequest(createBody([{name: "file", filename: "big.txt", value: value}]), true),
+            params, "utf-8");
+    assert.strictEqual(params.file.value.decodeToString("utf-8"), value);
+};
+
+exports.testTempFile = function() {
+    var params = {};
+    parseFileUpload(createRequest(createBody(PARTS), true), params, "utf-8", TempFileFactory);
+    assertParams(params);
+    try {
+        assert.strictEqual(fs.read(params.file.tempfile), PARTS[3].value);
+    } finally {
+        fs.remove(params.file.tempfile);
+    }
+};
+
+exports.testLimits = function() {
+    var body = createBody(PARTS);
+    assert.throws(function() {
+        parseFileUpload(createRequest(body, true), {}, "utf-8", BufferFactory, {maxParts: 3});
+    });
+    assert.throws(function() {
+        parseFileUpload(createRequest(body, true), {}, "utf-8", BufferFactory, {maxFileSize: 10});
+    });
+    assert.throws(function() {
+        parseFileUpload(createRequest(body, true), {}, "utf-8", BufferFactory, {maxFieldSize: 1});
+    });
+    assert.throws(function() {
+        parseFileUpload(createRequest(body, true), {}, "utf-8", BufferFactory, {maxTotalSize: 100});
+    });
+};
+
+function assertParams(params) {
+    assert.strictEqual(params.title, "hällo");
+    assert.deepEqual(params.tags, ["a", "b"]);
+    assert.strictEqual(params.file.name, "file");
+    assert.strictEqual(params.file.filename, "data.txt");
+    assert.strictEqual(params.file.contentType, "text/plain");
+}
+
+if (require.main == module.id) {
+    require("test").run(exports);
+}
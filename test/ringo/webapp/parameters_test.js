@@ -0,0 +1,42 @@
+var assert = require("assert");
+var {parseParameters, mergeParameter} = require("ringo/webapp/parameters");
+var {ByteString} = require("binary");
+
+exports.testParseParameters = function() {
+    var params = {};
+    parseParameters("a=1&b=h%C3%A4llo+world&empty=&=x&novalue&%20c%20=3", params);
+    assert.deepEqual(params, {a: "1", b: "hällo world", c: "3"});
+    assert.strictEqual(typeof params.a, "string");
+};
+
+exports.testNestedParameters = function() {
+    var params = {};
+    parseParameters(new ByteString("foo[bar][][baz]=hello&list[]=1&list[]=2&obj[x]=y", "ASCII"),
+            params);
+    assert.deepEqual(params, {
+        foo: {bar: [{baz: "hello"}]},
+        list: ["1", "2"],
+        obj: {x: "y"}
+    });
+};
+
+exports.testEncoding = function() {
+    var params = {};
+    parseParameters(new ByteString("x=%E4%F6&y=100%25&z=%zz", "ASCII"), params, "ISO-8859-1");
+    assert.deepEqual(params, {x: "äö", y: "100%", z: "%zz"});
+};
+
+exports.testLimits = function() {
+    var query = "a=1&b=2&c=3";
+    parseParameters(query, {}, null, {maxFields: 3, maxSize: query.length});
+    assert.throws(function() {
+        parseParameters(query, {}, null, {maxFields: 2});
+    });
+    assert.throws(function() {
+        parseParameters(query, {}, null, {maxSize: query.length - 1});
+    });
+};
+
+if (require.main == module.id) {
+    require("test").run(exports);
+}
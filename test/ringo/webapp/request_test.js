@@ -0,0 +1,99 @@
+var assert = require("assert");
+var {Request} = require("ringo/webapp/request");
+var {Stream} = require("io");
+var {ByteString} = require("binary");
+
+var BOUNDARY = "----ringo-request-test";
+
+function createRequest(contentType, body, contentLength) {
+    var bytes = new ByteString(body, "utf-8");
+    var servletRequest = new javax.servlet.http.HttpServletRequest({
+        getCharacterEncoding: function() {
+            return "utf-8";
+        }
+    });
+    return Request({
+        method: "POST",
+        scriptName: "",
+        pathInfo: "/",
+        queryString: "",
+        headers: {
+            "content-type": contentType,
+            "content-length": String(contentLength == null ? bytes.length : contentLength)
+        },
+        input: new Stream(new java.io.ByteArrayInputStream(bytes.unwrap())),
+        env: {servletRequest: servletRequest}
+    });
+}
+
+function createMultipart(fields) {
+    var buffer = [];
+    for (var name in fields) {
+        buffer.push("--" + BOUNDARY + "\r\nContent-Disposition: form-data; name=\""
+                + name + "\"\r\n\r\n" + fields[name] + "\r\n");
+    }
+    buffer.push("--" + BOUNDARY + "--\r\n");
+    return createRequest("multipart/form-data; boundary=" + BOUNDARY, buffer.join(""));
+}
+
+exports.testUrlEncodedLimits = function() {
+    var type = "application/x-www-form-urlencoded";
+    var req = createRequest(type, "a=1&b=%C3%A4");
+    assert.strictEqual(req.limits.maxFields, 1000);
+    assert.strictEqual(req.postParams.a, "1");
+    assert.strictEqual(req.postParams.b, "\u00e4");
+
+    req = createRequest(type, "a=1&b=2&c=3");
+    req.limits.maxFields = 2;
+    assert.throws(function() {
+        req.postParams;
+    });
+
+    // rejected by Content-Length before reading the body
+    req = createRequest(type, "a=1&b=2");
+    req.limits.maxSize = 5;
+    assert.throws(function() {
+        req.postParams;
+    });
+    assert.strictEqual(req.input.read().length, 7);
+
+    // a body larger than its Content-Length is only read up to the limit
+    var body = "a=" + new Array(20000).join("x");
+    req = createRequest(type, body, 10);
+    req.limits.maxSize = 10000;
+    assert.throws(function() {
+        req.postParams;
+    });
+    assert.isTrue(req.input.read().length < body.length - 10000);
+
+    // a large body within the limit
+    req = createRequest(type, body, -1);
+    assert.strictEqual(req.postParams.a.length, 19999);
+};
+
+exports.testMultipartLimits = function() {
+    var req = createMultipart({a: "1", b: "2"});
+    assert.strictEqual(req.limits.maxParts, 1000);
+    assert.strictEqual(req.postParams.a, "1");
+    assert.strictEqual(req.postParams.b, "2");
+
+    req = createMultipart({a: "1", b: "2"});
+    req.limits.maxParts = 1;
+    assert.throws(function() {
+        req.postParams;
+    });
+
+    req = createMultipart({a: new Array(101).join("x")});
+    req.limits.maxFieldSize = 50;
+    assert.throws(function() {
+        req.postParams;
+    });
+
+    // limits are not shared between requests
+    assert.strictEqual(createMultipart({}).limits.maxFieldSize, 1024 * 1024);
+};
+
+// start the test runner if we're called directly from command line
+if (require.main == module.id) {
+    system.exit(require("test").run(exports));
+}
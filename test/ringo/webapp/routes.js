@@ -0,0 +1,26 @@
+// url mappings used by webapp_test.js
+
+function action(name) {
+    return function(req) {
+        return {name: name, args: Array.slice(arguments, 1)};
+    };
+}
+
+var nested = {
+    urls: [
+        ['^/$', {index: action('nested index')}],
+        ['^/(\\d+)$', {index: action('nested number')}]
+    ]
+};
+
+exports.urls = [
+    ['^/static/', {index: action('static')}],
+    ['^/st', {index: action('st')}],
+    [/^\/user\/(\w+)$/, {index: action('user')}],
+    ['^/fallthrough', {}],
+    ['fallthrough', {index: action('after fallthrough')}],
+    [/^\/CASE/i, {index: action('case')}],
+    ['^/nested', nested],
+    ['/items', {list: action('list'), index: action('items')}],
+    ['^/', {index: action('root'), about: action('about')}]
+];
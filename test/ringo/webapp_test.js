@@ -0,0 +1,64 @@
+var assert = require("assert");
+var {handleRequest} = require("ringo/webapp");
+
+var config = module.resolve("webapp/routes");
+
+function dispatch(path) {
+    var req = {
+        env: {ringo_config: config},
+        method: "GET",
+        isGet: true,
+        scriptName: "",
+        pathInfo: path,
+        path: path,
+        queryString: "",
+        headers: {}
+    };
+    try {
+        return handleRequest(req);
+    } catch (e if e.notfound) {
+        return null;
+    }
+}
+
+exports.testLiteralPrefixes = function() {
+    assert.strictEqual(dispatch("/static/").name, "static");
+    assert.strictEqual(dispatch("/st/").name, "st");
+    assert.strictEqual(dispatch("/").name, "root");
+    assert.strictEqual(dispatch("/about").name, "about");
+};
+
+exports.testPatterns = function() {
+    assert.deepEqual(dispatch("/user/joe"), {name: "user", args: ["joe"]});
+    assert.strictEqual(dispatch("/case/").name, "case");
+    assert.strictEqual(dispatch("/some/items/").name, "items");
+    assert.strictEqual(dispatch("/some/items/list").name, "list");
+};
+
+exports.testFallThrough = function() {
+    // the first matching mapping doesn't resolve to an action
+    assert.strictEqual(dispatch("/fallthrough/").name, "after fallthrough");
+};
+
+exports.testNestedConfig = function() {
+    assert.strictEqual(dispatch("/nested/").name, "nested index");
+    assert.deepEqual(dispatch("/nested/42"), {name: "nested number", args: ["42"]});
+};
+
+exports.testRebuild = function() {
+    var routes = require(config);
+    var urls = routes.urls;
+    try {
+        routes.urls = [['^/$', {index: function() ({name: "replaced"})}]];
+        assert.strictEqual(dispatch("/").name, "replaced");
+        assert.isNull(dispatch("/static/"));
+    } finally {
+        routes.urls = urls;
+    }
+    assert.strictEqual(dispatch("/static/").name, "static");
+};
+
+// start the test runner if we're called directly from command line
+if (require.main == module.id) {
+    system.exit(require("test").run(exports));
+}